@@ -0,0 +1,133 @@
+/*
+ * The MIT License
+ *
+ *  Copyright (c) 2015, CloudBees, Inc.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ *
+ */
+
+package com.cloudbees.jenkins.plugins.amazonecs;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.lang.StringUtils;
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.StaplerResponse;
+
+import hudson.Extension;
+import hudson.model.Node;
+import hudson.model.UnprotectedRootAction;
+import jenkins.model.Jenkins;
+
+/**
+ * Lets the containers of a batched launch find out which slave they are.
+ *
+ * All tasks started by one RunTask call share the same overrides, so they get a claim token instead of a slave name
+ * and secret. On startup, the container asks this action for its arguments:
+ * <pre>
+ * GET ${JENKINS_CLAIM_URL}?token=${JENKINS_CLAIM_TOKEN}&amp;task=&lt;ECS task ARN or id&gt;
+ * </pre>
+ * and gets the slave.jar arguments back, one per line. The token is random and only valid together with the task
+ * started for it. Each claim can be made once, and only until the slave is online or its launch timed out.
+ */
+@Extension
+public class ECSAgentClaimAction implements UnprotectedRootAction {
+
+    private static final Logger LOGGER = Logger.getLogger(ECSAgentClaimAction.class.getName());
+
+    static final String URL_NAME = "ecs-agent-claim";
+
+    /**
+     * Unclaimed slaves, by claim token and task id.
+     */
+    private static final ConcurrentMap<String, Claim> CLAIMS = new ConcurrentHashMap<String, Claim>();
+
+    /**
+     * @param expiresAt when the launch of the slave times out
+     */
+    static void register(String token, String taskArn, String nodeName, long expiresAt) {
+        // claims of slaves that were neither claimed nor released, e.g. because Jenkins failed to remove them
+        final long now = System.currentTimeMillis();
+        for (Iterator<Claim> it = CLAIMS.values().iterator(); it.hasNext(); ) {
+            if (it.next().expiresAt < now) {
+                it.remove();
+            }
+        }
+        CLAIMS.put(key(token, taskArn), new Claim(nodeName, expiresAt));
+    }
+
+    static void unregister(String token, String taskArn) {
+        CLAIMS.remove(key(token, taskArn));
+    }
+
+    private static String key(String token, String taskArn) {
+        // the task ARN ends with the task id; containers may know either of them
+        return token + '/' + StringUtils.substringAfterLast("/" + taskArn, "/");
+    }
+
+    @Override
+    public String getIconFileName() {
+        return null;
+    }
+
+    @Override
+    public String getDisplayName() {
+        return null;
+    }
+
+    @Override
+    public String getUrlName() {
+        return URL_NAME;
+    }
+
+    public void doIndex(@QueryParameter String token, @QueryParameter String task, StaplerResponse rsp) throws IOException {
+        // a claim can only be made once, by the container started for it
+        Claim claim = StringUtils.isBlank(token) || StringUtils.isBlank(task) ? null : CLAIMS.remove(key(token, task));
+        String nodeName = claim == null || claim.expiresAt < System.currentTimeMillis() ? null : claim.nodeName;
+        Node node = nodeName == null ? null : Jenkins.getInstance().getNode(nodeName);
+        if (!(node instanceof ECSSlave) || ((ECSSlave) node).getComputer() == null || ((ECSSlave) node).getCloud() == null) {
+            LOGGER.log(Level.FINE, "No slave to claim for task {0}", task);
+            rsp.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+
+        ECSSlave slave = (ECSSlave) node;
+        LOGGER.log(Level.FINE, "Task {0} claimed slave {1}", new Object[]{task, nodeName});
+        rsp.setContentType("text/plain;charset=UTF-8");
+        rsp.getWriter().print(StringUtils.join(slave.getCloud().getDockerRunCommand(slave), "\n"));
+    }
+
+    private static final class Claim {
+        final String nodeName;
+        final long expiresAt;
+
+        Claim(String nodeName, long expiresAt) {
+            this.nodeName = nodeName;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
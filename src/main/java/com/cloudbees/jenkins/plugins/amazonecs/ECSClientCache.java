@@ -0,0 +1,439 @@
+/*
+ * The MIT License
+ *
+ *  Copyright (c) 2015, CloudBees, Inc.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ *
+ */
+
+package com.cloudbees.jenkins.plugins.amazonecs;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.apache.commons.lang.ObjectUtils;
+import org.apache.commons.lang.StringUtils;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.auth.AWSCredentials;
+import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.auth.DefaultAWSCredentialsProviderChain;
+import com.amazonaws.regions.Region;
+import com.amazonaws.regions.RegionUtils;
+import com.amazonaws.regions.Regions;
+import com.amazonaws.retry.PredefinedRetryPolicies;
+import com.amazonaws.retry.RetryPolicy;
+import com.amazonaws.retry.RetryUtils;
+import com.amazonaws.services.ecs.AmazonECS;
+import com.amazonaws.services.ecs.AmazonECSClient;
+import com.amazonaws.services.securitytoken.AWSSecurityTokenServiceClient;
+import com.amazonaws.services.securitytoken.model.GetCallerIdentityRequest;
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.AmazonSQSClient;
+import com.cloudbees.jenkins.plugins.awscredentials.AWSCredentialsHelper;
+import com.cloudbees.jenkins.plugins.awscredentials.AmazonWebServicesCredentials;
+
+import hudson.Extension;
+import hudson.ProxyConfiguration;
+import hudson.XmlFile;
+import hudson.model.Saveable;
+import hudson.model.listeners.SaveableListener;
+import hudson.slaves.Cloud;
+import jenkins.model.Jenkins;
+import jenkins.util.Timer;
+
+/**
+ * Shares {@link AmazonECSClient} instances between all ECS calls made with the same credentials, region and
+ * proxy settings, so that they reuse one pooled set of HTTP connections instead of building a client per call.
+ *
+ * Clients whose key is no longer used by any configured {@link ECSCloud} are shut down when the Jenkins
+ * configuration is saved.
+ */
+final class ECSClientCache {
+
+    private static final Logger LOGGER = Logger.getLogger(ECSClientCache.class.getName());
+
+    /**
+     * Maximum number of pooled HTTP connections per client. All provisioning threads of a cloud share it.
+     */
+    static int MAX_CONNECTIONS = Integer.getInteger(ECSClientCache.class.getName() + ".maxConnections", 100);
+
+    /**
+     * Idle pooled connections are closed after this delay, which stays below the ELB idle timeout of the ECS endpoint.
+     */
+    static long CONNECTION_MAX_IDLE_MILLIS = Long.getLong(ECSClientCache.class.getName() + ".connectionMaxIdleMillis", TimeUnit.SECONDS.toMillis(50));
+
+    /**
+     * Pooled connections are recycled after this delay so that DNS changes of the ECS endpoint are picked up.
+     */
+    static long CONNECTION_TTL_MILLIS = Long.getLong(ECSClientCache.class.getName() + ".connectionTtlMillis", TimeUnit.MINUTES.toMillis(5));
+
+    /**
+     * Jenkins credentials are looked up again after this delay, so that rotated keys are used without restart.
+     */
+    static long CREDENTIALS_REFRESH_MILLIS = Long.getLong(ECSClientCache.class.getName() + ".credentialsRefreshMillis", TimeUnit.MINUTES.toMillis(5));
+
+    /**
+     * Delay before a client that is no longer configured is shut down, to let in-flight calls finish.
+     */
+    private static final long SHUTDOWN_DELAY_SECONDS = 60;
+
+    /**
+     * Retries like the SDK does by default, except for throttled calls: {@link ECSRateLimiter} retries those with
+     * a jittered backoff of its own.
+     */
+    private static final RetryPolicy RETRY_POLICY = new RetryPolicy(new RetryPolicy.RetryCondition() {
+        @Override
+        public boolean shouldRetry(AmazonWebServiceRequest originalRequest, AmazonClientException exception, int retriesAttempted) {
+            if (exception instanceof AmazonServiceException && RetryUtils.isThrottlingException((AmazonServiceException) exception)) {
+                return false;
+            }
+            return PredefinedRetryPolicies.DEFAULT_RETRY_CONDITION.shouldRetry(originalRequest, exception, retriesAttempted);
+        }
+    }, PredefinedRetryPolicies.DEFAULT_BACKOFF_STRATEGY, PredefinedRetryPolicies.DEFAULT_MAX_ERROR_RETRY, true);
+
+    /**
+     * Delay before the account of credentials STS could not tell is looked up again.
+     */
+    static long ACCOUNT_RETRY_MILLIS = Long.getLong(ECSClientCache.class.getName() + ".accountRetryMillis", TimeUnit.MINUTES.toMillis(10));
+
+    private static final ConcurrentMap<Key, AmazonECS> CLIENTS = new ConcurrentHashMap<Key, AmazonECS>();
+
+    /**
+     * AWS account ids, by credentials id. Credentials do not move between accounts.
+     */
+    private static final ConcurrentMap<String, String> ACCOUNTS = new ConcurrentHashMap<String, String>();
+
+    /**
+     * When the account of credentials STS could not tell may be looked up again, by credentials id.
+     */
+    private static final ConcurrentMap<String, Long> ACCOUNT_RETRIES = new ConcurrentHashMap<String, Long>();
+
+    private ECSClientCache() {
+    }
+
+    @Nonnull
+    static AmazonECS get(@Nullable String credentialsId, @Nullable String regionName) {
+        final Key key = new Key(credentialsId, regionName, Jenkins.getInstance().proxy);
+        AmazonECS client = CLIENTS.get(key);
+        if (client != null) {
+            return client;
+        }
+        // looking up the account may take a while, which must not hold up the lookups of the other clients
+        AmazonECS newClient = getRateLimiter(credentialsId, regionName).wrap(createClient(key));
+        client = CLIENTS.putIfAbsent(key, newClient);
+        if (client != null) {
+            newClient.shutdown();
+            return client;
+        }
+        return newClient;
+    }
+
+    /**
+     * Shuts down all cached clients whose key is not used by one of the currently configured clouds.
+     */
+    static void retainConfiguredClients() {
+        final Jenkins jenkins = Jenkins.getInstance();
+        if (jenkins == null) {
+            return;
+        }
+        final Set<Key> inUse = new HashSet<Key>();
+        for (Cloud cloud : jenkins.clouds) {
+            if (cloud instanceof ECSCloud) {
+                ECSCloud ecsCloud = (ECSCloud) cloud;
+                inUse.add(new Key(ecsCloud.getCredentialsId(), ecsCloud.getRegionName(), jenkins.proxy));
+            }
+        }
+
+        final List<AmazonECS> unused = new ArrayList<AmazonECS>();
+        for (Key key : new ArrayList<Key>(CLIENTS.keySet())) {
+            if (!inUse.contains(key)) {
+                AmazonECS client = CLIENTS.remove(key);
+                if (client != null) {
+                    LOGGER.log(Level.FINE, "Releasing ECS client for {0}", key);
+                    unused.add(client);
+                }
+            }
+        }
+        if (unused.isEmpty()) {
+            return;
+        }
+        Timer.get().schedule(new Runnable() {
+            @Override
+            public void run() {
+                for (AmazonECS client : unused) {
+                    client.shutdown();
+                }
+                LOGGER.log(Level.FINE, "Shut down {0} unused ECS client(s)", unused.size());
+            }
+        }, SHUTDOWN_DELAY_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * The rate limiter of the account the given credentials belong to, since ECS throttles per account and region.
+     */
+    @Nonnull
+    static ECSRateLimiter getRateLimiter(@Nullable String credentialsId, @Nullable String regionName) {
+        return ECSRateLimiter.forAccount(getAccount(credentialsId, regionName), regionName);
+    }
+
+    /**
+     * Identifies the given cluster across accounts and regions. Cluster ARNs already do; the short name of a cluster is
+     * qualified with the region and the account of the credentials, since each account can have a cluster of that name.
+     */
+    @Nonnull
+    static String getClusterKey(@Nullable String credentialsId, @Nullable String regionName, String cluster) {
+        if (cluster.startsWith("arn:")) {
+            return cluster;
+        }
+        return regionName + '/' + getAccount(credentialsId, regionName) + '/' + cluster;
+    }
+
+    /**
+     * Id of the AWS account the given credentials belong to, as reported by STS. If STS cannot tell, e.g. because the
+     * credentials lack access to it, the credentials stand for their own account, and STS is only asked again after
+     * {@link #ACCOUNT_RETRY_MILLIS}.
+     */
+    @Nonnull
+    static String getAccount(@Nullable String credentialsId, @Nullable String regionName) {
+        final String credentialsKey = StringUtils.trimToEmpty(credentialsId);
+        String account = ACCOUNTS.get(credentialsKey);
+        if (account != null) {
+            return account;
+        }
+        final String fallback = "credentials:" + credentialsKey;
+        final Long retryAt = ACCOUNT_RETRIES.get(credentialsKey);
+        if (retryAt != null && retryAt > System.currentTimeMillis()) {
+            return fallback;
+        }
+        final Key key = new Key(credentialsId, regionName, Jenkins.getInstance().proxy);
+        AWSSecurityTokenServiceClient sts = new AWSSecurityTokenServiceClient(new RefreshingCredentialsProvider(key.credentialsId), createClientConfiguration(key));
+        try {
+            sts.setRegion(getRegion(key.regionName));
+            account = sts.getCallerIdentity(new GetCallerIdentityRequest()).getAccount();
+            LOGGER.log(Level.FINE, "Credentials {0} belong to account {1}", new Object[]{credentialsKey, account});
+            ACCOUNTS.put(credentialsKey, account);
+            ACCOUNT_RETRIES.remove(credentialsKey);
+            return account;
+        } catch (AmazonClientException e) {
+            // reported once, the retries fail the same way in all likelihood
+            Level level = ACCOUNT_RETRIES.put(credentialsKey, System.currentTimeMillis() + ACCOUNT_RETRY_MILLIS) == null ? Level.WARNING : Level.FINE;
+            LOGGER.log(level, "Failed to look up the account of credentials " + credentialsKey + ", pacing their ECS calls on their own", e);
+            return fallback;
+        } finally {
+            sts.shutdown();
+        }
+    }
+
+    private static AmazonECSClient createClient(Key key) {
+        AmazonECSClient client = new AmazonECSClient(new RefreshingCredentialsProvider(key.credentialsId), createClientConfiguration(key));
+        client.setRegion(getRegion(key.regionName));
+        LOGGER.log(Level.FINE, "Created ECS client for {0}", key);
+        return client;
+    }
+
+    /**
+     * Creates an SQS client with the same credentials and settings as the ECS clients. It is not cached, its single
+     * user shuts it down.
+     *
+     * @param endpoint endpoint of an SQS-compatible service, or null for the SQS endpoint of the region
+     */
+    @Nonnull
+    static AmazonSQS createSqsClient(@Nullable String credentialsId, @Nullable String regionName, @Nullable String endpoint) {
+        final Key key = new Key(credentialsId, regionName, Jenkins.getInstance().proxy);
+        AmazonSQSClient client = new AmazonSQSClient(new RefreshingCredentialsProvider(key.credentialsId), createClientConfiguration(key));
+        client.setRegion(getRegion(key.regionName));
+        if (endpoint != null) {
+            client.setEndpoint(endpoint);
+        }
+        LOGGER.log(Level.FINE, "Created SQS client for {0}", key);
+        return client;
+    }
+
+    private static ClientConfiguration createClientConfiguration(Key key) {
+        ClientConfiguration clientConfiguration = new ClientConfiguration()
+                .withMaxConnections(MAX_CONNECTIONS)
+                .withTcpKeepAlive(true)
+                .withConnectionMaxIdleMillis(CONNECTION_MAX_IDLE_MILLIS)
+                .withConnectionTTL(CONNECTION_TTL_MILLIS)
+                .withRetryPolicy(RETRY_POLICY);
+        if (key.proxyHost != null) {
+            clientConfiguration.setProxyHost(key.proxyHost);
+            clientConfiguration.setProxyPort(key.proxyPort);
+            clientConfiguration.setProxyUsername(key.proxyUserName);
+            clientConfiguration.setProxyPassword(key.proxyPassword);
+        }
+        return clientConfiguration;
+    }
+
+    private static Region getRegion(String regionName) {
+        if (StringUtils.isNotEmpty(regionName)) {
+            return RegionUtils.getRegion(regionName);
+        } else {
+            return Region.getRegion(Regions.US_EAST_1);
+        }
+    }
+
+    /**
+     * Resolves the Jenkins credentials lazily and periodically, instead of once per ECS call.
+     * Falls back to the default provider chain (e.g. the EC2 instance IAM role) when no credentials are configured.
+     */
+    private static final class RefreshingCredentialsProvider implements AWSCredentialsProvider {
+
+        @CheckForNull
+        private final String credentialsId;
+
+        private final AWSCredentialsProvider defaultProvider = new DefaultAWSCredentialsProviderChain();
+
+        private AWSCredentialsProvider delegate;
+
+        private AWSCredentials resolved;
+
+        private long resolvedAt;
+
+        RefreshingCredentialsProvider(@Nullable String credentialsId) {
+            this.credentialsId = credentialsId;
+        }
+
+        @Override
+        public synchronized AWSCredentials getCredentials() {
+            if (resolved == null || System.currentTimeMillis() - resolvedAt > CREDENTIALS_REFRESH_MILLIS) {
+                resolve();
+            }
+            return resolved;
+        }
+
+        @Override
+        public synchronized void refresh() {
+            resolve();
+        }
+
+        private void resolve() {
+            AmazonWebServicesCredentials credentials = AWSCredentialsHelper.getCredentials(credentialsId, Jenkins.getActiveInstance());
+            if (credentials == null) {
+                // no credentials provided, rely on com.amazonaws.auth.DefaultAWSCredentialsProviderChain
+                // to use IAM Role define at the EC2 instance level ...
+                if (delegate != defaultProvider) {
+                    LOGGER.log(Level.FINE, "No credentials found for id {0}, using the default provider chain", credentialsId);
+                }
+                delegate = defaultProvider;
+            } else {
+                delegate = credentials;
+            }
+            delegate.refresh();
+            resolved = delegate.getCredentials();
+            resolvedAt = System.currentTimeMillis();
+
+            if (LOGGER.isLoggable(Level.FINE) && resolved != null && resolved.getAWSAccessKeyId() != null) {
+                String awsAccessKeyId = resolved.getAWSAccessKeyId();
+                String obfuscatedAccessKeyId = StringUtils.left(awsAccessKeyId, 4) + StringUtils.repeat("*", awsAccessKeyId.length() - (2 * 4)) + StringUtils.right(awsAccessKeyId, 4);
+                LOGGER.log(Level.FINE, "Connect to Amazon ECS with IAM Access Key {0}", obfuscatedAccessKeyId);
+            }
+        }
+    }
+
+    /**
+     * Identifies a client by everything that goes into its configuration.
+     */
+    private static final class Key {
+        private final String credentialsId;
+        private final String regionName;
+        private final String proxyHost;
+        private final int proxyPort;
+        private final String proxyUserName;
+        private final String proxyPassword;
+
+        Key(@Nullable String credentialsId, @Nullable String regionName, @CheckForNull ProxyConfiguration proxy) {
+            this.credentialsId = StringUtils.trimToNull(credentialsId);
+            this.regionName = StringUtils.trimToNull(regionName);
+            if (proxy != null) {
+                this.proxyHost = proxy.name;
+                this.proxyPort = proxy.port;
+                this.proxyUserName = proxy.getUserName();
+                this.proxyPassword = proxy.getPassword();
+            } else {
+                this.proxyHost = null;
+                this.proxyPort = 0;
+                this.proxyUserName = null;
+                this.proxyPassword = null;
+            }
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return ObjectUtils.equals(credentialsId, other.credentialsId)
+                    && ObjectUtils.equals(regionName, other.regionName)
+                    && ObjectUtils.equals(proxyHost, other.proxyHost)
+                    && proxyPort == other.proxyPort
+                    && ObjectUtils.equals(proxyUserName, other.proxyUserName)
+                    && ObjectUtils.equals(proxyPassword, other.proxyPassword);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = ObjectUtils.hashCode(credentialsId);
+            result = 31 * result + ObjectUtils.hashCode(regionName);
+            result = 31 * result + ObjectUtils.hashCode(proxyHost);
+            result = 31 * result + proxyPort;
+            result = 31 * result + ObjectUtils.hashCode(proxyUserName);
+            return result;
+        }
+
+        @Override
+        public String toString() {
+            return "credentialsId=" + credentialsId + ", regionName=" + regionName
+                    + (proxyHost != null ? ", proxy=" + proxyHost + ":" + proxyPort : "");
+        }
+    }
+
+    /**
+     * Releases clients of removed or reconfigured clouds, and of an outdated proxy configuration.
+     */
+    @Extension
+    public static class ConfigurationListener extends SaveableListener {
+        @Override
+        public void onChange(Saveable o, XmlFile file) {
+            if (o instanceof Jenkins || o instanceof ProxyConfiguration) {
+                retainConfiguredClients();
+            }
+        }
+    }
+}
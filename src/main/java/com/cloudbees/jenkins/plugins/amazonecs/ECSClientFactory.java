@@ -0,0 +1,51 @@
+/*
+ * The MIT License
+ *
+ *  Copyright (c) 2015, CloudBees, Inc.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ *
+ */
+
+package com.cloudbees.jenkins.plugins.amazonecs;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.amazonaws.services.ecs.AmazonECS;
+
+/**
+ * Provides the {@link AmazonECS} client an {@link ECSService} talks to. Lets tests and load tests replace Amazon ECS
+ * with a stand-in, see {@link ECSService#setDefaultClientFactory(ECSClientFactory)}.
+ */
+interface ECSClientFactory {
+
+    /**
+     * Shares one real client per credentials, region and proxy settings.
+     */
+    ECSClientFactory SHARED = new ECSClientFactory() {
+        @Override
+        public AmazonECS getClient(@Nullable String credentialsId, @Nullable String regionName) {
+            return ECSClientCache.get(credentialsId, regionName);
+        }
+    };
+
+    @Nonnull
+    AmazonECS getClient(@Nullable String credentialsId, @Nullable String regionName);
+}
@@ -26,13 +26,24 @@
 package com.cloudbees.jenkins.plugins.amazonecs;
 
 import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
 import java.text.MessageFormat;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.concurrent.Callable;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -41,23 +52,32 @@ import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import javax.servlet.ServletException;
 
+import com.amazonaws.services.ecs.model.Task;
 import com.amazonaws.services.ecs.model.TaskDefinition;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.SettableFuture;
+import net.sf.json.JSONObject;
 import org.apache.commons.lang.StringUtils;
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.StaplerResponse;
 
 import com.amazonaws.AmazonClientException;
 import com.amazonaws.regions.Region;
 import com.amazonaws.regions.RegionUtils;
 import com.amazonaws.regions.Regions;
-import com.amazonaws.services.ecs.AmazonECSClient;
+import com.amazonaws.services.ecs.AmazonECS;
 import com.amazonaws.services.ecs.model.ListClustersRequest;
 import com.amazonaws.services.ecs.model.ListClustersResult;
 import com.cloudbees.jenkins.plugins.awscredentials.AWSCredentialsHelper;
 import com.cloudbees.jenkins.plugins.awscredentials.AmazonWebServicesCredentials;
 
+import hudson.AbortException;
 import hudson.Extension;
+import hudson.Util;
+import hudson.model.AbstractDescribableImpl;
 import hudson.model.Computer;
 import hudson.model.Descriptor;
 import hudson.model.Label;
@@ -69,6 +89,7 @@ import hudson.util.FormValidation;
 import hudson.util.ListBoxModel;
 import jenkins.model.Jenkins;
 import jenkins.model.JenkinsLocationConfiguration;
+import jenkins.util.Timer;
 
 /**
  * @author <a href="mailto:nicolas.deloof@gmail.com">Nicolas De Loof</a>
@@ -79,6 +100,20 @@ public class ECSCloud extends Cloud {
 
     private static final int DEFAULT_SLAVE_TIMEOUT = 900;
 
+    /**
+     * Maximum number of tasks a single RunTask call can start.
+     */
+    private static final int MAX_TASKS_PER_RUN_TASK = 10;
+
+    private static final Object NO_TEMPLATE = new Object();
+
+    private static final Random RANDOM = new Random();
+
+    /**
+     * Interval between two checks whether the queued builds still need the slaves being launched.
+     */
+    static long DEMAND_CHECK_MILLIS = Long.getLong(ECSCloud.class.getName() + ".demandCheckMillis", TimeUnit.SECONDS.toMillis(15));
+
     private final List<ECSTaskTemplate> templates;
 
     /**
@@ -89,6 +124,17 @@ public class ECSCloud extends Cloud {
 
     private final String cluster;
 
+    /**
+     * Weight of {@link #cluster} against the {@link #additionalClusters}, 0 for the default of 1.
+     */
+    private int clusterWeight;
+
+    /**
+     * Further clusters slaves are launched into, e.g. to stay below the per-cluster limits of ECS.
+     */
+    @CheckForNull
+    private List<WeightedCluster> additionalClusters;
+
     private String regionName;
 
     /**
@@ -101,7 +147,51 @@ public class ECSCloud extends Cloud {
 
     private int slaveTimoutInSeconds;
 
-    private ECSService ecsService;
+    /**
+     * Maximum number of agents launched at the same time into the cluster, 0 for no limit.
+     */
+    private int maxConcurrentLaunches;
+
+    /**
+     * Interval between two refreshes of the free resources of the cluster while slaves wait for them.
+     */
+    private int capacityRefreshSeconds;
+
+    /**
+     * Start tasks with StartTask on the container instance the capacity snapshot fits them best, instead of letting
+     * RunTask place them.
+     */
+    private boolean targetedPlacement;
+
+    /**
+     * Do not write the slaves of this cloud to disk.
+     *
+     * @see ECSEphemeralSlave
+     */
+    private boolean ephemeralNodes;
+
+    /**
+     * How often a slave whose task stopped for a transient reason before it connected is launched again.
+     */
+    private int taskRelaunches;
+
+    /**
+     * URL of an SQS queue receiving the ECS state change events of the clusters, to read instead of polling ECS.
+     *
+     * @see ECSEventIngester
+     */
+    @CheckForNull
+    private String eventQueueUrl;
+
+    /**
+     * Not persisted: it holds per-cloud caches, e.g. of registered task definitions.
+     */
+    private transient ECSService ecsService;
+
+    /**
+     * Template resolved for each label expression, or {@link #NO_TEMPLATE} if none matches.
+     */
+    private transient ConcurrentMap<String, Object> templatesByLabel = new ConcurrentHashMap<String, Object>();
 
     @DataBoundConstructor
     public ECSCloud(String name, List<ECSTaskTemplate> templates, @Nonnull String credentialsId,
@@ -126,14 +216,33 @@ public class ECSCloud extends Cloud {
         }
     }
 
+    protected Object readResolve() {
+        // older versions persisted the service; drop it so that it is recreated with empty caches
+        ecsService = null;
+        templatesByLabel = new ConcurrentHashMap<String, Object>();
+        return this;
+    }
+
     synchronized ECSService getEcsService() {
         if (ecsService == null) {
             ecsService = new ECSService(credentialsId, regionName);
+            ecsService.setCapacityRefreshSeconds(getCapacityRefreshSeconds());
+            ecsService.setStartedBy(getStartedBy());
         }
         return ecsService;
     }
 
-    AmazonECSClient getAmazonECSClient() {
+    /**
+     * {@code startedBy} value of the tasks of this cloud. ECS allows 36 characters, so it is derived from a digest of
+     * the Jenkins instance and the cloud name, which keeps apart the tasks of other Jenkins instances using the cluster.
+     *
+     * @see ECSOrphanReaper
+     */
+    String getStartedBy() {
+        return "jenkins-" + Util.getDigestOf(Jenkins.getInstance().getLegacyInstanceId() + "/" + name).substring(0, 28);
+    }
+
+    AmazonECS getAmazonECSClient() {
         return getEcsService().getAmazonECSClient();
     }
 
@@ -150,6 +259,80 @@ public class ECSCloud extends Cloud {
         return cluster;
     }
 
+    public int getClusterWeight() {
+        return clusterWeight > 0 ? clusterWeight : 1;
+    }
+
+    @DataBoundSetter
+    public void setClusterWeight(int clusterWeight) {
+        this.clusterWeight = Math.max(0, clusterWeight);
+    }
+
+    @Nonnull
+    public List<WeightedCluster> getAdditionalClusters() {
+        return additionalClusters != null ? additionalClusters : Collections.<WeightedCluster> emptyList();
+    }
+
+    @DataBoundSetter
+    public void setAdditionalClusters(List<WeightedCluster> additionalClusters) {
+        this.additionalClusters = additionalClusters;
+    }
+
+    /**
+     * All clusters of this cloud, starting with {@link #getCluster()}.
+     */
+    List<WeightedCluster> getClusters() {
+        List<WeightedCluster> r = new ArrayList<WeightedCluster>();
+        r.add(new WeightedCluster(cluster, getClusterWeight()));
+        for (WeightedCluster c : getAdditionalClusters()) {
+            if (StringUtils.isNotBlank(c.getCluster())) {
+                r.add(c);
+            }
+        }
+        return r;
+    }
+
+    /**
+     * Picks the cluster to launch the next slave of the template into. EC2 slaves go to the cluster with the most room
+     * for them in its capacity snapshot, scaled by the weight of the cluster. Fargate slaves, and EC2 slaves when no
+     * snapshot shows room, are spread over the clusters by weight.
+     */
+    String chooseCluster(ECSTaskTemplate template) {
+        final List<WeightedCluster> clusters = getClusters();
+        if (clusters.size() == 1) {
+            return cluster;
+        }
+        if (!template.isFargate()) {
+            WeightedCluster best = null;
+            long bestScore = 0;
+            for (WeightedCluster c : clusters) {
+                long score = (long) getEcsService().countFreeSlots(template, c.getCluster()) * c.getWeight();
+                if (score > bestScore) {
+                    best = c;
+                    bestScore = score;
+                }
+            }
+            if (best != null) {
+                return best.getCluster();
+            }
+        }
+        int totalWeight = 0;
+        for (WeightedCluster c : clusters) {
+            totalWeight += c.getWeight();
+        }
+        int pick;
+        synchronized (RANDOM) {
+            pick = RANDOM.nextInt(totalWeight);
+        }
+        for (WeightedCluster c : clusters) {
+            pick -= c.getWeight();
+            if (pick < 0) {
+                return c.getCluster();
+            }
+        }
+        return cluster;
+    }
+
     public String getRegionName() {
         return regionName;
     }
@@ -177,16 +360,24 @@ public class ECSCloud extends Cloud {
         return getTemplate(label) != null;
     }
 
-    private ECSTaskTemplate getTemplate(Label label) {
+    @CheckForNull
+    ECSTaskTemplate getTemplate(Label label) {
         if (label == null) {
             return null;
         }
-        for (ECSTaskTemplate t : getTemplates()) {
-            if (label.matches(t.getLabelSet())) {
-                return t;
+        // templates are only changed by replacing the cloud, which starts over with an empty cache
+        Object template = templatesByLabel.get(label.getExpression());
+        if (template == null) {
+            template = NO_TEMPLATE;
+            for (ECSTaskTemplate t : getTemplates()) {
+                if (label.matches(t.getLabelSet())) {
+                    template = t;
+                    break;
+                }
             }
+            templatesByLabel.put(label.getExpression(), template);
         }
-        return null;
+        return template == NO_TEMPLATE ? null : (ECSTaskTemplate) template;
     }
 
 
@@ -198,11 +389,9 @@ public class ECSCloud extends Cloud {
             List<NodeProvisioner.PlannedNode> r = new ArrayList<NodeProvisioner.PlannedNode>();
             final ECSTaskTemplate template = getTemplate(label);
 
-            for (int i = 1; i <= excessWorkload; i++) {
-				LOGGER.log(Level.INFO, "Will provision {0}, for label: {1}", new Object[]{template.getDisplayName(), label} );
-
-                r.add(new NodeProvisioner.PlannedNode(template.getDisplayName(), Computer.threadPoolForRemoting
-                  .submit(new ProvisioningCallback(template, label)), 1));
+            for (SettableFuture<Node> future : launchSlaves(template, label, excessWorkload)) {
+                LOGGER.log(Level.INFO, "Will provision {0}, for label: {1}", new Object[]{template.getDisplayName(), label} );
+                r.add(new NodeProvisioner.PlannedNode(template.getDisplayName(), future, 1));
             }
             return r;
         } catch (Exception e) {
@@ -211,8 +400,124 @@ public class ECSCloud extends Cloud {
         }
     }
 
-     void deleteTask(String taskArn, String clusterArn) {
-        getEcsService().deleteTask(taskArn, clusterArn);
+    /**
+     * Launches idle slaves for the warm pool of a template, without any queued build waiting for them.
+     *
+     * @return the futures of the slaves, completed once they are online
+     * @see ECSWarmPool
+     */
+    List<SettableFuture<Node>> launchIdle(ECSTaskTemplate template, int count) {
+        LOGGER.log(Level.INFO, "Will provision {0} idle slave(s) of {1}", new Object[]{count, template.getDisplayName()});
+        return launchSlaves(template, null, count);
+    }
+
+    /**
+     * Starts launching slaves of the template in the background.
+     */
+    private List<SettableFuture<Node>> launchSlaves(ECSTaskTemplate template, @Nullable Label label, int count) {
+        List<SettableFuture<Node>> r = new ArrayList<SettableFuture<Node>>();
+        final ECSProvisioningMetrics.TemplateMetrics metrics = getMetrics().forTemplate(template);
+        final long requestedAt = System.currentTimeMillis();
+        final String labelExpression = label == null ? null : label.getExpression();
+
+        // batched templates start up to 10 slaves with a single RunTask call
+        final int batchSize = template.isBatchLaunch() ? MAX_TASKS_PER_RUN_TASK : 1;
+        for (int i = 0; i < count; i += batchSize) {
+            List<SettableFuture<Node>> futures = new ArrayList<SettableFuture<Node>>();
+            for (int j = 0; j < Math.min(batchSize, count - i); j++) {
+                SettableFuture<Node> future = SettableFuture.create();
+                metrics.launching(labelExpression);
+                Futures.addCallback(future, new FutureCallback<Node>() {
+                    @Override
+                    public void onSuccess(Node node) {
+                        metrics.completed(labelExpression);
+                        metrics.record(ECSProvisioningMetrics.Phase.TIME_TO_AGENT, System.currentTimeMillis() - requestedAt);
+                        if (node instanceof ECSSlave && ((ECSSlave) node).getTaskStartedAt() > 0) {
+                            metrics.record(ECSProvisioningMetrics.Phase.ONLINE_WAIT, System.currentTimeMillis() - ((ECSSlave) node).getTaskStartedAt());
+                        }
+                    }
+
+                    @Override
+                    public void onFailure(Throwable t) {
+                        metrics.failed(labelExpression, t);
+                    }
+                });
+                futures.add(future);
+            }
+            r.addAll(futures);
+            Computer.threadPoolForRemoting.submit(new ProvisioningCallback(template, label, futures));
+        }
+        return r;
+    }
+
+    /**
+     * Provisioning metrics of this cloud.
+     */
+    ECSProvisioningMetrics getMetrics() {
+        return ECSProvisioningMetrics.forCloud(name);
+    }
+
+    /**
+     * Provisioning metrics of this cloud as JSON, e.g. to alert on the time it takes to get an agent.
+     */
+    public void doMetrics(StaplerResponse rsp) throws IOException {
+        Jenkins.getInstance().checkPermission(Jenkins.ADMINISTER);
+        rsp.setContentType("application/json;charset=UTF-8");
+        JSONObject json = getMetrics().toJSON();
+        // shared by all clouds using the same account and region
+        json.put("apiThrottles", ECSClientCache.getRateLimiter(credentialsId, regionName).getThrottles());
+        JSONObject warmPools = new JSONObject();
+        for (ECSTaskTemplate template : getTemplates()) {
+            if (template.getMinIdle() > 0) {
+                warmPools.put(StringUtils.defaultIfEmpty(template.getTemplateName(), template.getDisplayName()), ECSWarmPool.toJSON(template));
+            }
+        }
+        json.put("warmPools", warmPools);
+        json.write(rsp.getWriter());
+    }
+
+    /**
+     * Slaves of this cloud launched from the given template.
+     */
+    List<ECSSlave> getSlaves(ECSTaskTemplate template) {
+        List<ECSSlave> r = new ArrayList<ECSSlave>();
+        for (Node node : Jenkins.getInstance().getNodes()) {
+            if (node instanceof ECSSlave) {
+                ECSSlave slave = (ECSSlave) node;
+                if (name.equals(slave.getCloudName()) && isLaunchedFrom(slave, template)) {
+                    r.add(slave);
+                }
+            }
+        }
+        return r;
+    }
+
+    /**
+     * Template a slave of this cloud was launched from, if it is still configured.
+     */
+    @CheckForNull
+    ECSTaskTemplate getTemplate(ECSSlave slave) {
+        for (ECSTaskTemplate t : getTemplates()) {
+            if (isLaunchedFrom(slave, t)) {
+                return t;
+            }
+        }
+        return null;
+    }
+
+    private static boolean isLaunchedFrom(ECSSlave slave, ECSTaskTemplate template) {
+        if (slave.getTemplateName() != null) {
+            return slave.getTemplateName().equals(template.getTemplateName());
+        }
+        // slaves persisted before the template name was recorded only have their label to go by
+        return Util.fixNull(template.getLabel()).trim().equals(slave.getLabelString());
+    }
+
+    /**
+     * Stops the task in the background.
+     */
+    void deleteTask(String taskArn, String clusterArn) {
+        ECSTaskTerminator.get().terminate(getEcsService(), taskArn, clusterArn);
     }
 
     public int getSlaveTimoutInSeconds() {
@@ -223,97 +528,594 @@ public class ECSCloud extends Cloud {
         this.slaveTimoutInSeconds = slaveTimoutInSeconds;
     }
 
+    public int getMaxConcurrentLaunches() {
+        return maxConcurrentLaunches;
+    }
+
+    @DataBoundSetter
+    public void setMaxConcurrentLaunches(int maxConcurrentLaunches) {
+        this.maxConcurrentLaunches = Math.max(0, maxConcurrentLaunches);
+    }
+
+    public int getCapacityRefreshSeconds() {
+        return capacityRefreshSeconds > 0 ? capacityRefreshSeconds : ECSClusterCapacity.DEFAULT_REFRESH_SECONDS;
+    }
+
+    @DataBoundSetter
+    public void setCapacityRefreshSeconds(int capacityRefreshSeconds) {
+        this.capacityRefreshSeconds = capacityRefreshSeconds;
+    }
+
+    public boolean isTargetedPlacement() {
+        return targetedPlacement;
+    }
 
-    private class ProvisioningCallback implements Callable<Node> {
+    @DataBoundSetter
+    public void setTargetedPlacement(boolean targetedPlacement) {
+        this.targetedPlacement = targetedPlacement;
+    }
+
+    public boolean isEphemeralNodes() {
+        return ephemeralNodes;
+    }
+
+    @DataBoundSetter
+    public void setEphemeralNodes(boolean ephemeralNodes) {
+        this.ephemeralNodes = ephemeralNodes;
+    }
+
+    public int getTaskRelaunches() {
+        return taskRelaunches;
+    }
+
+    @DataBoundSetter
+    public void setTaskRelaunches(int taskRelaunches) {
+        this.taskRelaunches = Math.max(0, taskRelaunches);
+    }
+
+    public String getEventQueueUrl() {
+        return eventQueueUrl;
+    }
+
+    @DataBoundSetter
+    public void setEventQueueUrl(String eventQueueUrl) {
+        this.eventQueueUrl = StringUtils.trimToNull(eventQueueUrl);
+    }
+
+
+    /**
+     * Launches the slaves of one or more planned nodes of the same template. Each planned node is completed once its
+     * slave is online.
+     */
+    private class ProvisioningCallback implements Runnable, ECSTaskStateTracker.Listener {
 
         private final ECSTaskTemplate template;
         @CheckForNull
         private Label label;
+        private final List<SettableFuture<Node>> futures;
+        private final ECSProvisioningMetrics.TemplateMetrics metrics;
+        /**
+         * Cluster the slaves are launched into, one of the clusters of the cloud.
+         */
+        private String cluster;
+        /**
+         * How often the slaves were launched before, because their task stopped before they connected.
+         */
+        private final int relaunches;
+
+        public ProvisioningCallback(ECSTaskTemplate template, @Nullable Label label, List<SettableFuture<Node>> futures) {
+            this(template, label, futures, 0);
+        }
 
-        public ProvisioningCallback(ECSTaskTemplate template, @Nullable Label label) {
+        private ProvisioningCallback(ECSTaskTemplate template, @Nullable Label label, List<SettableFuture<Node>> futures, int relaunches) {
             this.template = template;
             this.label = label;
+            // surplus planned nodes are removed before they get a slave
+            this.futures = new ArrayList<SettableFuture<Node>>(futures);
+            this.metrics = getMetrics().forTemplate(template);
+            this.relaunches = relaunches;
         }
 
-        public Node call() throws Exception {
-            final ECSSlave slave;
+        public void run() {
+            try {
+                final Map<ECSSlave, SettableFuture<Node>> slaves;
 
-            Date now = new Date();
-            Date timeout = new Date(now.getTime() + 1000 * slaveTimoutInSeconds);
+                Date now = new Date();
+                Date timeout = new Date(now.getTime() + 1000 * slaveTimoutInSeconds);
 
-            synchronized (cluster) {
-                if (!template.isFargate()){
-                    getEcsService().waitForSufficientClusterResources(timeout, template, cluster);
-                }
+                cluster = chooseCluster(template);
+                LOGGER.log(Level.FINE, "Launching {0} slave(s) of {1} into cluster {2}", new Object[]{futures.size(), template.getDisplayName(), cluster});
 
+                // Launches only wait for each other once the configured parallelism is exhausted. Separate clouds
+                // targeting the same cluster share the cluster limit.
+                final ECSLaunchLimiter templateLimiter = template.getLaunchLimiter();
+                final ECSLaunchLimiter clusterLimiter = ECSLaunchLimiter.forCluster(credentialsId, regionName, cluster);
+                templateLimiter.acquire(template.getMaxConcurrentLaunches(), timeout);
+                try {
+                    clusterLimiter.acquire(maxConcurrentLaunches, timeout);
+                    try {
+                        slaves = launch(timeout);
+                    } finally {
+                        clusterLimiter.release();
+                    }
+                } finally {
+                    templateLimiter.release();
+                }
 
-                String uniq = Long.toHexString(System.nanoTime());
-                slave = new ECSSlave(ECSCloud.this, name + "-" + uniq, template.getRemoteFSRoot(),
-                        template.getLabel(), new JNLPLauncher());
-                slave.setClusterArn(cluster);
-                Jenkins.getInstance().addNode(slave);
-                while (Jenkins.getInstance().getNode(slave.getNodeName()) == null) {
-                    Thread.sleep(1000);
+                scheduleConnectionTimeout(slaves, now, timeout);
+            } catch (Exception e) {
+                for (SettableFuture<Node> future : futures) {
+                    future.setException(e);
                 }
-                LOGGER.log(Level.INFO, "Created Slave: {0}", slave.getNodeName());
+            }
+        }
+
+        /**
+         * Creates the slaves and starts their tasks.
+         *
+         * @return the slaves whose task was started, with their planned node
+         */
+        private Map<ECSSlave, SettableFuture<Node>> launch(Date timeout) throws Exception {
+            if (!cancelSurplus(ECSProvisioningMetrics.Cancellation.BEFORE_LAUNCH)) {
+                return Collections.emptyMap();
+            }
 
+            // with a Fargate fallback, EC2 slaves only wait that long for room in the cluster
+            final ECSTaskTemplate fallback = template.getFargateFallback();
+            final Date capacityTimeout = fallback == null ? timeout
+                    : new Date(Math.min(timeout.getTime(), System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(template.getFargateFallbackSeconds())));
+            boolean fargate = template.isFargate();
+            if (!fargate) {
                 try {
-                    TaskDefinition taskDefinition;
+                    if (!waitForSufficientClusterResources(capacityTimeout, null, null)) {
+                        return Collections.emptyMap();
+                    }
+                } catch (AbortException e) {
+                    if (fallback == null) {
+                        throw e;
+                    }
+                    LOGGER.log(Level.INFO, "No room for {0} in cluster {1}, launching on Fargate", new Object[]{template.getDisplayName(), cluster});
+                    metrics.fargateFallback(futures.size());
+                    fargate = true;
+                }
+            }
 
-                    if (template.getTaskDefinitionOverride() == null) {
-                        taskDefinition = getEcsService().registerTemplate(slave.getCloud(), template);
-                    } else {
-                        LOGGER.log(Level.FINE, "Attempting to find task definition family or ARN: {0}", template.getTaskDefinitionOverride());
+            final Map<ECSSlave, SettableFuture<Node>> slaves = new LinkedHashMap<ECSSlave, SettableFuture<Node>>();
+            try {
+                for (SettableFuture<Node> future : futures) {
+                    final long registrationStartedAt = System.currentTimeMillis();
+                    String uniq = Long.toHexString(System.nanoTime());
+                    final ECSSlave slave = ephemeralNodes
+                            ? new ECSEphemeralSlave(ECSCloud.this, name + "-" + uniq, template.getRemoteFSRoot(), template.getLabel(), new JNLPLauncher())
+                            : new ECSSlave(ECSCloud.this, name + "-" + uniq, template.getRemoteFSRoot(), template.getLabel(), new JNLPLauncher());
+                    slave.setTemplateName(template.getTemplateName());
+                    slave.setClusterArn(cluster);
+                    slave.setPlannedNode(future);
+                    Jenkins.getInstance().addNode(slave);
+                    LOGGER.log(Level.INFO, "Created Slave: {0}", slave.getNodeName());
+                    slaves.put(slave, future);
+                    metrics.record(ECSProvisioningMetrics.Phase.NODE_REGISTRATION, System.currentTimeMillis() - registrationStartedAt);
+                }
+
+                if (fargate) {
+                    final ECSTaskTemplate launchTemplate = template.isFargate() ? template : fallback;
+                    final List<ECSSlave> all = new ArrayList<ECSSlave>(slaves.keySet());
+                    runTasks(slaves, all, launchTemplate, resolveTaskDefinition(launchTemplate, all), null);
+                } else {
+                    final TaskDefinition taskDefinition = resolveTaskDefinition(template, slaves.keySet());
+                    // Reserve the resources of the tasks before starting them, so that concurrent launches do not all
+                    // claim the same free resources. Slaves are started as soon as resources are reserved for them.
+                    final ECSClusterCapacity capacity = ECSClusterCapacity.forCluster(credentialsId, regionName, cluster);
+                    final List<ECSSlave> pending = new ArrayList<ECSSlave>(slaves.keySet());
+                    while (!pending.isEmpty()) {
+                        List<ECSClusterCapacity.Reservation> reservations = new ArrayList<ECSClusterCapacity.Reservation>();
+                        final Set<String> reservedInstances = new HashSet<String>();
+                        ECSClusterCapacity.Reservation reservation;
+                        while (reservations.size() < pending.size()
+                                && (reservation = getEcsService().reserveClusterResources(template, cluster)) != null) {
+                            if (targetedPlacement && !reservedInstances.add(reservation.containerInstanceArn)) {
+                                // StartTask starts one task per listed container instance, the next wave reserves
+                                // this one again
+                                capacity.release(reservation);
+                                break;
+                            }
+                            reservations.add(reservation);
+                        }
+                        if (reservations.isEmpty()) {
+                            try {
+                                waitForSufficientClusterResources(capacityTimeout, slaves, pending);
+                            } catch (AbortException e) {
+                                if (fallback == null) {
+                                    throw e;
+                                }
+                                LOGGER.log(Level.INFO, "No room for {0} more slave(s) of {1} in cluster {2}, launching them on Fargate",
+                                        new Object[]{pending.size(), template.getDisplayName(), cluster});
+                                metrics.fargateFallback(pending.size());
+                                runTasks(slaves, pending, fallback, resolveTaskDefinition(fallback, pending), null);
+                                break;
+                            }
+                            continue;
+                        }
 
-                        taskDefinition = getEcsService().findTaskDefinition(template.getTaskDefinitionOverride());
-                        if (taskDefinition == null) {
-                            throw new RuntimeException("Could not find task definition family or ARN: " + template.getTaskDefinitionOverride());
+                        List<ECSSlave> batch = new ArrayList<ECSSlave>(pending.subList(0, reservations.size()));
+                        pending.removeAll(batch);
+                        List<String> containerInstanceArns = null;
+                        if (targetedPlacement) {
+                            containerInstanceArns = new ArrayList<String>();
+                            for (ECSClusterCapacity.Reservation r : reservations) {
+                                containerInstanceArns.add(r.containerInstanceArn);
+                            }
                         }
+                        int placed = 0;
+                        try {
+                            placed = runTasks(slaves, batch, template, taskDefinition, containerInstanceArns);
+                        } finally {
+                            for (int i = 0; i < reservations.size(); i++) {
+                                if (i < placed) {
+                                    capacity.started(reservations.get(i));
+                                } else {
+                                    capacity.release(reservations.get(i));
+                                }
+                            }
+                        }
+                    }
+                }
+            } catch (Exception ex) {
+                // slaves whose task was already started are kept, the others are removed
+                for (ECSSlave slave : new ArrayList<ECSSlave>(slaves.keySet())) {
+                    if (slave.getTaskArn() == null) {
+                        LOGGER.log(Level.WARNING, "Slave {0} - Cannot create ECS Task", slave.getNodeName());
+                        Jenkins.getInstance().removeNode(slave);
+                        slaves.remove(slave).setException(ex);
+                    }
+                }
+                if (slaves.isEmpty()) {
+                    throw ex;
+                }
+            }
+            return slaves;
+        }
 
-                        LOGGER.log(Level.FINE, "Found task definition: {0}", taskDefinition.getTaskDefinitionArn());
+        private TaskDefinition resolveTaskDefinition(ECSTaskTemplate launchTemplate, Collection<ECSSlave> launched) {
+            final long resolutionStartedAt = System.currentTimeMillis();
+            TaskDefinition taskDefinition;
+
+            if (launchTemplate.getTaskDefinitionOverride() == null) {
+                taskDefinition = getEcsService().registerTemplate(ECSCloud.this, launchTemplate);
+            } else {
+                LOGGER.log(Level.FINE, "Attempting to find task definition family or ARN: {0}", launchTemplate.getTaskDefinitionOverride());
+
+                taskDefinition = getEcsService().findTaskDefinition(launchTemplate.getTaskDefinitionOverride());
+                if (taskDefinition == null) {
+                    throw new RuntimeException("Could not find task definition family or ARN: " + launchTemplate.getTaskDefinitionOverride());
+                }
+
+                LOGGER.log(Level.FINE, "Found task definition: {0}", taskDefinition.getTaskDefinitionArn());
+            }
+            metrics.record(ECSProvisioningMetrics.Phase.TASK_DEFINITION, System.currentTimeMillis() - resolutionStartedAt);
+
+            LOGGER.log(Level.INFO, "Running task definition {0} on slave(s) {1}", new Object[]{taskDefinition.getTaskDefinitionArn(), launched});
+            return taskDefinition;
+        }
+
+        /**
+         * Waits for room in the cluster, and gives up on the slaves queued builds no longer need meanwhile.
+         *
+         * @param slaves the slaves created so far, null if none were created yet
+         * @param pending the created slaves whose task is not started yet, null if none were created yet
+         * @return false if none of the slaves is needed anymore
+         */
+        private boolean waitForSufficientClusterResources(Date timeout, @CheckForNull Map<ECSSlave, SettableFuture<Node>> slaves,
+                @CheckForNull List<ECSSlave> pending) throws InterruptedException, AbortException {
+            final long waitStartedAt = System.currentTimeMillis();
+            try {
+                while (true) {
+                    Date until = new Date(Math.min(timeout.getTime(), System.currentTimeMillis() + DEMAND_CHECK_MILLIS));
+                    if (!until.before(timeout)) {
+                        getEcsService().waitForSufficientClusterResources(timeout, template, cluster);
+                        return true;
                     }
+                    if (getEcsService().awaitClusterResources(until, template, cluster)) {
+                        return true;
+                    }
+                    boolean needed = slaves == null || pending == null
+                            ? cancelSurplus(ECSProvisioningMetrics.Cancellation.CAPACITY_WAIT)
+                            : cancelSurplus(slaves, pending);
+                    if (!needed) {
+                        return false;
+                    }
+                }
+            } finally {
+                metrics.record(ECSProvisioningMetrics.Phase.CAPACITY_WAIT, System.currentTimeMillis() - waitStartedAt);
+            }
+        }
+
+        /**
+         * Number of the given launching slaves no queued build needs, e.g. because the builds were aborted or taken
+         * by other slaves. Must be called while holding the lock on {@link #metrics}, so that concurrent launches of
+         * the template do not all give up on the same surplus.
+         */
+        private int countSurplus(int launching) {
+            if (label == null) {
+                // warm pool slaves are not launched for queued builds
+                return 0;
+            }
+            // launches for other labels of the template, or for its warm pool, do not serve this demand
+            int supply = metrics.getInFlight(label.getExpression());
+            for (Node node : label.getNodes()) {
+                // idle single-use slaves that are done no longer count
+                Computer computer = node.toComputer();
+                if (computer != null && computer.isOnline() && computer.isAcceptingTasks()) {
+                    supply += computer.countIdle();
+                }
+            }
+            int demand = Jenkins.getInstance().getQueue().countBuildableItemsFor(label);
+            return Math.min(launching, Math.max(0, supply - demand));
+        }
 
-                    LOGGER.log(Level.INFO, "Running task definition {0} on slave {1}", new Object[]{taskDefinition.getTaskDefinitionArn(), slave.getNodeName()});
+        /**
+         * Fails the planned nodes no queued build needs, before their slave was created.
+         *
+         * @return false if none of the planned nodes is needed anymore
+         */
+        private boolean cancelSurplus(ECSProvisioningMetrics.Cancellation cancellation) {
+            synchronized (metrics) {
+                for (int surplus = countSurplus(futures.size()); surplus > 0; surplus--) {
+                    SettableFuture<Node> future = futures.remove(futures.size() - 1);
+                    future.setException(new CancellationException("No queued build of " + label + " needs this slave anymore"));
+                    metrics.cancelled(cancellation, template.getCpu(), template.getMemoryConstraint());
+                }
+            }
+            if (futures.isEmpty()) {
+                LOGGER.log(Level.INFO, "Cancelled the launch of slave(s) of {0}, no queued build of {1} needs them", new Object[]{template.getDisplayName(), label});
+                return false;
+            }
+            return true;
+        }
 
-                    String taskArn = getEcsService().runEcsTask(slave, template, cluster, getDockerRunCommand(slave), taskDefinition);
-                    LOGGER.log(Level.INFO, "Slave {0} - Slave Task Started : {1}",
-                            new Object[] { slave.getNodeName(), taskArn });
-                    slave.setTaskArn(taskArn);
-                } catch (Exception ex) {
-                    LOGGER.log(Level.WARNING, "Slave {0} - Cannot create ECS Task");
+        /**
+         * Removes the created slaves whose task is not started yet that no queued build needs.
+         *
+         * @return false if none of the pending slaves is needed anymore
+         */
+        private boolean cancelSurplus(Map<ECSSlave, SettableFuture<Node>> slaves, List<ECSSlave> pending) {
+            final List<ECSSlave> cancelled = new ArrayList<ECSSlave>();
+            synchronized (metrics) {
+                for (int surplus = countSurplus(pending.size()); surplus > 0; surplus--) {
+                    ECSSlave slave = pending.remove(pending.size() - 1);
+                    slave.setPlannedNode(null);
+                    slaves.remove(slave).setException(new CancellationException("No queued build of " + label + " needs slave " + slave.getNodeName() + " anymore"));
+                    metrics.cancelled(ECSProvisioningMetrics.Cancellation.CAPACITY_WAIT, template.getCpu(), template.getMemoryConstraint());
+                    cancelled.add(slave);
+                }
+            }
+            for (ECSSlave slave : cancelled) {
+                LOGGER.log(Level.INFO, "Cancelled the launch of slave {0}, no queued build of {1} needs it", new Object[]{slave.getNodeName(), label});
+                try {
                     Jenkins.getInstance().removeNode(slave);
-                    throw ex;
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Failed to remove slave " + slave.getNodeName(), e);
                 }
             }
+            return !pending.isEmpty();
+        }
+
+        /**
+         * Stops the tasks of the launched slaves no queued build needs before they are online, checking again every
+         * {@link #DEMAND_CHECK_MILLIS} until all of them are online or gone.
+         */
+        private void scheduleSurplusCheck(final Collection<ECSSlave> launched) {
+            if (label == null) {
+                return;
+            }
+            Timer.get().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    final List<ECSSlave> launching = new ArrayList<ECSSlave>();
+                    for (ECSSlave slave : launched) {
+                        if (slave.isLaunching()) {
+                            launching.add(slave);
+                        }
+                    }
+                    if (launching.isEmpty()) {
+                        return;
+                    }
+
+                    final List<ECSSlave> cancelled = new ArrayList<ECSSlave>();
+                    synchronized (metrics) {
+                        for (int surplus = countSurplus(launching.size()); surplus > 0; surplus--) {
+                            ECSSlave slave = launching.remove(launching.size() - 1);
+                            SettableFuture<Node> future = slave.getPlannedNode();
+                            slave.setPlannedNode(null);
+                            if (future != null && future.setException(new CancellationException("No queued build of " + label + " needs slave " + slave.getNodeName() + " anymore"))) {
+                                metrics.cancelled(ECSProvisioningMetrics.Cancellation.AFTER_LAUNCH, template.getCpu(), template.getMemoryConstraint());
+                                cancelled.add(slave);
+                            }
+                        }
+                    }
+                    for (ECSSlave slave : cancelled) {
+                        LOGGER.log(Level.INFO, "Stopping task {0} of slave {1}, no queued build of {2} needs it", new Object[]{slave.getTaskArn(), slave.getNodeName(), label});
+                        try {
+                            slave.terminate();
+                        } catch (InterruptedException e) {
+                            LOGGER.log(Level.WARNING, "Failed to terminate " + slave.getNodeName(), e);
+                        } catch (IOException e) {
+                            LOGGER.log(Level.WARNING, "Failed to terminate " + slave.getNodeName(), e);
+                        }
+                    }
+                    if (!launching.isEmpty()) {
+                        Timer.get().schedule(this, DEMAND_CHECK_MILLIS, TimeUnit.MILLISECONDS);
+                    }
+                }
+            }, DEMAND_CHECK_MILLIS, TimeUnit.MILLISECONDS);
+        }
 
-            // now wait for slave to be online
-            while (timeout.after(new Date())) {
-                if (slave.getComputer() == null) {
-                    throw new IllegalStateException(
-                            "Slave " + slave.getNodeName() + " - Node was deleted, computer is null");
+        /**
+         * Starts the tasks of a batch of slaves, and removes the slaves that could not be started.
+         *
+         * @param containerInstanceArns distinct container instances, one per slave, to start the tasks on with StartTask,
+         *                              or null to let ECS place the tasks. Tasks StartTask could not start fall back to
+         *                              RunTask.
+         * @return the number of tasks started where their resources were reserved, which belong to the first slaves of
+         *         the batch: those started on their container instance, or all started tasks if ECS placed them
+         */
+        private int runTasks(Map<ECSSlave, SettableFuture<Node>> slaves, List<ECSSlave> batch, ECSTaskTemplate launchTemplate,
+                TaskDefinition taskDefinition, @CheckForNull List<String> containerInstanceArns) throws Exception {
+            int started = 0;
+            if (containerInstanceArns != null) {
+                try {
+                    started = startTasks(batch, launchTemplate, taskDefinition, containerInstanceArns);
+                } catch (AmazonClientException e) {
+                    LOGGER.log(Level.WARNING, "Failed to start tasks on container instances " + containerInstanceArns + ", falling back to RunTask", e);
+                } catch (AbortException e) {
+                    LOGGER.log(Level.WARNING, "Failed to start tasks on container instances {0}, falling back to RunTask: {1}", new Object[]{containerInstanceArns, e.getMessage()});
                 }
-                if (slave.getComputer().isOnline()) {
-                    break;
+                metrics.placed(started, batch.size() - started);
+                if (started == batch.size()) {
+                    return started;
                 }
-                LOGGER.log(Level.FINE, "Waiting for slave {0} (ecs task {1}) to connect since {2}.",
-                        new Object[] { slave.getNodeName(), slave.getTaskArn(), now });
-                Thread.sleep(1000);
-            }
-            if (!slave.getComputer().isOnline()) {
-                final String msg = MessageFormat.format("ECS Slave {0} (ecs task {1}) not connected since {2} seconds",
-                        slave.getNodeName(), slave.getTaskArn(), now);
-                LOGGER.log(Level.WARNING, msg);
+            }
+
+            final List<ECSSlave> rest = batch.subList(started, batch.size());
+            final int runStarted = startTasks(rest, launchTemplate, taskDefinition, null);
+            for (ECSSlave slave : rest.subList(runStarted, rest.size())) {
                 Jenkins.getInstance().removeNode(slave);
-                throw new IllegalStateException(msg);
+                slaves.remove(slave).setException(new AbortException("Failed to run slave container " + slave.getNodeName()));
             }
+            if (containerInstanceArns == null) {
+                return started + runStarted;
+            }
+            // tasks of the RunTask fallback end up wherever ECS places them, not on the reserved instances, so their
+            // reservations are released and the next refresh accounts for them instead
+            if (runStarted > 0) {
+                ECSClusterCapacity.forCluster(credentialsId, regionName, cluster).invalidate();
+            }
+            return started;
+        }
+
+        /**
+         * Starts the tasks of the slaves, with RunTask or with StartTask on the given container instances.
+         *
+         * @return the number of started tasks, which belong to the first slaves
+         */
+        private int startTasks(List<ECSSlave> batch, ECSTaskTemplate launchTemplate, TaskDefinition taskDefinition,
+                @CheckForNull List<String> containerInstanceArns) throws Exception {
+            final long runStartedAt = System.currentTimeMillis();
+            if (batch.size() == 1) {
+                ECSSlave slave = batch.get(0);
+                String taskArn;
+                try {
+                    taskArn = getEcsService().runEcsTask(slave, launchTemplate, cluster, getDockerRunCommand(slave), taskDefinition,
+                            containerInstanceArns == null ? null : containerInstanceArns.get(0));
+                } finally {
+                    metrics.record(ECSProvisioningMetrics.Phase.RUN_TASK, System.currentTimeMillis() - runStartedAt);
+                }
+                LOGGER.log(Level.INFO, "Slave {0} - Slave Task Started : {1}",
+                        new Object[] { slave.getNodeName(), taskArn });
+                slave.setTaskArn(taskArn);
+                slave.setTaskStartedAt(System.currentTimeMillis());
+                return 1;
+            }
+
+            // tasks started by one call share their overrides, so the token is only unique per call
+            final String claimToken = UUID.randomUUID().toString();
+            List<Task> tasks;
+            try {
+                tasks = getEcsService().runEcsTasks(batch, launchTemplate, cluster, getClaimUrl(), claimToken, taskDefinition, containerInstanceArns);
+            } finally {
+                metrics.record(ECSProvisioningMetrics.Phase.RUN_TASK, System.currentTimeMillis() - runStartedAt);
+            }
+            final long claimExpiresAt = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(slaveTimoutInSeconds);
+            for (int i = 0; i < tasks.size(); i++) {
+                ECSSlave slave = batch.get(i);
+                String taskArn = tasks.get(i).getTaskArn();
+                LOGGER.log(Level.INFO, "Slave {0} - Slave Task Started : {1}",
+                        new Object[] { slave.getNodeName(), taskArn });
+                slave.setTaskArn(taskArn);
+                slave.setTaskStartedAt(System.currentTimeMillis());
+                slave.setClaimToken(claimToken);
+                ECSAgentClaimAction.register(claimToken, taskArn, slave.getNodeName(), claimExpiresAt);
+            }
+            return tasks.size();
+        }
 
-            LOGGER.log(Level.INFO, "ECS Slave " + slave.getNodeName() + " (ecs task {0}) connected",
-                    slave.getTaskArn());
-            return slave;
+        /**
+         * The planned nodes are completed by {@link ECSSlave#connected()} as soon as their slave is online. Only the
+         * connection timeout has to be scheduled here, and the tasks handed to the {@link ECSTaskStateTracker} in case
+         * they stop first; no thread waits for the slaves.
+         */
+        private void scheduleConnectionTimeout(final Map<ECSSlave, SettableFuture<Node>> slaves, final Date now, Date timeout) {
+            for (ECSSlave slave : slaves.keySet()) {
+                // the slave may have connected before its planned node was known
+                if (slave.getComputer() != null && slave.getComputer().isOnline()) {
+                    slave.connected();
+                } else {
+                    ECSTaskStateTracker.get().track(getEcsService(), slave, this);
+                }
+            }
+            scheduleSurplusCheck(slaves.keySet());
+            Timer.get().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    for (Map.Entry<ECSSlave, SettableFuture<Node>> entry : slaves.entrySet()) {
+                        // the slave may have been replaced by a relaunch
+                        if (entry.getValue().isDone() || !entry.getKey().isLaunching()) {
+                            continue;
+                        }
+                        ECSSlave slave = entry.getKey();
+                        slave.releaseClaim();
+                        final String msg = MessageFormat.format("ECS Slave {0} (ecs task {1}) not connected since {2} seconds",
+                                slave.getNodeName(), slave.getTaskArn(), now);
+                        LOGGER.log(Level.WARNING, msg);
+                        try {
+                            Jenkins.getInstance().removeNode(slave);
+                        } catch (IOException e) {
+                            LOGGER.log(Level.WARNING, "Failed to remove slave " + slave.getNodeName(), e);
+                        }
+                        entry.getValue().setException(new IllegalStateException(msg));
+                    }
+                }
+            }, Math.max(0, timeout.getTime() - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * Fails the planned node of a slave whose task stopped before it connected, or launches a new slave for it if
+         * the task stopped for a transient reason.
+         */
+        @Override
+        public void stopped(ECSSlave slave, String reason) {
+            final SettableFuture<Node> future = slave.getPlannedNode();
+            if (future == null) {
+                return;
+            }
+            // removing the slave would fail its planned node otherwise
+            slave.setPlannedNode(null);
+            try {
+                Jenkins.getInstance().removeNode(slave);
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to remove slave " + slave.getNodeName(), e);
+            }
+
+            final boolean relaunch = relaunches < taskRelaunches && ECSTaskStateTracker.isTransient(reason);
+            metrics.taskStopped(relaunch);
+            if (relaunch) {
+                LOGGER.log(Level.INFO, "Launching a new slave of {0} in place of {1}, attempt {2} of {3}",
+                        new Object[]{template.getDisplayName(), slave.getNodeName(), relaunches + 1, taskRelaunches});
+                Computer.threadPoolForRemoting.submit(new ProvisioningCallback(template, label, Collections.singletonList(future), relaunches + 1));
+            } else {
+                future.setException(new AbortException("ECS task " + slave.getTaskArn() + " of slave " + slave.getNodeName() + " stopped: " + reason));
+            }
         }
     }
 
-    private Collection<String> getDockerRunCommand(ECSSlave slave) {
+    /**
+     * URL of the {@link ECSAgentClaimAction}, reachable from the slave containers.
+     */
+    private String getClaimUrl() {
+        return StringUtils.removeEnd(jenkinsUrl, "/") + "/" + ECSAgentClaimAction.URL_NAME + "/";
+    }
+
+    Collection<String> getDockerRunCommand(ECSSlave slave) {
         Collection<String> command = new ArrayList<String>();
         command.add("-url");
         command.add(jenkinsUrl);
@@ -327,6 +1129,42 @@ public class ECSCloud extends Cloud {
     }
 
 
+    /**
+     * An ECS cluster of a cloud, with the share of the slaves it gets when the capacity of the clusters does not
+     * decide.
+     */
+    public static class WeightedCluster extends AbstractDescribableImpl<WeightedCluster> {
+        private final String cluster;
+        private final int weight;
+
+        @DataBoundConstructor
+        public WeightedCluster(String cluster, int weight) {
+            this.cluster = StringUtils.trimToNull(cluster);
+            this.weight = weight;
+        }
+
+        public String getCluster() {
+            return cluster;
+        }
+
+        public int getWeight() {
+            return weight > 0 ? weight : 1;
+        }
+
+        @Override
+        public String toString() {
+            return "WeightedCluster{" + cluster + ": " + weight + "}";
+        }
+
+        @Extension
+        public static class DescriptorImpl extends Descriptor<WeightedCluster> {
+            @Override
+            public String getDisplayName() {
+                return "weightedCluster";
+            }
+        }
+    }
+
     @Extension
     public static class DescriptorImpl extends Descriptor<Cloud> {
 
@@ -352,7 +1190,7 @@ public class ECSCloud extends Cloud {
         public ListBoxModel doFillClusterItems(@QueryParameter String credentialsId, @QueryParameter String regionName) {
             ECSService ecsService = new ECSService(credentialsId, regionName);
             try {
-                final AmazonECSClient client = ecsService.getAmazonECSClient();
+                final AmazonECS client = ecsService.getAmazonECSClient();
                 final List<String> allClusterArns = new ArrayList<String>();
                 String lastToken = null;
                 do {
@@ -384,6 +1222,22 @@ public class ECSCloud extends Cloud {
             return FormValidation.error("Up to 127 letters (uppercase and lowercase), numbers, hyphens, and underscores are allowed");
         }
 
+        public FormValidation doCheckEventQueueUrl(@QueryParameter String value) {
+            if (StringUtils.isBlank(value)) {
+                return FormValidation.ok();
+            }
+            try {
+                URI uri = new URI(value.trim());
+                if (("https".equals(uri.getScheme()) || "http".equals(uri.getScheme())) && uri.getHost() != null
+                        && uri.getPath() != null && uri.getPath().length() > 1) {
+                    return FormValidation.ok();
+                }
+            } catch (URISyntaxException e) {
+                // reported below
+            }
+            return FormValidation.error("Expected the URL of an SQS queue, like https://sqs.us-east-1.amazonaws.com/123456789012/jenkins-ecs-events");
+        }
+
     }
 
     public static Region getRegion(String regionName) {
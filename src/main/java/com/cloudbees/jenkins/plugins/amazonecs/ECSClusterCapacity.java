@@ -0,0 +1,566 @@
+/*
+ * The MIT License
+ *
+ *  Copyright (c) 2015, CloudBees, Inc.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ *
+ */
+
+package com.cloudbees.jenkins.plugins.amazonecs;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.ecs.model.ContainerInstance;
+import com.amazonaws.services.ecs.model.Resource;
+
+import jenkins.util.Timer;
+
+/**
+ * Free resources of the container instances of one ECS cluster, shared by everything provisioning into it.
+ *
+ * The snapshot is refreshed in the background, at most once per refresh interval and only while someone waits for
+ * resources, so the number of ECS calls does not grow with the number of pending slaves. Waiting provisioners are
+ * woken up after each refresh.
+ *
+ * Failed refreshes are retried with an exponential backoff, and fail the provisioners waiting at that time.
+ *
+ * Launches reserve the resources of their task before starting it. Reserved resources are subtracted from the
+ * snapshot until a refresh taken after the task was started shows them as used, so that concurrent launches do not
+ * all claim the same free resources.
+ */
+final class ECSClusterCapacity {
+
+    private static final Logger LOGGER = Logger.getLogger(ECSClusterCapacity.class.getName());
+
+    static final int DEFAULT_REFRESH_SECONDS = 10;
+
+    /**
+     * Reservations that were neither released nor seen by ECS after this delay are dropped.
+     */
+    static long RESERVATION_TIMEOUT_MILLIS = Long.getLong(ECSClusterCapacity.class.getName() + ".reservationTimeoutMillis", TimeUnit.MINUTES.toMillis(5));
+
+    /**
+     * Snapshots kept up to date by events are still refreshed this often, in case events got lost.
+     */
+    static long EVENT_DRIVEN_REFRESH_MILLIS = Long.getLong(ECSClusterCapacity.class.getName() + ".eventDrivenRefreshMillis", TimeUnit.MINUTES.toMillis(5));
+
+    /**
+     * Upper bound of the delay between retries of a failing refresh.
+     */
+    static long MAX_RETRY_DELAY_MILLIS = Long.getLong(ECSClusterCapacity.class.getName() + ".maxRetryDelayMillis", TimeUnit.MINUTES.toMillis(5));
+
+    private static final ConcurrentMap<String, ECSClusterCapacity> CLUSTERS = new ConcurrentHashMap<String, ECSClusterCapacity>();
+
+    private final String cluster;
+
+    /**
+     * Service used for the next refresh, i.e. the one of the last cloud that waited for resources.
+     */
+    private ECSService service;
+
+    private long refreshIntervalMillis = TimeUnit.SECONDS.toMillis(DEFAULT_REFRESH_SECONDS);
+
+    private List<InstanceResources> instances = Collections.emptyList();
+
+    private long refreshedAt;
+
+    private final List<Reservation> reservations = new ArrayList<Reservation>();
+
+    /**
+     * Whether there is no snapshot yet, or it no longer reflects the cluster, e.g. because ECS failed to place a task
+     * on resources it showed as free.
+     */
+    private boolean stale = true;
+
+    /**
+     * When the next refresh is due, or started if it is running, 0 if none is scheduled.
+     */
+    private long refreshAt;
+
+    /**
+     * Until when the snapshot is kept up to date by events, rather than by polling ECS.
+     *
+     * @see ECSEventIngester
+     */
+    private long eventsFreshUntil;
+
+    private int waiters;
+
+    /**
+     * Number of refreshes that failed in a row, and when and why the last one failed.
+     */
+    private int failures;
+    private long failedAt;
+    @CheckForNull
+    private RuntimeException failure;
+
+    private ECSClusterCapacity(String cluster) {
+        this.cluster = cluster;
+    }
+
+    @Nonnull
+    static ECSClusterCapacity forCluster(String credentialsId, String regionName, String cluster) {
+        final String key = ECSClientCache.getClusterKey(credentialsId, regionName, cluster);
+        ECSClusterCapacity capacity = CLUSTERS.get(key);
+        if (capacity == null) {
+            ECSClusterCapacity newCapacity = new ECSClusterCapacity(cluster);
+            capacity = CLUSTERS.putIfAbsent(key, newCapacity);
+            if (capacity == null) {
+                capacity = newCapacity;
+            }
+        }
+        return capacity;
+    }
+
+    /**
+     * Waits until the snapshot shows a container instance with enough free cpu and memory.
+     *
+     * @return false if the timeout expired first
+     * @throws AmazonClientException if a refresh failed while waiting
+     */
+    synchronized boolean awaitResources(ECSService service, int cpu, int memory, Date timeout, int refreshSeconds) throws InterruptedException {
+        this.service = service;
+        this.refreshIntervalMillis = TimeUnit.SECONDS.toMillis(refreshSeconds > 0 ? refreshSeconds : DEFAULT_REFRESH_SECONDS);
+        final long waitStartedAt = System.currentTimeMillis();
+        waiters++;
+        try {
+            while (findInstance(cpu, memory, false) == null) {
+                if (failure != null && failedAt >= waitStartedAt) {
+                    throw new AmazonClientException("Failed to refresh the free resources of cluster " + cluster, failure);
+                }
+                scheduleRefresh();
+                long remaining = timeout.getTime() - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return false;
+                }
+                wait(remaining);
+            }
+            return true;
+        } finally {
+            waiters--;
+        }
+    }
+
+    /**
+     * Whether the current snapshot, minus the reserved resources, shows a container instance with enough free cpu
+     * and memory.
+     */
+    synchronized boolean hasResources(int cpu, int memory) {
+        return findInstance(cpu, memory, false) != null;
+    }
+
+    /**
+     * Reserves cpu and memory for a task about to be started, on the container instance with the least resources left
+     * that still fits the task, so that tasks started on the reserved instance pack the cluster densely.
+     *
+     * @return null if no container instance has enough unreserved resources
+     */
+    @CheckForNull
+    synchronized Reservation reserve(int cpu, int memory) {
+        InstanceResources instance = findInstance(cpu, memory, true);
+        if (instance == null) {
+            return null;
+        }
+        Reservation reservation = new Reservation(instance.containerInstanceArn, cpu, memory);
+        reservations.add(reservation);
+        LOGGER.log(Level.FINE, "Reserved {0} on cluster {1}", new Object[]{reservation, cluster});
+        return reservation;
+    }
+
+    /**
+     * Records that the task of the reservation was started, so that the reservation ends with the next refresh.
+     */
+    synchronized void started(Reservation reservation) {
+        reservation.startedAt = System.currentTimeMillis();
+    }
+
+    /**
+     * Gives the reserved resources back, e.g. because the task could not be started.
+     */
+    synchronized void release(Reservation reservation) {
+        if (reservations.remove(reservation)) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Number of tasks of the given size the current snapshot, minus the reserved resources, still has room for. Does
+     * not call ECS, but schedules a refresh of an outdated snapshot.
+     *
+     * @return 0 if there is no snapshot yet
+     */
+    synchronized int countFreeSlots(ECSService service, int cpu, int memory, int refreshSeconds) {
+        if (this.service == null) {
+            this.service = service;
+            this.refreshIntervalMillis = TimeUnit.SECONDS.toMillis(refreshSeconds > 0 ? refreshSeconds : DEFAULT_REFRESH_SECONDS);
+        }
+        if (stale || refreshedAt + refreshIntervalMillis < System.currentTimeMillis()) {
+            scheduleRefresh();
+        }
+        if (stale) {
+            return 0;
+        }
+        expireReservations();
+        final Map<String, int[]> reserved = getReservedResources();
+        int slots = 0;
+        for (InstanceResources instance : instances) {
+            int[] resources = reserved.get(instance.containerInstanceArn);
+            int freeCpu = instance.cpu - (resources == null ? 0 : resources[0]);
+            int freeMemory = instance.memory - (resources == null ? 0 : resources[1]);
+            if (freeMemory >= memory && freeCpu >= cpu) {
+                // a task without cpu or memory limit counts once per instance
+                int fit = 1;
+                if (memory > 0) {
+                    fit = freeMemory / memory;
+                }
+                if (cpu > 0) {
+                    fit = memory > 0 ? Math.min(fit, freeCpu / cpu) : freeCpu / cpu;
+                }
+                slots += fit;
+            }
+        }
+        return slots;
+    }
+
+    synchronized int getReservationCount() {
+        return reservations.size();
+    }
+
+    /**
+     * @param bestFit whether to look for the fitting instance with the least resources left, rather than any
+     */
+    @CheckForNull
+    private InstanceResources findInstance(int cpu, int memory, boolean bestFit) {
+        if (stale) {
+            return null;
+        }
+        expireReservations();
+        if (reservations.isEmpty() && !bestFit) {
+            for (InstanceResources instance : instances) {
+                if (instance.memory >= memory && instance.cpu >= cpu) {
+                    return instance;
+                }
+            }
+            return null;
+        }
+
+        // sum up the reservations once, instead of once per instance
+        final Map<String, int[]> reserved = getReservedResources();
+        InstanceResources best = null;
+        long bestLeft = Long.MAX_VALUE;
+        for (InstanceResources instance : instances) {
+            int[] resources = reserved.get(instance.containerInstanceArn);
+            int freeCpu = instance.cpu - (resources == null ? 0 : resources[0]);
+            int freeMemory = instance.memory - (resources == null ? 0 : resources[1]);
+            if (freeMemory >= memory && freeCpu >= cpu) {
+                if (!bestFit) {
+                    return instance;
+                }
+                // memory is the scarcer resource for slaves, cpu only breaks ties
+                long left = (long) (freeMemory - memory) << 32 | (freeCpu - cpu);
+                if (left < bestLeft) {
+                    best = instance;
+                    bestLeft = left;
+                }
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Reserved cpu and memory, by container instance.
+     */
+    private Map<String, int[]> getReservedResources() {
+        final Map<String, int[]> reserved = new HashMap<String, int[]>();
+        for (Reservation reservation : reservations) {
+            int[] resources = reserved.get(reservation.containerInstanceArn);
+            if (resources == null) {
+                resources = new int[2];
+                reserved.put(reservation.containerInstanceArn, resources);
+            }
+            resources[0] += reservation.cpu;
+            resources[1] += reservation.memory;
+        }
+        return reserved;
+    }
+
+    private void expireReservations() {
+        long expiredBefore = System.currentTimeMillis() - RESERVATION_TIMEOUT_MILLIS;
+        for (Iterator<Reservation> it = reservations.iterator(); it.hasNext(); ) {
+            Reservation reservation = it.next();
+            if (reservation.createdAt < expiredBefore) {
+                LOGGER.log(Level.FINE, "Reservation {0} on cluster {1} expired", new Object[]{reservation, cluster});
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Records that the event stream of the cluster was read successfully, which defers polling ECS until the given
+     * time.
+     */
+    synchronized void eventsReceived(long freshUntil) {
+        eventsFreshUntil = Math.max(eventsFreshUntil, freshUntil);
+    }
+
+    /**
+     * Whether the event stream of the cluster currently keeps the snapshot up to date.
+     */
+    synchronized boolean isEventDriven() {
+        return eventsFreshUntil > System.currentTimeMillis();
+    }
+
+    /**
+     * Applies the remaining resources of one container instance, as reported by a state change event. Events older
+     * than what the snapshot shows are ignored. Reservations of tasks started on the instance before the change are
+     * dropped, since the event accounts for them.
+     *
+     * @param active whether the instance still takes tasks
+     */
+    synchronized void update(InstanceResources resources, boolean active, long changedAt) {
+        if (stale) {
+            // without a complete snapshot to update, the next refresh has to catch up
+            return;
+        }
+        final List<InstanceResources> updated = new ArrayList<InstanceResources>(instances.size() + 1);
+        for (InstanceResources instance : instances) {
+            if (instance.containerInstanceArn.equals(resources.containerInstanceArn)) {
+                if (instance.version > resources.version) {
+                    LOGGER.log(Level.FINE, "Ignoring outdated event for {0}", resources);
+                    return;
+                }
+            } else {
+                updated.add(instance);
+            }
+        }
+        if (active) {
+            updated.add(resources);
+        }
+        instances = updated;
+        for (Iterator<Reservation> it = reservations.iterator(); it.hasNext(); ) {
+            Reservation reservation = it.next();
+            if (reservation.containerInstanceArn.equals(resources.containerInstanceArn)
+                    && reservation.startedAt > 0 && reservation.startedAt < changedAt) {
+                it.remove();
+            }
+        }
+        LOGGER.log(Level.FINE, "Updated cluster {0} from an event: {1}", new Object[]{cluster, resources});
+        notifyAll();
+    }
+
+    /**
+     * Marks the snapshot as outdated, so that nobody relies on it before the next refresh.
+     */
+    synchronized void invalidate() {
+        stale = true;
+        if (waiters > 0) {
+            scheduleRefresh();
+        }
+    }
+
+    private void scheduleRefresh() {
+        if (service == null) {
+            return;
+        }
+        // An outdated snapshot is refreshed right away, an accurate one that is just too full only once per interval,
+        // or once the events that keep it up to date stop coming.
+        long next = refreshedAt + refreshIntervalMillis;
+        if (isEventDriven()) {
+            next = Math.max(next, Math.min(eventsFreshUntil, refreshedAt + EVENT_DRIVEN_REFRESH_MILLIS));
+        }
+        if (stale) {
+            next = 0;
+        }
+        if (failures > 0) {
+            next = Math.max(next, failedAt + getRetryDelayMillis());
+        }
+        final long now = System.currentTimeMillis();
+        final long at = Math.max(next, now);
+        // a refresh that is running or due earlier will do, a later one is superseded, e.g. after an invalidation
+        if (refreshAt != 0 && refreshAt <= at) {
+            return;
+        }
+        refreshAt = at;
+        final ECSService refreshService = service;
+        Timer.get().schedule(new Runnable() {
+            @Override
+            public void run() {
+                refreshUnlessEventDriven(refreshService, at);
+            }
+        }, at - now, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Doubles the refresh interval with each failed refresh, up to {@link #MAX_RETRY_DELAY_MILLIS}.
+     */
+    synchronized long getRetryDelayMillis() {
+        if (failures == 0) {
+            return 0;
+        }
+        long delay = refreshIntervalMillis << Math.min(failures - 1, 20);
+        return Math.min(delay, MAX_RETRY_DELAY_MILLIS);
+    }
+
+    private void refreshUnlessEventDriven(ECSService refreshService, long at) {
+        synchronized (this) {
+            if (refreshAt != at) {
+                // superseded by an earlier refresh
+                return;
+            }
+            if (!stale && isEventDriven() && refreshedAt + EVENT_DRIVEN_REFRESH_MILLIS > System.currentTimeMillis()) {
+                refreshAt = 0;
+                if (waiters > 0) {
+                    scheduleRefresh();
+                }
+                return;
+            }
+        }
+        refresh(refreshService);
+    }
+
+    private void refresh(ECSService refreshService) {
+        final long startedAt = System.currentTimeMillis();
+        List<InstanceResources> snapshot = null;
+        RuntimeException error = null;
+        try {
+            List<InstanceResources> resources = new ArrayList<InstanceResources>();
+            for (ContainerInstance instance : refreshService.describeContainerInstances(cluster)) {
+                InstanceResources instanceResources = InstanceResources.of(instance);
+                if (instanceResources != null) {
+                    resources.add(instanceResources);
+                }
+            }
+            snapshot = resources;
+            LOGGER.log(Level.FINE, "Cluster {0} has {1} active instances: {2}", new Object[]{cluster, snapshot.size(), snapshot});
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Failed to refresh the free resources of cluster " + cluster, e);
+            error = e;
+        } finally {
+            synchronized (this) {
+                if (snapshot == null) {
+                    failures++;
+                    failedAt = System.currentTimeMillis();
+                    failure = error;
+                } else {
+                    failures = 0;
+                    failure = null;
+                    instances = snapshot;
+                    refreshedAt = System.currentTimeMillis();
+                    stale = false;
+                    // tasks started before this refresh are accounted for by ECS now
+                    for (Iterator<Reservation> it = reservations.iterator(); it.hasNext(); ) {
+                        Reservation reservation = it.next();
+                        if (reservation.startedAt > 0 && reservation.startedAt < startedAt) {
+                            it.remove();
+                        }
+                    }
+                }
+                refreshAt = 0;
+                if (waiters > 0) {
+                    scheduleRefresh();
+                }
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Resources claimed by a launch on a container instance, until ECS reports them as used.
+     */
+    static final class Reservation {
+        final String containerInstanceArn;
+        final int cpu;
+        final int memory;
+        final long createdAt = System.currentTimeMillis();
+        long startedAt;
+
+        Reservation(String containerInstanceArn, int cpu, int memory) {
+            this.containerInstanceArn = containerInstanceArn;
+            this.cpu = cpu;
+            this.memory = memory;
+        }
+
+        @Override
+        public String toString() {
+            return "Reservation{" + containerInstanceArn + ", cpu=" + cpu + ", memory=" + memory + "}";
+        }
+    }
+
+    /**
+     * Remaining resources of one container instance.
+     */
+    static final class InstanceResources {
+        final String containerInstanceArn;
+        final int cpu;
+        final int memory;
+        /**
+         * Version ECS increments with each change of the instance, to order state change events.
+         */
+        final long version;
+
+        InstanceResources(String containerInstanceArn, int cpu, int memory, long version) {
+            this.containerInstanceArn = containerInstanceArn;
+            this.cpu = cpu;
+            this.memory = memory;
+            this.version = version;
+        }
+
+        /**
+         * @return null if ECS did not report the remaining cpu or memory of the instance
+         */
+        static InstanceResources of(ContainerInstance instance) {
+            Integer cpu = null;
+            Integer memory = null;
+            for (Resource resource : instance.getRemainingResources()) {
+                if ("MEMORY".equals(resource.getName())) {
+                    memory = resource.getIntegerValue();
+                } else if ("CPU".equals(resource.getName())) {
+                    cpu = resource.getIntegerValue();
+                }
+            }
+            if (cpu == null || memory == null) {
+                LOGGER.log(Level.FINE, "Instance {0} does not report its remaining cpu and memory: {1}", new Object[]{instance.getContainerInstanceArn(), instance.getRemainingResources()});
+                return null;
+            }
+            return new InstanceResources(instance.getContainerInstanceArn(), cpu, memory,
+                    instance.getVersion() != null ? instance.getVersion() : 0);
+        }
+
+        @Override
+        public String toString() {
+            return containerInstanceArn + "{cpu=" + cpu + ", memory=" + memory + "}";
+        }
+    }
+}
@@ -25,27 +25,46 @@
 
 package com.cloudbees.jenkins.plugins.amazonecs;
 
+import hudson.Extension;
+import hudson.model.Computer;
 import hudson.model.Executor;
 import hudson.model.Queue;
+import hudson.model.TaskListener;
+import hudson.slaves.ComputerListener;
 import hudson.slaves.AbstractCloudComputer;
 import hudson.slaves.AbstractCloudSlave;
 
 import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * Amazon EC2 Container Service implementation of {@link hudson.model.Computer}
  *
- * This Computer should only handle a single task and then be shutdown.
+ * This Computer handles a single task and is then shutdown, unless its template lets it run several builds.
  *
  * @author <a href="mailto:nicolas.deloof@gmail.com">Nicolas De Loof</a>
  */
 public class ECSComputer extends AbstractCloudComputer {
     private static final Logger LOGGER = Logger.getLogger(ECSComputer.class.getName());
 
+    /**
+     * The slave this computer was created for; {@link #getNode()} no longer returns it once it is removed.
+     */
+    private final ECSSlave slave;
+
+    private final AtomicInteger acceptedTasks = new AtomicInteger();
+
     public ECSComputer(ECSSlave slave) {
         super(slave);
+        this.slave = slave;
+    }
+
+    @Override
+    protected void onRemoved() {
+        super.onRemoved();
+        slave.removed();
     }
 
     @Override
@@ -53,10 +72,17 @@ public class ECSComputer extends AbstractCloudComputer {
         super.taskAccepted(executor, task);
 
         LOGGER.log(Level.FINE, "Computer {0} taskAccepted", this);
-        
-        // Now that we have a task, we want to make sure to tell Jenkins
-        // that this computer is no longer accepting any additional tasks.
-        setAcceptingTasks(false);
+
+        // Once this computer has as many tasks as its template allows, we want to make
+        // sure to tell Jenkins that it is no longer accepting any additional tasks.
+        ECSTaskTemplate template = slave.getTemplate();
+        int maxBuilds = template != null ? template.getMaxBuilds() : 1;
+        if (acceptedTasks.incrementAndGet() >= maxBuilds) {
+            setAcceptingTasks(false);
+        }
+
+        // the slave may come from a warm pool, which has to replace it
+        ECSWarmPool.taskAccepted(slave);
     }
 
     @Override
@@ -64,8 +90,8 @@ public class ECSComputer extends AbstractCloudComputer {
         super.taskCompleted(executor, task, durationMS);
         
         LOGGER.log(Level.FINE, "Computer {0} taskCompleted", this);
-        
-        terminate();
+
+        terminateIfDone();
     }
 
     @Override
@@ -73,14 +99,20 @@ public class ECSComputer extends AbstractCloudComputer {
         super.taskCompletedWithProblems(executor, task, durationMS, problems);
         
         LOGGER.log(Level.FINE, "Computer {0} taskCompletedWithProblems", this);
-        
-        terminate();
+
+        terminateIfDone();
     }
 
     /**
-     * Computer is terminated after build completion so we enforce it will only be used once.
+     * Computer is terminated after its last build so we enforce it will only be used as often as its template
+     * allows. It waits for the next build otherwise, until the retention strategy terminates it for being idle.
      */
-    private void terminate() {
+    private void terminateIfDone() {
+        if (isAcceptingTasks()) {
+            LOGGER.log(Level.FINE, "Computer {0} ran {1} build(s), keeping it for the next one", new Object[]{this, acceptedTasks.get()});
+            return;
+        }
+
         LOGGER.log(Level.INFO, "Attempting to terminate the node for computer: {0}", this);
         
         // The task has been completed, so we want to make sure to tell Jenkins
@@ -99,4 +131,17 @@ public class ECSComputer extends AbstractCloudComputer {
             LOGGER.log(Level.WARNING, "There is no node for computer: {0}", this);
         }
     }
+
+    /**
+     * Completes the planned node of a slave as soon as it is online, instead of polling for it.
+     */
+    @Extension
+    public static class OnlineListener extends ComputerListener {
+        @Override
+        public void onOnline(Computer c, TaskListener listener) {
+            if (c instanceof ECSComputer) {
+                ((ECSComputer) c).slave.connected();
+            }
+        }
+    }
 }
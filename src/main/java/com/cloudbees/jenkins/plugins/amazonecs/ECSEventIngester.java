@@ -0,0 +1,317 @@
+/*
+ * The MIT License
+ *
+ *  Copyright (c) 2015, CloudBees, Inc.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ *
+ */
+
+package com.cloudbees.jenkins.plugins.amazonecs;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.CheckForNull;
+import javax.xml.bind.DatatypeConverter;
+
+import org.apache.commons.lang.ObjectUtils;
+import org.apache.commons.lang.StringUtils;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.ecs.model.Container;
+import com.amazonaws.services.ecs.model.Task;
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.amazonaws.services.sqs.model.ReceiveMessageResult;
+
+import hudson.Extension;
+import hudson.model.Computer;
+import hudson.model.PeriodicWork;
+import hudson.slaves.Cloud;
+import jenkins.model.Jenkins;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+/**
+ * Reads the ECS task and container instance state change events of the clouds that have an event queue, e.g. an SQS
+ * queue EventBridge sends the events of their clusters to.
+ *
+ * Container instance events update the capacity snapshot of their cluster, and stopped task events fail the slaves
+ * launched for them right away. As long as events of a cluster keep coming, {@link ECSClusterCapacity} and
+ * {@link ECSTaskStateTracker} do not poll ECS for it; once none came for {@link #STALE_AFTER_MILLIS}, e.g. because
+ * the queue cannot be read or the rule sending the events is wrong, they poll again.
+ *
+ * Queues outside of AWS, e.g. a local SQS-compatible service, are reached at the host of their URL.
+ */
+@Extension
+public class ECSEventIngester extends PeriodicWork {
+
+    private static final Logger LOGGER = Logger.getLogger(ECSEventIngester.class.getName());
+
+    static long STALE_AFTER_MILLIS = Long.getLong(ECSEventIngester.class.getName() + ".staleAfterMillis", TimeUnit.MINUTES.toMillis(1));
+
+    /**
+     * Long polling wait of each receive call, the longest SQS allows.
+     */
+    private static final int WAIT_TIME_SECONDS = 20;
+
+    private static final int MAX_MESSAGES = 10;
+
+    private static final long RETRY_DELAY_MILLIS = TimeUnit.SECONDS.toMillis(5);
+
+    /**
+     * Readers of the event queues, by cloud name.
+     */
+    private final Map<String, Reader> readers = new HashMap<String, Reader>();
+
+    /**
+     * Queue URLs no reader could be started for, by cloud name, so that the failure is only logged once.
+     */
+    private final Map<String, String> failedQueueUrls = new HashMap<String, String>();
+
+    @Override
+    public long getRecurrencePeriod() {
+        return TimeUnit.SECONDS.toMillis(30);
+    }
+
+    @Override
+    public long getInitialDelay() {
+        return TimeUnit.SECONDS.toMillis(10);
+    }
+
+    /**
+     * Starts and stops the readers to match the configured clouds.
+     */
+    @Override
+    protected synchronized void doRun() {
+        final Map<String, ECSCloud> clouds = new HashMap<String, ECSCloud>();
+        for (Cloud cloud : Jenkins.getInstance().clouds) {
+            if (cloud instanceof ECSCloud && StringUtils.isNotBlank(((ECSCloud) cloud).getEventQueueUrl())) {
+                clouds.put(cloud.name, (ECSCloud) cloud);
+            }
+        }
+
+        for (String name : new ArrayList<String>(readers.keySet())) {
+            Reader reader = readers.get(name);
+            ECSCloud cloud = clouds.get(name);
+            if (cloud != null && reader.readsFor(cloud)) {
+                reader.cloud = cloud;
+            } else {
+                LOGGER.log(Level.INFO, "Stop reading events from {0}", reader.queueUrl);
+                reader.stopped = true;
+                readers.remove(name);
+            }
+        }
+        for (ECSCloud cloud : clouds.values()) {
+            if (!readers.containsKey(cloud.name)) {
+                final Reader reader;
+                try {
+                    reader = new Reader(cloud);
+                } catch (RuntimeException e) {
+                    // e.g. a malformed queue URL, which must not keep the other clouds from reading their events
+                    Level level = cloud.getEventQueueUrl().equals(failedQueueUrls.put(cloud.name, cloud.getEventQueueUrl())) ? Level.FINE : Level.WARNING;
+                    LOGGER.log(level, "Cannot read events of cloud " + cloud.name + " from " + cloud.getEventQueueUrl(), e);
+                    continue;
+                }
+                failedQueueUrls.remove(cloud.name);
+                LOGGER.log(Level.INFO, "Start reading events of cloud {0} from {1}", new Object[]{cloud.name, reader.queueUrl});
+                readers.put(cloud.name, reader);
+                Computer.threadPoolForRemoting.submit(reader);
+            }
+        }
+        failedQueueUrls.keySet().retainAll(clouds.keySet());
+    }
+
+    /**
+     * Reads the event queue of one cloud, until stopped.
+     */
+    private static final class Reader implements Runnable {
+        final String queueUrl;
+        final String credentialsId;
+        final String regionName;
+        final AmazonSQS sqs;
+        volatile ECSCloud cloud;
+        volatile boolean stopped;
+
+        Reader(ECSCloud cloud) {
+            this.cloud = cloud;
+            this.queueUrl = cloud.getEventQueueUrl().trim();
+            this.credentialsId = cloud.getCredentialsId();
+            this.regionName = cloud.getRegionName();
+            this.sqs = ECSClientCache.createSqsClient(credentialsId, regionName, getEndpoint(queueUrl));
+        }
+
+        boolean readsFor(ECSCloud cloud) {
+            return queueUrl.equals(cloud.getEventQueueUrl().trim())
+                    && ObjectUtils.equals(credentialsId, cloud.getCredentialsId())
+                    && ObjectUtils.equals(regionName, cloud.getRegionName());
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!stopped) {
+                    try {
+                        read();
+                    } catch (AmazonClientException e) {
+                        LOGGER.log(Level.WARNING, "Failed to read events from " + queueUrl + ", retrying in " + RETRY_DELAY_MILLIS + " ms", e);
+                        Thread.sleep(RETRY_DELAY_MILLIS);
+                    }
+                }
+            } catch (InterruptedException e) {
+                LOGGER.log(Level.INFO, "Interrupted while reading events from {0}", queueUrl);
+            } finally {
+                sqs.shutdown();
+            }
+        }
+
+        private void read() {
+            final ReceiveMessageResult result = sqs.receiveMessage(new ReceiveMessageRequest(queueUrl)
+                    .withMaxNumberOfMessages(MAX_MESSAGES)
+                    .withWaitTimeSeconds(WAIT_TIME_SECONDS));
+            final ECSCloud cloud = this.cloud;
+            if (result.getMessages().isEmpty()) {
+                return;
+            }
+
+            final List<DeleteMessageBatchRequestEntry> handled = new ArrayList<DeleteMessageBatchRequestEntry>();
+            for (Message message : result.getMessages()) {
+                try {
+                    handle(cloud, message.getBody());
+                } catch (RuntimeException e) {
+                    // a malformed event would come back forever otherwise
+                    LOGGER.log(Level.WARNING, "Dropping unreadable event " + message.getMessageId() + " from " + queueUrl, e);
+                }
+                handled.add(new DeleteMessageBatchRequestEntry(message.getMessageId(), message.getReceiptHandle()));
+            }
+            sqs.deleteMessageBatch(queueUrl, handled);
+        }
+    }
+
+    static void handle(ECSCloud cloud, String body) {
+        JSONObject event = JSONObject.fromObject(body);
+        if (!event.has("detail") && event.has("Message")) {
+            // delivered through SNS
+            event = JSONObject.fromObject(event.getString("Message"));
+        }
+        final String type = event.optString("detail-type");
+        final JSONObject detail = event.optJSONObject("detail");
+        if (detail == null) {
+            LOGGER.log(Level.FINE, "Ignoring event without detail: {0}", body);
+            return;
+        }
+        final String cluster = findCluster(cloud, detail.optString("clusterArn"));
+        if (cluster == null) {
+            LOGGER.log(Level.FINE, "Ignoring event of another cluster: {0}", detail.optString("clusterArn"));
+            return;
+        }
+
+        if ("ECS Task State Change".equals(type) || "ECS Container Instance State Change".equals(type)) {
+            // A readable queue does not prove that the events of the cluster reach it, e.g. with a wrong rule. Only
+            // the events themselves defer polling.
+            ECSClusterCapacity.forCluster(cloud.getCredentialsId(), cloud.getRegionName(), cluster).eventsReceived(System.currentTimeMillis() + STALE_AFTER_MILLIS);
+        }
+        if ("ECS Task State Change".equals(type)) {
+            if ("STOPPED".equals(detail.optString("lastStatus"))) {
+                ECSTaskStateTracker.get().taskStopped(detail.getString("taskArn"), ECSTaskStateTracker.getReason(toTask(detail)));
+            }
+        } else if ("ECS Container Instance State Change".equals(type)) {
+            int cpu = 0;
+            int memory = 0;
+            JSONArray resources = detail.optJSONArray("remainingResources");
+            if (resources == null) {
+                return;
+            }
+            for (int i = 0; i < resources.size(); i++) {
+                JSONObject resource = resources.getJSONObject(i);
+                if ("CPU".equals(resource.optString("name"))) {
+                    cpu = resource.optInt("integerValue");
+                } else if ("MEMORY".equals(resource.optString("name"))) {
+                    memory = resource.optInt("integerValue");
+                }
+            }
+            ECSClusterCapacity.forCluster(cloud.getCredentialsId(), cloud.getRegionName(), cluster).update(
+                    new ECSClusterCapacity.InstanceResources(detail.getString("containerInstanceArn"), cpu, memory, detail.optLong("version")),
+                    "ACTIVE".equals(detail.optString("status")), getTime(event));
+        } else {
+            LOGGER.log(Level.FINE, "Ignoring event of type {0}", type);
+        }
+    }
+
+    /**
+     * The cluster of the cloud an event is about, as configured in the cloud, i.e. by name or ARN.
+     */
+    @CheckForNull
+    private static String findCluster(ECSCloud cloud, String clusterArn) {
+        for (ECSCloud.WeightedCluster cluster : cloud.getClusters()) {
+            if (clusterArn.equals(cluster.getCluster()) || clusterArn.endsWith(":cluster/" + cluster.getCluster())) {
+                return cluster.getCluster();
+            }
+        }
+        return null;
+    }
+
+    private static Task toTask(JSONObject detail) {
+        Task task = new Task().withTaskArn(detail.getString("taskArn"))
+                .withStoppedReason(StringUtils.trimToNull(detail.optString("stoppedReason")));
+        JSONArray containers = detail.optJSONArray("containers");
+        if (containers != null) {
+            for (int i = 0; i < containers.size(); i++) {
+                JSONObject container = containers.getJSONObject(i);
+                task.withContainers(new Container()
+                        .withName(container.optString("name"))
+                        .withReason(StringUtils.trimToNull(container.optString("reason")))
+                        .withExitCode(container.has("exitCode") ? container.getInt("exitCode") : null));
+            }
+        }
+        return task;
+    }
+
+    /**
+     * When the change happened, or now if the event does not tell.
+     */
+    private static long getTime(JSONObject event) {
+        try {
+            return DatatypeConverter.parseDateTime(event.getString("time")).getTimeInMillis();
+        } catch (RuntimeException e) {
+            return System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * The endpoint of a queue outside of AWS, null for an SQS queue.
+     */
+    @CheckForNull
+    static String getEndpoint(String queueUrl) {
+        URI uri = URI.create(queueUrl);
+        if (uri.getHost() == null || uri.getHost().endsWith(".amazonaws.com")) {
+            return null;
+        }
+        return uri.getScheme() + "://" + uri.getAuthority();
+    }
+}
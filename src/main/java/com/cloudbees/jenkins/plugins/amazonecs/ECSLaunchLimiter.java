@@ -0,0 +1,100 @@
+/*
+ * The MIT License
+ *
+ *  Copyright (c) 2015, CloudBees, Inc.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ *
+ */
+
+package com.cloudbees.jenkins.plugins.amazonecs;
+
+import java.util.Date;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.annotation.Nonnull;
+
+import hudson.AbortException;
+
+/**
+ * Bounds the number of agent launches that run at the same time, either for one ECS cluster or for one
+ * {@link ECSTaskTemplate}.
+ *
+ * The limit is given by each caller rather than fixed at creation, since several {@link ECSCloud}s with different
+ * settings may target the same cluster. A limit of 0 or less means unlimited.
+ */
+final class ECSLaunchLimiter {
+
+    private static final ConcurrentMap<String, ECSLaunchLimiter> CLUSTERS = new ConcurrentHashMap<String, ECSLaunchLimiter>();
+
+    private final String name;
+
+    private int inFlight;
+
+    ECSLaunchLimiter(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Returns the limiter shared by all clouds launching into the given cluster.
+     */
+    @Nonnull
+    static ECSLaunchLimiter forCluster(String credentialsId, String regionName, String cluster) {
+        final String key = ECSClientCache.getClusterKey(credentialsId, regionName, cluster);
+        ECSLaunchLimiter limiter = CLUSTERS.get(key);
+        if (limiter == null) {
+            ECSLaunchLimiter newLimiter = new ECSLaunchLimiter("cluster " + cluster);
+            limiter = CLUSTERS.putIfAbsent(key, newLimiter);
+            if (limiter == null) {
+                limiter = newLimiter;
+            }
+        }
+        return limiter;
+    }
+
+    /**
+     * Waits until fewer than {@code limit} launches are in flight, then counts this one in.
+     * Every successful call has to be paired with {@link #release()}.
+     */
+    synchronized void acquire(int limit, Date timeout) throws InterruptedException, AbortException {
+        while (limit > 0 && inFlight >= limit) {
+            long remaining = timeout.getTime() - System.currentTimeMillis();
+            if (remaining <= 0) {
+                throw new AbortException("Timeout while waiting for one of the " + limit + " concurrent launches of " + name + " to finish");
+            }
+            wait(remaining);
+        }
+        inFlight++;
+    }
+
+    synchronized void release() {
+        inFlight--;
+        notifyAll();
+    }
+
+    synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * The MIT License
+ *
+ *  Copyright (c) 2015, CloudBees, Inc.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ *
+ */
+
+package com.cloudbees.jenkins.plugins.amazonecs;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.CheckForNull;
+
+import org.apache.commons.lang.math.NumberUtils;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.ecs.model.ContainerDefinition;
+import com.amazonaws.services.ecs.model.ContainerOverride;
+import com.amazonaws.services.ecs.model.KeyValuePair;
+import com.amazonaws.services.ecs.model.Task;
+import com.amazonaws.services.ecs.model.TaskDefinition;
+
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.slaves.Cloud;
+import jenkins.model.Jenkins;
+
+/**
+ * Stops the ECS tasks of a cloud that no {@link ECSSlave} stands for anymore, e.g. because Jenkins restarted while
+ * they were launched or because stopping them failed. They would otherwise hold cluster resources forever.
+ *
+ * The tasks of a cloud are recognized by their {@code startedBy} value. ECS tags are not available to this plugin, so
+ * tasks are matched to slaves by task ARN, and by the {@code SLAVE_NODE_NAME} variable of their overrides.
+ */
+@Extension
+public class ECSOrphanReaper extends AsyncPeriodicWork {
+
+    private static final Logger LOGGER = Logger.getLogger(ECSOrphanReaper.class.getName());
+
+    static long RECURRENCE_PERIOD = Long.getLong(ECSOrphanReaper.class.getName() + ".recurrencePeriod", TimeUnit.MINUTES.toMillis(5));
+
+    /**
+     * Tasks younger than this may still be launched, their slave may not know its task yet.
+     */
+    static long GRACE_PERIOD_MILLIS = Long.getLong(ECSOrphanReaper.class.getName() + ".gracePeriodMillis", TimeUnit.MINUTES.toMillis(5));
+
+    public ECSOrphanReaper() {
+        super("ECS orphaned task reaper");
+    }
+
+    @Override
+    public long getRecurrencePeriod() {
+        return RECURRENCE_PERIOD;
+    }
+
+    @Override
+    protected void execute(TaskListener listener) {
+        for (Cloud cloud : Jenkins.getInstance().clouds) {
+            if (cloud instanceof ECSCloud) {
+                try {
+                    reap((ECSCloud) cloud, System.currentTimeMillis() - GRACE_PERIOD_MILLIS, listener);
+                } catch (AmazonClientException e) {
+                    LOGGER.log(Level.WARNING, "Failed to look for orphaned tasks of cloud " + cloud.name, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops the tasks of the cloud created before the given time that no slave stands for.
+     */
+    static void reap(ECSCloud cloud, long startedBefore, TaskListener listener) {
+        final Set<String> taskArns = new HashSet<String>();
+        final Set<String> nodeNames = new HashSet<String>();
+        for (Node node : Jenkins.getInstance().getNodes()) {
+            if (node instanceof ECSSlave) {
+                ECSSlave slave = (ECSSlave) node;
+                if (slave.getTaskArn() != null) {
+                    taskArns.add(slave.getTaskArn());
+                }
+                nodeNames.add(slave.getNodeName());
+            }
+        }
+
+        final ECSService service = cloud.getEcsService();
+        for (ECSCloud.WeightedCluster cluster : cloud.getClusters()) {
+            reap(cloud, service, cluster.getCluster(), startedBefore, taskArns, nodeNames, listener);
+        }
+    }
+
+    private static void reap(ECSCloud cloud, ECSService service, String cluster, long startedBefore, Set<String> taskArns,
+            Set<String> nodeNames, TaskListener listener) {
+        final List<Task> tasks = service.describeTasksStartedBy(cluster, cloud.getStartedBy());
+        // EC2 tasks of one cloud share a few task definitions
+        final Map<String, TaskDefinition> taskDefinitions = new HashMap<String, TaskDefinition>();
+        int orphans = 0;
+        int cpu = 0;
+        int memory = 0;
+        for (Task task : tasks) {
+            if (taskArns.contains(task.getTaskArn())
+                    || nodeNames.contains(getNodeName(task))
+                    || task.getCreatedAt() == null || task.getCreatedAt().getTime() > startedBefore) {
+                continue;
+            }
+            LOGGER.log(Level.INFO, "Stopping task {0} of cloud {1}, no slave stands for it", new Object[]{task.getTaskArn(), cloud.name});
+            ECSTaskTerminator.get().terminate(service, task.getTaskArn(), task.getClusterArn());
+            orphans++;
+            int[] resources = getResources(task, getTaskDefinition(service, task, taskDefinitions));
+            cpu += resources[0];
+            memory += resources[1];
+        }
+
+        if (orphans > 0) {
+            cloud.getMetrics().orphansReaped(orphans, cpu, memory);
+            String msg = "Stopped " + orphans + " orphaned task(s) of cloud " + cloud.name + " on cluster " + cluster
+                    + ", reclaiming " + cpu + " cpu units and " + memory + " MiB of memory";
+            LOGGER.log(Level.INFO, msg);
+            listener.getLogger().println(msg);
+            // the snapshot still counts the resources of the stopped tasks as used
+            ECSClusterCapacity.forCluster(cloud.getCredentialsId(), cloud.getRegionName(), cluster).invalidate();
+        }
+    }
+
+    /**
+     * The task definition of an EC2 task, which only sets the cpu and memory of its containers.
+     *
+     * @return null for tasks with task level cpu and memory, or if the task definition cannot be described
+     */
+    @CheckForNull
+    private static TaskDefinition getTaskDefinition(ECSService service, Task task, Map<String, TaskDefinition> taskDefinitions) {
+        if (task.getCpu() != null && task.getMemory() != null || task.getTaskDefinitionArn() == null) {
+            return null;
+        }
+        if (!taskDefinitions.containsKey(task.getTaskDefinitionArn())) {
+            TaskDefinition taskDefinition = null;
+            try {
+                taskDefinition = service.findTaskDefinition(task.getTaskDefinitionArn());
+            } catch (AmazonClientException e) {
+                LOGGER.log(Level.FINE, "Failed to describe task definition " + task.getTaskDefinitionArn(), e);
+            }
+            taskDefinitions.put(task.getTaskDefinitionArn(), taskDefinition);
+        }
+        return taskDefinitions.get(task.getTaskDefinitionArn());
+    }
+
+    /**
+     * Cpu units and MiB of memory of the task. Without task level values, those of its containers are summed up,
+     * taking the memory reservation of containers without a hard memory limit.
+     *
+     * @param taskDefinition the task definition of the task, if known
+     */
+    static int[] getResources(Task task, @CheckForNull TaskDefinition taskDefinition) {
+        int cpu = NumberUtils.toInt(task.getCpu());
+        int memory = NumberUtils.toInt(task.getMemory());
+        if (taskDefinition != null) {
+            int containerCpu = 0;
+            int containerMemory = 0;
+            for (ContainerDefinition container : taskDefinition.getContainerDefinitions()) {
+                if (container.getCpu() != null) {
+                    containerCpu += container.getCpu();
+                }
+                if (container.getMemory() != null) {
+                    containerMemory += container.getMemory();
+                } else if (container.getMemoryReservation() != null) {
+                    containerMemory += container.getMemoryReservation();
+                }
+            }
+            if (cpu == 0) {
+                cpu = containerCpu;
+            }
+            if (memory == 0) {
+                memory = containerMemory;
+            }
+        }
+        return new int[]{cpu, memory};
+    }
+
+    @CheckForNull
+    private static String getNodeName(Task task) {
+        if (task.getOverrides() == null) {
+            return null;
+        }
+        for (ContainerOverride override : task.getOverrides().getContainerOverrides()) {
+            for (KeyValuePair env : override.getEnvironment()) {
+                if ("SLAVE_NODE_NAME".equals(env.getName())) {
+                    return env.getValue();
+                }
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * The MIT License
+ *
+ *  Copyright (c) 2015, CloudBees, Inc.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ *
+ */
+
+package com.cloudbees.jenkins.plugins.amazonecs;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.Nonnull;
+
+import hudson.Extension;
+import hudson.model.Label;
+import hudson.model.LoadStatistics;
+import hudson.model.Queue;
+import hudson.slaves.Cloud;
+import hudson.slaves.NodeProvisioner;
+import jenkins.model.Jenkins;
+
+/**
+ * Launches ECS slaves for the queued builds of a label right away, instead of waiting for the load statistics of the
+ * default Jenkins provisioner to catch up with the queue.
+ *
+ * How much of the uncovered queue is provisioned at once is configured per template. Once a build of the label waited
+ * longer than the queue wait target of its template, the whole uncovered queue is provisioned. Labels of templates that
+ * use neither option are left to the other strategies.
+ */
+@Extension(ordinal = 100)
+public class ECSProvisionerStrategy extends NodeProvisioner.Strategy {
+
+    private static final Logger LOGGER = Logger.getLogger(ECSProvisionerStrategy.class.getName());
+
+    @Nonnull
+    @Override
+    public NodeProvisioner.StrategyDecision apply(@Nonnull NodeProvisioner.StrategyState state) {
+        final Label label = state.getLabel();
+        if (label == null) {
+            return NodeProvisioner.StrategyDecision.CONSULT_REMAINING_STRATEGIES;
+        }
+
+        // the snapshot holds the current queue and executors, not the smoothed statistics
+        final LoadStatistics.LoadStatisticsSnapshot snapshot = state.getSnapshot();
+        int available = snapshot.getAvailableExecutors() + snapshot.getConnectingExecutors()
+                + state.getPlannedCapacitySnapshot() + state.getAdditionalPlannedCapacity();
+        final int demand = snapshot.getQueueLength();
+
+        // whether a template of the label provisions ahead of the load statistics at all
+        boolean handled = false;
+        for (Cloud c : Jenkins.getInstance().clouds) {
+            if (!(c instanceof ECSCloud)) {
+                continue;
+            }
+            ECSCloud cloud = (ECSCloud) c;
+            ECSTaskTemplate template = cloud.getTemplate(label);
+            if (template == null
+                    || template.getProvisioningAggressiveness() <= 0 && template.getQueueWaitTargetSeconds() <= 0) {
+                continue;
+            }
+            handled = true;
+            if (available >= demand) {
+                break;
+            }
+
+            int percentage = template.getProvisioningAggressiveness();
+            if (template.getQueueWaitTargetSeconds() > 0
+                    && getLongestWaitMillis(label) > TimeUnit.SECONDS.toMillis(template.getQueueWaitTargetSeconds())) {
+                percentage = 100;
+            }
+            // at least one slave, so that the queue drains even at low aggressiveness
+            int excess = percentage > 0 ? Math.max(1, (demand - available) * percentage / 100) : 0;
+            if (excess == 0) {
+                continue;
+            }
+
+            LOGGER.log(Level.FINE, "Provisioning {0} slave(s) for label {1}: {2} queued, {3} available or planned",
+                    new Object[]{excess, label, demand, available});
+            Collection<NodeProvisioner.PlannedNode> plannedNodes = cloud.provision(label, excess);
+            state.recordPendingLaunches(plannedNodes);
+            available += plannedNodes.size();
+        }
+
+        return handled && available >= demand
+                ? NodeProvisioner.StrategyDecision.PROVISIONING_COMPLETED
+                : NodeProvisioner.StrategyDecision.CONSULT_REMAINING_STRATEGIES;
+    }
+
+    /**
+     * How long the oldest buildable item of the label has been waiting.
+     */
+    private static long getLongestWaitMillis(Label label) {
+        long oldest = Long.MAX_VALUE;
+        for (Queue.BuildableItem item : Jenkins.getInstance().getQueue().getBuildableItems()) {
+            if (label.equals(item.getAssignedLabel())) {
+                oldest = Math.min(oldest, item.buildableStartMilliseconds);
+            }
+        }
+        return oldest == Long.MAX_VALUE ? 0 : System.currentTimeMillis() - oldest;
+    }
+}
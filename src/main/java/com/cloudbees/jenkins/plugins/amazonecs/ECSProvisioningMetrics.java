@@ -0,0 +1,427 @@
+/*
+ * The MIT License
+ *
+ *  Copyright (c) 2015, CloudBees, Inc.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ *
+ */
+
+package com.cloudbees.jenkins.plugins.amazonecs;
+
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import org.apache.commons.lang.StringUtils;
+
+import com.amazonaws.AmazonServiceException;
+
+import net.sf.json.JSONObject;
+
+/**
+ * Provisioning metrics of one {@link ECSCloud}, per {@link ECSTaskTemplate}: how long each phase of a launch took,
+ * why launches failed, how often ECS throttled them, and how many are in flight.
+ *
+ * Durations are kept in a sliding window of the latest samples, so percentiles reflect the recent behavior of the
+ * cloud. The metrics are kept in memory only and start over when Jenkins restarts.
+ */
+final class ECSProvisioningMetrics {
+
+    /**
+     * Phases of a launch, in the order they happen.
+     */
+    enum Phase {
+        /** Waiting for a container instance with enough free resources. */
+        CAPACITY_WAIT,
+        /** Creating the slave nodes in Jenkins. */
+        NODE_REGISTRATION,
+        /** Finding or registering the task definition. */
+        TASK_DEFINITION,
+        /** The RunTask call itself. */
+        RUN_TASK,
+        /** From the task being started to the slave being online. */
+        ONLINE_WAIT,
+        /** From the launch being requested to the slave being online. */
+        TIME_TO_AGENT
+    }
+
+    /**
+     * When a launch no queued build needed anymore was cancelled.
+     */
+    enum Cancellation {
+        /** Before anything was created for it. */
+        BEFORE_LAUNCH,
+        /** While waiting for free resources in the cluster. */
+        CAPACITY_WAIT,
+        /** After its task was started, before the slave was online. */
+        AFTER_LAUNCH
+    }
+
+    private static final ConcurrentMap<String, ECSProvisioningMetrics> CLOUDS = new ConcurrentHashMap<String, ECSProvisioningMetrics>();
+
+    private final ConcurrentMap<String, TemplateMetrics> templates = new ConcurrentHashMap<String, TemplateMetrics>();
+
+    /**
+     * Orphaned tasks of the cloud the {@link ECSOrphanReaper} stopped, and their resources as far as ECS reported them.
+     */
+    private final AtomicLong reapedTasks = new AtomicLong();
+    private final AtomicLong reclaimedCpu = new AtomicLong();
+    private final AtomicLong reclaimedMemory = new AtomicLong();
+
+    /**
+     * Metrics of the cloud with the given name; they survive reconfigurations of the cloud.
+     */
+    @Nonnull
+    static ECSProvisioningMetrics forCloud(String cloudName) {
+        ECSProvisioningMetrics metrics = CLOUDS.get(cloudName);
+        if (metrics == null) {
+            ECSProvisioningMetrics newMetrics = new ECSProvisioningMetrics();
+            metrics = CLOUDS.putIfAbsent(cloudName, newMetrics);
+            if (metrics == null) {
+                metrics = newMetrics;
+            }
+        }
+        return metrics;
+    }
+
+    @Nonnull
+    TemplateMetrics forTemplate(ECSTaskTemplate template) {
+        final String name = StringUtils.defaultIfEmpty(template.getTemplateName(), template.getDisplayName());
+        TemplateMetrics metrics = templates.get(name);
+        if (metrics == null) {
+            TemplateMetrics newMetrics = new TemplateMetrics();
+            metrics = templates.putIfAbsent(name, newMetrics);
+            if (metrics == null) {
+                metrics = newMetrics;
+            }
+        }
+        return metrics;
+    }
+
+    void orphansReaped(int tasks, long cpu, long memory) {
+        reapedTasks.addAndGet(tasks);
+        reclaimedCpu.addAndGet(cpu);
+        reclaimedMemory.addAndGet(memory);
+    }
+
+    /**
+     * Reason a launch failed with, as reported in the failure counters.
+     */
+    static String getReason(Throwable t) {
+        if (t instanceof AmazonServiceException && ((AmazonServiceException) t).getErrorCode() != null) {
+            return ((AmazonServiceException) t).getErrorCode();
+        }
+        return t.getClass().getSimpleName();
+    }
+
+    static boolean isThrottling(Throwable t) {
+        return t instanceof AmazonServiceException && "ThrottlingException".equals(((AmazonServiceException) t).getErrorCode());
+    }
+
+    /**
+     * The metrics of the cloud, with the metrics of each template, their totals, and the orphaned tasks reaped.
+     */
+    JSONObject toJSON() {
+        final TemplateMetrics total = new TemplateMetrics();
+        final JSONObject templatesJson = new JSONObject();
+        for (Map.Entry<String, TemplateMetrics> entry : new TreeMap<String, TemplateMetrics>(templates).entrySet()) {
+            templatesJson.put(entry.getKey(), entry.getValue().toJSON());
+            total.add(entry.getValue());
+        }
+        JSONObject json = total.toJSON();
+        JSONObject orphansJson = new JSONObject();
+        orphansJson.put("reapedTasks", reapedTasks.get());
+        orphansJson.put("reclaimedCpu", reclaimedCpu.get());
+        orphansJson.put("reclaimedMemory", reclaimedMemory.get());
+        json.put("orphans", orphansJson);
+        json.put("templates", templatesJson);
+        return json;
+    }
+
+    /**
+     * Metrics of the launches of one template.
+     */
+    static final class TemplateMetrics {
+        private final Map<Phase, Histogram> phases = new EnumMap<Phase, Histogram>(Phase.class);
+        private final ConcurrentMap<String, AtomicLong> failures = new ConcurrentHashMap<String, AtomicLong>();
+        private final AtomicLong launches = new AtomicLong();
+        private final AtomicLong throttles = new AtomicLong();
+        private final AtomicInteger inFlight = new AtomicInteger();
+        /**
+         * Launches in flight for queued builds, by label expression. Warm pool launches are left out.
+         */
+        private final ConcurrentMap<String, AtomicInteger> inFlightByLabel = new ConcurrentHashMap<String, AtomicInteger>();
+        private final AtomicLong targetedPlacements = new AtomicLong();
+        private final AtomicLong placementFallbacks = new AtomicLong();
+        private final AtomicLong fargateFallbacks = new AtomicLong();
+        private final AtomicLong stoppedTasks = new AtomicLong();
+        private final AtomicLong relaunches = new AtomicLong();
+        private final Map<Cancellation, AtomicLong> cancellations = new EnumMap<Cancellation, AtomicLong>(Cancellation.class);
+        private final AtomicLong savedCpu = new AtomicLong();
+        private final AtomicLong savedMemory = new AtomicLong();
+
+        TemplateMetrics() {
+            for (Phase phase : Phase.values()) {
+                phases.put(phase, new Histogram());
+            }
+            for (Cancellation cancellation : Cancellation.values()) {
+                cancellations.put(cancellation, new AtomicLong());
+            }
+        }
+
+        void record(Phase phase, long durationMillis) {
+            phases.get(phase).update(durationMillis);
+        }
+
+        /**
+         * Counts a requested launch as in flight, until {@link #completed(String)} or {@link #failed(String, Throwable)}.
+         *
+         * @param labelExpression the label of the queued builds the launch is for, null for warm pool launches
+         */
+        void launching(@CheckForNull String labelExpression) {
+            launches.incrementAndGet();
+            inFlight.incrementAndGet();
+            if (labelExpression != null) {
+                inFlightFor(labelExpression).incrementAndGet();
+            }
+        }
+
+        void completed(@CheckForNull String labelExpression) {
+            inFlight.decrementAndGet();
+            if (labelExpression != null) {
+                inFlightFor(labelExpression).decrementAndGet();
+            }
+        }
+
+        void failed(@CheckForNull String labelExpression, Throwable t) {
+            inFlight.decrementAndGet();
+            if (labelExpression != null) {
+                inFlightFor(labelExpression).decrementAndGet();
+            }
+            if (t instanceof CancellationException) {
+                // counted by cancelled()
+                return;
+            }
+            failure(getReason(t));
+            if (isThrottling(t)) {
+                throttled();
+            }
+        }
+
+        void failure(String reason) {
+            AtomicLong count = failures.get(reason);
+            if (count == null) {
+                AtomicLong newCount = new AtomicLong();
+                count = failures.putIfAbsent(reason, newCount);
+                if (count == null) {
+                    count = newCount;
+                }
+            }
+            count.incrementAndGet();
+        }
+
+        /**
+         * Counts the tasks started with StartTask on the container instance chosen by the plugin, and those that fell
+         * back to RunTask.
+         */
+        void placed(int targeted, int fallbacks) {
+            targetedPlacements.addAndGet(targeted);
+            placementFallbacks.addAndGet(fallbacks);
+        }
+
+        /**
+         * Counts the slaves of an EC2 template that were launched on Fargate because the cluster had no room.
+         */
+        void fargateFallback(int count) {
+            fargateFallbacks.addAndGet(count);
+        }
+
+        /**
+         * Counts a task that stopped before its slave connected, and whether it was launched again.
+         */
+        void taskStopped(boolean relaunched) {
+            stoppedTasks.incrementAndGet();
+            if (relaunched) {
+                relaunches.incrementAndGet();
+            }
+        }
+
+        /**
+         * Counts a launch that was cancelled because no queued build needed it anymore, with the resources its task
+         * did not take up.
+         */
+        void cancelled(Cancellation cancellation, int cpu, int memory) {
+            cancellations.get(cancellation).incrementAndGet();
+            savedCpu.addAndGet(cpu);
+            savedMemory.addAndGet(memory);
+        }
+
+        void throttled() {
+            throttles.incrementAndGet();
+        }
+
+        int getInFlight() {
+            return inFlight.get();
+        }
+
+        /**
+         * Number of launches in flight for queued builds of the given label.
+         */
+        int getInFlight(String labelExpression) {
+            return inFlightFor(labelExpression).get();
+        }
+
+        private AtomicInteger inFlightFor(String labelExpression) {
+            AtomicInteger count = inFlightByLabel.get(labelExpression);
+            if (count == null) {
+                AtomicInteger newCount = new AtomicInteger();
+                count = inFlightByLabel.putIfAbsent(labelExpression, newCount);
+                if (count == null) {
+                    count = newCount;
+                }
+            }
+            return count;
+        }
+
+        private void add(TemplateMetrics other) {
+            for (Phase phase : Phase.values()) {
+                phases.get(phase).add(other.phases.get(phase));
+            }
+            for (Map.Entry<String, AtomicLong> entry : other.failures.entrySet()) {
+                failures.putIfAbsent(entry.getKey(), new AtomicLong());
+                failures.get(entry.getKey()).addAndGet(entry.getValue().get());
+            }
+            launches.addAndGet(other.launches.get());
+            throttles.addAndGet(other.throttles.get());
+            inFlight.addAndGet(other.inFlight.get());
+            targetedPlacements.addAndGet(other.targetedPlacements.get());
+            placementFallbacks.addAndGet(other.placementFallbacks.get());
+            fargateFallbacks.addAndGet(other.fargateFallbacks.get());
+            stoppedTasks.addAndGet(other.stoppedTasks.get());
+            relaunches.addAndGet(other.relaunches.get());
+            for (Cancellation cancellation : Cancellation.values()) {
+                cancellations.get(cancellation).addAndGet(other.cancellations.get(cancellation).get());
+            }
+            savedCpu.addAndGet(other.savedCpu.get());
+            savedMemory.addAndGet(other.savedMemory.get());
+        }
+
+        JSONObject toJSON() {
+            JSONObject json = new JSONObject();
+            json.put("launches", launches.get());
+            json.put("inFlight", inFlight.get());
+            json.put("throttles", throttles.get());
+            json.put("targetedPlacements", targetedPlacements.get());
+            json.put("placementFallbacks", placementFallbacks.get());
+            json.put("fargateFallbacks", fargateFallbacks.get());
+            json.put("stoppedTasks", stoppedTasks.get());
+            json.put("relaunches", relaunches.get());
+            JSONObject cancellationsJson = new JSONObject();
+            for (Map.Entry<Cancellation, AtomicLong> entry : cancellations.entrySet()) {
+                cancellationsJson.put(entry.getKey().name().toLowerCase(), entry.getValue().get());
+            }
+            json.put("cancellations", cancellationsJson);
+            json.put("savedCpu", savedCpu.get());
+            json.put("savedMemory", savedMemory.get());
+            JSONObject failuresJson = new JSONObject();
+            for (Map.Entry<String, AtomicLong> entry : new TreeMap<String, AtomicLong>(failures).entrySet()) {
+                failuresJson.put(entry.getKey(), entry.getValue().get());
+            }
+            json.put("failures", failuresJson);
+            JSONObject phasesJson = new JSONObject();
+            for (Map.Entry<Phase, Histogram> entry : phases.entrySet()) {
+                phasesJson.put(entry.getKey().name().toLowerCase(), entry.getValue().toJSON());
+            }
+            json.put("phases", phasesJson);
+            return json;
+        }
+    }
+
+    /**
+     * Durations in milliseconds, with percentiles over the latest {@link #WINDOW_SIZE} of them.
+     */
+    static final class Histogram {
+        static final int WINDOW_SIZE = 1024;
+
+        private final long[] window = new long[WINDOW_SIZE];
+        private long count;
+        private long sum;
+
+        synchronized void update(long value) {
+            window[(int) (count % WINDOW_SIZE)] = value;
+            count++;
+            sum += value;
+        }
+
+        synchronized long[] getSamples() {
+            return Arrays.copyOf(window, (int) Math.min(count, WINDOW_SIZE));
+        }
+
+        private void add(Histogram other) {
+            long[] samples = other.getSamples();
+            long otherCount;
+            long otherSum;
+            synchronized (other) {
+                otherCount = other.count;
+                otherSum = other.sum;
+            }
+            synchronized (this) {
+                for (long sample : samples) {
+                    window[(int) (count % WINDOW_SIZE)] = sample;
+                    count++;
+                }
+                // keep the totals of the other histogram, not just the part of it still in its window
+                count += otherCount - samples.length;
+                sum += otherSum;
+            }
+        }
+
+        JSONObject toJSON() {
+            long[] samples = getSamples();
+            Arrays.sort(samples);
+            JSONObject json = new JSONObject();
+            synchronized (this) {
+                json.put("count", count);
+                json.put("mean", count > 0 ? sum / count : 0);
+            }
+            json.put("p50", percentile(samples, 0.50));
+            json.put("p95", percentile(samples, 0.95));
+            json.put("p99", percentile(samples, 0.99));
+            json.put("max", samples.length > 0 ? samples[samples.length - 1] : 0);
+            return json;
+        }
+
+        private static long percentile(long[] sorted, double quantile) {
+            if (sorted.length == 0) {
+                return 0;
+            }
+            return sorted[(int) Math.min(sorted.length - 1, Math.ceil(quantile * sorted.length) - 1)];
+        }
+    }
+}
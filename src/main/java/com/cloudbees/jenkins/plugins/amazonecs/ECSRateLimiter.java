@@ -0,0 +1,251 @@
+/*
+ * The MIT License
+ *
+ *  Copyright (c) 2015, CloudBees, Inc.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ *
+ */
+
+package com.cloudbees.jenkins.plugins.amazonecs;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.apache.commons.lang.StringUtils;
+
+import com.amazonaws.AbortedException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.retry.RetryUtils;
+import com.amazonaws.services.ecs.AmazonECS;
+
+/**
+ * Paces the ECS calls made with one AWS account and region, so that bursts of launches do not run into the ECS API
+ * limits, and retries throttled calls.
+ *
+ * Each API has its own token bucket, since ECS limits them separately. Calls wait for a token instead of failing.
+ * Throttled calls are retried after an exponential backoff with full jitter, so that the threads throttled together do
+ * not retry in lockstep. The rates and bursts can be changed with the system properties
+ * {@code com.cloudbees.jenkins.plugins.amazonecs.ECSRateLimiter.<api>.rate} and {@code .burst}, e.g. for
+ * {@code runTask}.
+ */
+final class ECSRateLimiter {
+
+    private static final Logger LOGGER = Logger.getLogger(ECSRateLimiter.class.getName());
+
+    private static final double DEFAULT_RATE = 20;
+
+    private static final int DEFAULT_BURST = 50;
+
+    static int MAX_THROTTLING_RETRIES = Integer.getInteger(ECSRateLimiter.class.getName() + ".maxThrottlingRetries", 5);
+
+    private static final long BASE_BACKOFF_MILLIS = 200;
+
+    private static final long MAX_BACKOFF_MILLIS = TimeUnit.SECONDS.toMillis(10);
+
+    private static final ConcurrentMap<String, ECSRateLimiter> ACCOUNTS = new ConcurrentHashMap<String, ECSRateLimiter>();
+
+    private static final Random RANDOM = new Random();
+
+    private final ConcurrentMap<String, TokenBucket> buckets = new ConcurrentHashMap<String, TokenBucket>();
+
+    private final ConcurrentMap<String, AtomicLong> throttles = new ConcurrentHashMap<String, AtomicLong>();
+
+    private ECSRateLimiter() {
+    }
+
+    /**
+     * The limiter shared by all clients of the given account and region.
+     *
+     * @see ECSClientCache#getRateLimiter(String, String)
+     */
+    @Nonnull
+    static ECSRateLimiter forAccount(@Nullable String account, @Nullable String regionName) {
+        final String key = StringUtils.trimToEmpty(account) + '/' + StringUtils.trimToEmpty(regionName);
+        ECSRateLimiter limiter = ACCOUNTS.get(key);
+        if (limiter == null) {
+            ECSRateLimiter newLimiter = new ECSRateLimiter();
+            limiter = ACCOUNTS.putIfAbsent(key, newLimiter);
+            if (limiter == null) {
+                limiter = newLimiter;
+            }
+        }
+        return limiter;
+    }
+
+    /**
+     * Returns a client making the calls of the given one through this limiter.
+     */
+    AmazonECS wrap(AmazonECS client) {
+        return (AmazonECS) Proxy.newProxyInstance(AmazonECS.class.getClassLoader(), new Class<?>[]{AmazonECS.class}, new Handler(client));
+    }
+
+    /**
+     * Number of throttled ECS calls since Jenkins started, by API.
+     */
+    Map<String, Long> getThrottles() {
+        Map<String, Long> r = new TreeMap<String, Long>();
+        for (Map.Entry<String, AtomicLong> entry : throttles.entrySet()) {
+            r.put(entry.getKey(), entry.getValue().get());
+        }
+        return r;
+    }
+
+    private TokenBucket getBucket(String api) {
+        TokenBucket bucket = buckets.get(api);
+        if (bucket == null) {
+            TokenBucket newBucket = new TokenBucket(getRate(api), getBurst(api));
+            bucket = buckets.putIfAbsent(api, newBucket);
+            if (bucket == null) {
+                bucket = newBucket;
+            }
+        }
+        return bucket;
+    }
+
+    private static double getRate(String api) {
+        String rate = System.getProperty(ECSRateLimiter.class.getName() + "." + api + ".rate");
+        if (rate != null) {
+            return Double.parseDouble(rate);
+        }
+        return "registerTaskDefinition".equals(api) ? 1 : DEFAULT_RATE;
+    }
+
+    private static int getBurst(String api) {
+        Integer burst = Integer.getInteger(ECSRateLimiter.class.getName() + "." + api + ".burst");
+        if (burst != null) {
+            return burst;
+        }
+        if ("runTask".equals(api)) {
+            return 100;
+        }
+        return "registerTaskDefinition".equals(api) ? 5 : DEFAULT_BURST;
+    }
+
+    private void throttled(String api) {
+        AtomicLong count = throttles.get(api);
+        if (count == null) {
+            AtomicLong newCount = new AtomicLong();
+            count = throttles.putIfAbsent(api, newCount);
+            if (count == null) {
+                count = newCount;
+            }
+        }
+        count.incrementAndGet();
+    }
+
+    /**
+     * Makes the ECS API calls of a client through the limiter. Other methods, e.g. {@code shutdown()}, are passed
+     * through.
+     */
+    private final class Handler implements InvocationHandler {
+        private final AmazonECS delegate;
+
+        Handler(AmazonECS delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            final boolean apiCall = args != null && args.length == 1 && args[0] instanceof AmazonWebServiceRequest;
+            final String api = method.getName();
+            for (int attempt = 0; ; attempt++) {
+                try {
+                    if (apiCall) {
+                        getBucket(api).acquire();
+                    }
+                    return method.invoke(delegate, args);
+                } catch (InvocationTargetException e) {
+                    Throwable cause = e.getCause();
+                    if (apiCall && cause instanceof AmazonServiceException && RetryUtils.isThrottlingException((AmazonServiceException) cause)) {
+                        throttled(api);
+                        if (attempt < MAX_THROTTLING_RETRIES) {
+                            long backoff = (long) (RANDOM.nextDouble() * Math.min(MAX_BACKOFF_MILLIS, BASE_BACKOFF_MILLIS << attempt));
+                            LOGGER.log(Level.FINE, "ECS throttled {0}, retrying in {1} ms", new Object[]{api, backoff});
+                            sleep(backoff);
+                            continue;
+                        }
+                        LOGGER.log(Level.WARNING, "ECS throttled {0} {1} times in a row", new Object[]{api, attempt + 1});
+                    }
+                    throw cause;
+                }
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "Rate limited " + delegate;
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AbortedException();
+        }
+    }
+
+    /**
+     * Hands out tokens at a steady rate, up to a burst. Callers reserve a token right away and wait until it is due,
+     * so that they are served in order without polling.
+     */
+    static final class TokenBucket {
+        private final double tokensPerMilli;
+        private final double burst;
+        private double tokens;
+        private long refilledAt = System.currentTimeMillis();
+
+        TokenBucket(double ratePerSecond, int burst) {
+            this.tokensPerMilli = Math.max(ratePerSecond, 0.001) / 1000;
+            this.burst = Math.max(burst, 1);
+            this.tokens = this.burst;
+        }
+
+        void acquire() {
+            long wait;
+            synchronized (this) {
+                long now = System.currentTimeMillis();
+                tokens = Math.min(burst, tokens + (now - refilledAt) * tokensPerMilli);
+                refilledAt = now;
+                tokens--;
+                wait = tokens >= 0 ? 0 : (long) Math.ceil(-tokens / tokensPerMilli);
+            }
+            if (wait > 0) {
+                sleep(wait);
+            }
+        }
+    }
+}
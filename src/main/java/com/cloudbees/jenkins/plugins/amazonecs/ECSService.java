@@ -27,26 +27,31 @@ package com.cloudbees.jenkins.plugins.amazonecs;
 
 import java.io.IOException;
 import java.text.MessageFormat;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import javax.annotation.CheckForNull;
-import javax.annotation.Nullable;
-
 
+import com.amazonaws.services.ecs.model.AmazonECSException;
 import com.amazonaws.services.ecs.model.ClientException;
 import com.amazonaws.services.ecs.model.TaskDefinition;
 import org.apache.commons.lang.ObjectUtils;
 import org.apache.commons.lang.StringUtils;
 
-import com.amazonaws.ClientConfiguration;
 import com.amazonaws.regions.Region;
 import com.amazonaws.regions.RegionUtils;
 import com.amazonaws.regions.Regions;
-import com.amazonaws.services.ecs.AmazonECSClient;
+import com.amazonaws.services.ecs.AmazonECS;
 import com.amazonaws.services.ecs.model.AwsVpcConfiguration;
 import com.amazonaws.services.ecs.model.ContainerDefinition;
 import com.amazonaws.services.ecs.model.ContainerInstance;
@@ -55,34 +60,41 @@ import com.amazonaws.services.ecs.model.DescribeContainerInstancesRequest;
 import com.amazonaws.services.ecs.model.DescribeContainerInstancesResult;
 import com.amazonaws.services.ecs.model.DescribeTaskDefinitionRequest;
 import com.amazonaws.services.ecs.model.DescribeTaskDefinitionResult;
+import com.amazonaws.services.ecs.model.DescribeTasksRequest;
+import com.amazonaws.services.ecs.model.DescribeTasksResult;
+import com.amazonaws.services.ecs.model.DesiredStatus;
 import com.amazonaws.services.ecs.model.Failure;
+import com.amazonaws.services.ecs.model.HostEntry;
+import com.amazonaws.services.ecs.model.InvalidParameterException;
 import com.amazonaws.services.ecs.model.KeyValuePair;
 import com.amazonaws.services.ecs.model.LaunchType;
 import com.amazonaws.services.ecs.model.ListContainerInstancesRequest;
 import com.amazonaws.services.ecs.model.ListContainerInstancesResult;
+import com.amazonaws.services.ecs.model.ListTasksRequest;
+import com.amazonaws.services.ecs.model.ListTasksResult;
 import com.amazonaws.services.ecs.model.LogConfiguration;
+import com.amazonaws.services.ecs.model.MountPoint;
 import com.amazonaws.services.ecs.model.NetworkConfiguration;
+import com.amazonaws.services.ecs.model.PortMapping;
 import com.amazonaws.services.ecs.model.RegisterTaskDefinitionRequest;
 import com.amazonaws.services.ecs.model.RegisterTaskDefinitionResult;
-import com.amazonaws.services.ecs.model.Resource;
 import com.amazonaws.services.ecs.model.RunTaskRequest;
 import com.amazonaws.services.ecs.model.RunTaskResult;
+import com.amazonaws.services.ecs.model.StartTaskRequest;
+import com.amazonaws.services.ecs.model.StartTaskResult;
 import com.amazonaws.services.ecs.model.StopTaskRequest;
+import com.amazonaws.services.ecs.model.Task;
 import com.amazonaws.services.ecs.model.TaskOverride;
+import com.amazonaws.services.ecs.model.Volume;
 import org.apache.commons.lang.ObjectUtils;
 import org.apache.commons.lang.StringUtils;
 
-import com.amazonaws.ClientConfiguration;
 import com.amazonaws.regions.Region;
 import com.amazonaws.regions.RegionUtils;
 import com.amazonaws.regions.Regions;
-import com.amazonaws.services.ecs.AmazonECSClient;
-import com.cloudbees.jenkins.plugins.awscredentials.AWSCredentialsHelper;
-import com.cloudbees.jenkins.plugins.awscredentials.AmazonWebServicesCredentials;
 
 import hudson.AbortException;
-import hudson.ProxyConfiguration;
-import jenkins.model.Jenkins;
+import hudson.Util;
 
 /**
  * Encapsulates interactions with Amazon ECS.
@@ -93,44 +105,77 @@ import jenkins.model.Jenkins;
 class ECSService {
     private static final Logger LOGGER = Logger.getLogger(ECSCloud.class.getName());
 
+    /**
+     * Docker label carrying the fingerprint of the template a task definition revision was registered from.
+     */
+    static final String FINGERPRINT_LABEL = "com.cloudbees.jenkins.plugins.amazonecs.fingerprint";
+
+    /**
+     * Maximum number of ARNs the ECS describe calls accept, and page size of the list calls.
+     */
+    static final int MAX_DESCRIBE_BATCH_SIZE = 100;
+
     private String credentialsId;
 
     private String regionName;
 
+    private int capacityRefreshSeconds = ECSClusterCapacity.DEFAULT_REFRESH_SECONDS;
+
+    /**
+     * {@code startedBy} value of the tasks started by this service, identifying the Jenkins instance and cloud.
+     */
+    @CheckForNull
+    private String startedBy;
+
+    /**
+     * Task definitions registered (or found) by this service, by family name.
+     */
+    private final ConcurrentMap<String, CachedTaskDefinition> taskDefinitions = new ConcurrentHashMap<String, CachedTaskDefinition>();
+
+    private final ConcurrentMap<String, Object> familyLocks = new ConcurrentHashMap<String, Object>();
+
+    /**
+     * Factory used by services created without an explicit one.
+     */
+    private static volatile ECSClientFactory defaultClientFactory = ECSClientFactory.SHARED;
+
+    private final ECSClientFactory clientFactory;
+
     public ECSService(String credentialsId, String regionName) {
+        this(credentialsId, regionName, defaultClientFactory);
+    }
+
+    ECSService(String credentialsId, String regionName, ECSClientFactory clientFactory) {
         super();
         this.credentialsId = credentialsId;
         this.regionName = regionName;
+        this.clientFactory = clientFactory;
     }
 
-    AmazonECSClient getAmazonECSClient() {
-        final AmazonECSClient client;
+    /**
+     * Replaces the ECS client of all services created from now on, e.g. by an in-memory stand-in in tests.
+     *
+     * @param clientFactory the factory, or null to go back to real clients
+     */
+    static void setDefaultClientFactory(@CheckForNull ECSClientFactory clientFactory) {
+        defaultClientFactory = clientFactory != null ? clientFactory : ECSClientFactory.SHARED;
+    }
 
-        ProxyConfiguration proxy = Jenkins.getInstance().proxy;
-        ClientConfiguration clientConfiguration = new ClientConfiguration();
-        if(proxy != null) {
-            clientConfiguration.setProxyHost(proxy.name);
-            clientConfiguration.setProxyPort(proxy.port);
-            clientConfiguration.setProxyUsername(proxy.getUserName());
-            clientConfiguration.setProxyPassword(proxy.getPassword());
-        }
+    void setCapacityRefreshSeconds(int capacityRefreshSeconds) {
+        this.capacityRefreshSeconds = capacityRefreshSeconds;
+    }
 
-        AmazonWebServicesCredentials credentials = getCredentials(credentialsId);
-        if (credentials == null) {
-            // no credentials provided, rely on com.amazonaws.auth.DefaultAWSCredentialsProviderChain
-            // to use IAM Role define at the EC2 instance level ...
-            client = new AmazonECSClient(clientConfiguration);
-        } else {
-            if (LOGGER.isLoggable(Level.FINE)) {
-                String awsAccessKeyId = credentials.getCredentials().getAWSAccessKeyId();
-                String obfuscatedAccessKeyId = StringUtils.left(awsAccessKeyId, 4) + StringUtils.repeat("*", awsAccessKeyId.length() - (2 * 4)) + StringUtils.right(awsAccessKeyId, 4);
-                LOGGER.log(Level.FINE, "Connect to Amazon ECS with IAM Access Key {1}", new Object[]{obfuscatedAccessKeyId});
-            }
-            client = new AmazonECSClient(credentials, clientConfiguration);
-        }
-        client.setRegion(getRegion(regionName));
-        LOGGER.log(Level.FINE, "Selected Region: {0}", regionName);
-        return client;
+    void setStartedBy(String startedBy) {
+        this.startedBy = startedBy;
+    }
+
+    /**
+     * Returns the client for the credentials and region of this service, shared by default.
+     *
+     * @see ECSClientCache
+     */
+    AmazonECS getAmazonECSClient() {
+        return clientFactory.getClient(credentialsId, regionName);
     }
 
     Region getRegion(String regionName) {
@@ -141,30 +186,76 @@ class ECSService {
         }
     }
 
-    @CheckForNull
-    private AmazonWebServicesCredentials getCredentials(@Nullable String credentialsId) {
-        return AWSCredentialsHelper.getCredentials(credentialsId, Jenkins.getActiveInstance());
-    }
-
+    /**
+     * Stops a task, failing with the {@link com.amazonaws.AmazonClientException} of the call.
+     *
+     * @see ECSTaskTerminator
+     */
     void deleteTask(String taskArn, String clusterArn) {
-        final AmazonECSClient client = getAmazonECSClient();
+        final AmazonECS client = getAmazonECSClient();
 
         LOGGER.log(Level.INFO, "Delete ECS Slave task: {0}", taskArn);
-        try {
-            client.stopTask(new StopTaskRequest().withTask(taskArn).withCluster(clusterArn));
-        } catch (Exception e) {
-            LOGGER.log(Level.SEVERE, "Couldn't stop task arn " + taskArn + " caught exception: " + e.getMessage(), e);
-        }
+        client.stopTask(new StopTaskRequest().withTask(taskArn).withCluster(clusterArn));
     }
 
     /**
-     * Looks whether the latest task definition matches the desired one. If yes, returns the full TaskDefinition of the existing one.
-     * If no, register a new task definition with desired parameters and returns the new TaskDefinition.
+     * Returns the task definition matching the template. The fingerprint of the desired task definition is looked up
+     * in the local cache first, so that an unchanged template needs no ECS call at all. On a cache miss, the latest
+     * revision of the family is reused if it carries the same fingerprint, otherwise a new revision is registered.
      */
     TaskDefinition registerTemplate(final ECSCloud cloud, final ECSTaskTemplate template) {
-        final AmazonECSClient client = getAmazonECSClient();
-        
-        String familyName = fullQualifiedTemplateName(cloud, template);
+        return registerTemplate(fullQualifiedTemplateName(cloud, template), template);
+    }
+
+    private TaskDefinition registerTemplate(final String familyName, final ECSTaskTemplate template) {
+        // Templates are not modified once configured, so a task definition cached for this very template needs no
+        // fingerprint either. Only other instances, e.g. after a reconfiguration, have to be compared.
+        CachedTaskDefinition cached = taskDefinitions.get(familyName);
+        if (cached != null && cached.template == template) {
+            return cached.taskDefinition;
+        }
+
+        final RegisterTaskDefinitionRequest request = createRegisterTaskDefinitionRequest(familyName, template);
+        final String fingerprint = fingerprint(request);
+
+        if (cached != null && cached.fingerprint.equals(fingerprint)) {
+            LOGGER.log(Level.FINE, "Task Definition {0} matches fingerprint {1}", new Object[]{cached.taskDefinition.getTaskDefinitionArn(), fingerprint});
+            taskDefinitions.put(familyName, new CachedTaskDefinition(template, fingerprint, cached.taskDefinition));
+            return cached.taskDefinition;
+        }
+
+        synchronized (getFamilyLock(familyName)) {
+            cached = taskDefinitions.get(familyName);
+            if (cached != null && cached.fingerprint.equals(fingerprint)) {
+                return cached.taskDefinition;
+            }
+
+            // Only look at ECS when nothing is cached yet, e.g. after a restart. Once cached, a fingerprint change
+            // means the template was changed locally and a new revision is needed anyway.
+            if (cached == null) {
+                TaskDefinition currentTaskDefinition = findTaskDefinition(familyName);
+                String currentFingerprint = getFingerprint(currentTaskDefinition);
+                LOGGER.log(Level.INFO, "Match on fingerprint of task definition family {0}: {1}", new Object[]{familyName, fingerprint.equals(currentFingerprint)});
+                if (fingerprint.equals(currentFingerprint)) {
+                    taskDefinitions.put(familyName, new CachedTaskDefinition(template, fingerprint, currentTaskDefinition));
+                    LOGGER.log(Level.FINE, "Task Definition already exists: {0}", new Object[]{currentTaskDefinition.getTaskDefinitionArn()});
+                    return currentTaskDefinition;
+                }
+            }
+
+            request.getContainerDefinitions().get(0).addDockerLabelsEntry(FINGERPRINT_LABEL, fingerprint);
+            final RegisterTaskDefinitionResult result = getAmazonECSClient().registerTaskDefinition(request);
+            LOGGER.log(Level.FINE, "Created Task Definition {0}: {1}", new Object[]{result.getTaskDefinition(), request});
+            LOGGER.log(Level.INFO, "Created Task Definition: {0}", new Object[]{result.getTaskDefinition()});
+            taskDefinitions.put(familyName, new CachedTaskDefinition(template, fingerprint, result.getTaskDefinition()));
+            return result.getTaskDefinition();
+        }
+    }
+
+    /**
+     * Builds the request registering the task definition described by the template, without any fingerprint.
+     */
+    RegisterTaskDefinitionRequest createRegisterTaskDefinitionRequest(final String familyName, final ECSTaskTemplate template) {
         final ContainerDefinition def = new ContainerDefinition()
                 .withName(familyName)
                 .withImage(template.getImage())
@@ -204,62 +295,148 @@ class ECSService {
         if (template.getLogDriver() != null) {
             LogConfiguration logConfig = new LogConfiguration();
             logConfig.setLogDriver(template.getLogDriver());
-            logConfig.setOptions(template.getLogDriverOptionsMap());
+            Map<String, String> logDriverOptions = template.getLogDriverOptionsMap();
+            // sorted, so that the fingerprint does not depend on the option order
+            logConfig.setOptions(logDriverOptions == null ? null : new TreeMap<String, String>(logDriverOptions));
             def.withLogConfiguration(logConfig);
         }
 
-        TaskDefinition currentTaskDefinition = findTaskDefinition(familyName);
-
-        boolean templateMatchesExistingContainerDefinition = false;
-        boolean templateMatchesExistingVolumes = false;
-        boolean templateMatchesExistingTaskRole = false;
-        boolean templateMatchesExistingExecutionRole = false;
+        final RegisterTaskDefinitionRequest request = new RegisterTaskDefinitionRequest()
+                .withFamily(familyName)
+                .withVolumes(template.getVolumeEntries())
+                .withContainerDefinitions(def);
 
-        if (currentTaskDefinition != null) {
-            templateMatchesExistingContainerDefinition = def.equals(currentTaskDefinition.getContainerDefinitions().get(0));
-            LOGGER.log(Level.INFO, "Match on container definition: {0}", new Object[] {templateMatchesExistingContainerDefinition});
-            LOGGER.log(Level.FINE, "Match on container definition: {0}; template={1}; last={2}", new Object[] {templateMatchesExistingContainerDefinition, def, currentTaskDefinition.getContainerDefinitions().get(0)});
+        if (template.isFargate()) {
+            request
+                    .withRequiresCompatibilities(template.getLaunchType())
+                    .withNetworkMode("awsvpc")
+                    .withMemory(String.valueOf(template.getMemoryConstraint()))
+                    .withCpu(String.valueOf(template.getCpu()));
+            String executionRole = template.getExecutionRole();
+            if(!StringUtils.isEmpty(executionRole)){
+                request.withExecutionRoleArn(executionRole);
+            }
+        }
+        if (template.getTaskrole() != null) {
+            request.withTaskRoleArn(template.getTaskrole());
+        }
+        return request;
+    }
 
-            templateMatchesExistingVolumes = ObjectUtils.equals(template.getVolumeEntries(), currentTaskDefinition.getVolumes());
-            LOGGER.log(Level.INFO, "Match on volumes: {0}", new Object[] {templateMatchesExistingVolumes});
-            LOGGER.log(Level.FINE, "Match on volumes: {0}; template={1}; last={2}", new Object[] {templateMatchesExistingVolumes, template.getVolumeEntries(), currentTaskDefinition.getVolumes()});
+    /**
+     * Stable digest of everything the request would register. Built from the fields this plugin sets, written one by one
+     * in a fixed order, so that it only changes with the template, not with the SDK version.
+     */
+    static String fingerprint(RegisterTaskDefinitionRequest request) {
+        final StringBuilder b = new StringBuilder();
+        field(b, "family", request.getFamily());
+        field(b, "taskRoleArn", request.getTaskRoleArn());
+        field(b, "executionRoleArn", request.getExecutionRoleArn());
+        field(b, "networkMode", request.getNetworkMode());
+        field(b, "requiresCompatibilities", request.getRequiresCompatibilities());
+        field(b, "cpu", request.getCpu());
+        field(b, "memory", request.getMemory());
+        for (Volume volume : request.getVolumes()) {
+            field(b, "volume", volume.getName());
+            field(b, "sourcePath", volume.getHost() == null ? null : volume.getHost().getSourcePath());
+        }
+        for (ContainerDefinition def : request.getContainerDefinitions()) {
+            field(b, "container", def.getName());
+            field(b, "image", def.getImage());
+            field(b, "cpu", def.getCpu());
+            field(b, "memory", def.getMemory());
+            field(b, "memoryReservation", def.getMemoryReservation());
+            field(b, "privileged", def.getPrivileged());
+            field(b, "essential", def.getEssential());
+            field(b, "user", def.getUser());
+            field(b, "entryPoint", def.getEntryPoint());
+            field(b, "dnsSearchDomains", def.getDnsSearchDomains());
+            for (KeyValuePair variable : def.getEnvironment()) {
+                field(b, "environment", variable.getName());
+                field(b, "value", variable.getValue());
+            }
+            for (HostEntry host : def.getExtraHosts()) {
+                field(b, "extraHost", host.getHostname());
+                field(b, "ipAddress", host.getIpAddress());
+            }
+            for (MountPoint mountPoint : def.getMountPoints()) {
+                field(b, "mountPoint", mountPoint.getSourceVolume());
+                field(b, "containerPath", mountPoint.getContainerPath());
+                field(b, "readOnly", mountPoint.getReadOnly());
+            }
+            for (PortMapping portMapping : def.getPortMappings()) {
+                field(b, "portMapping", portMapping.getContainerPort());
+                field(b, "hostPort", portMapping.getHostPort());
+                field(b, "protocol", portMapping.getProtocol());
+            }
+            if (def.getLogConfiguration() != null) {
+                field(b, "logDriver", def.getLogConfiguration().getLogDriver());
+                if (def.getLogConfiguration().getOptions() != null) {
+                    for (Map.Entry<String, String> option : new TreeMap<String, String>(def.getLogConfiguration().getOptions()).entrySet()) {
+                        field(b, "logOption", option.getKey());
+                        field(b, "value", option.getValue());
+                    }
+                }
+            }
+            if (def.getDockerLabels() != null) {
+                for (Map.Entry<String, String> label : new TreeMap<String, String>(def.getDockerLabels()).entrySet()) {
+                    if (!FINGERPRINT_LABEL.equals(label.getKey())) {
+                        field(b, "dockerLabel", label.getKey());
+                        field(b, "value", label.getValue());
+                    }
+                }
+            }
+        }
+        return Util.getDigestOf(b.toString());
+    }
 
-            templateMatchesExistingTaskRole = template.getTaskrole() == null || template.getTaskrole().equals(currentTaskDefinition.getTaskRoleArn());
-            LOGGER.log(Level.INFO, "Match on task role: {0}", new Object[] {templateMatchesExistingTaskRole});
-            LOGGER.log(Level.FINE, "Match on task role: {0}; template={1}; last={2}", new Object[] {templateMatchesExistingTaskRole, template.getTaskrole(), currentTaskDefinition.getTaskRoleArn()});
+    /**
+     * Appends the field with the length of its value, so that no value can be mistaken for the following fields.
+     */
+    private static void field(StringBuilder b, String name, @CheckForNull Object value) {
+        b.append(name).append('=');
+        if (value == null) {
+            b.append("null");
+        } else {
+            String s = value.toString();
+            b.append(s.length()).append(':').append(s);
+        }
+        b.append(';');
+    }
 
-            templateMatchesExistingExecutionRole = template.getExecutionRole() == null || template.getExecutionRole().equals(currentTaskDefinition.getExecutionRoleArn());
-            LOGGER.log(Level.INFO, "Match on execution role: {0}", new Object[] {templateMatchesExistingExecutionRole});
-            LOGGER.log(Level.FINE, "Match on execution role: {0}; template={1}; last={2}", new Object[] {templateMatchesExistingExecutionRole, template.getExecutionRole(), currentTaskDefinition.getExecutionRoleArn()});
+    @CheckForNull
+    private static String getFingerprint(@CheckForNull TaskDefinition taskDefinition) {
+        if (taskDefinition == null || taskDefinition.getContainerDefinitions().isEmpty()) {
+            return null;
         }
-        
-        if(templateMatchesExistingContainerDefinition && templateMatchesExistingVolumes && templateMatchesExistingTaskRole && templateMatchesExistingExecutionRole) {
-            LOGGER.log(Level.FINE, "Task Definition already exists: {0}", new Object[]{currentTaskDefinition.getTaskDefinitionArn()});
-            return currentTaskDefinition;
-        } else {
-            final RegisterTaskDefinitionRequest request = new RegisterTaskDefinitionRequest()                
-                    .withFamily(familyName)
-                    .withVolumes(template.getVolumeEntries())
-                    .withContainerDefinitions(def);
-
-            if (template.isFargate()) {
-                request
-                        .withRequiresCompatibilities(template.getLaunchType())
-                        .withNetworkMode("awsvpc")
-                        .withMemory(String.valueOf(template.getMemoryConstraint()))
-                        .withCpu(String.valueOf(template.getCpu()));
-                String executionRole = template.getExecutionRole();
-                if(!StringUtils.isEmpty(executionRole)){
-                    request.withExecutionRoleArn(executionRole);
-                }
+        Map<String, String> dockerLabels = taskDefinition.getContainerDefinitions().get(0).getDockerLabels();
+        return dockerLabels == null ? null : dockerLabels.get(FINGERPRINT_LABEL);
+    }
+
+    private Object getFamilyLock(String familyName) {
+        Object lock = familyLocks.get(familyName);
+        if (lock == null) {
+            Object newLock = new Object();
+            lock = familyLocks.putIfAbsent(familyName, newLock);
+            if (lock == null) {
+                lock = newLock;
             }
-            if (template.getTaskrole() != null) {
-                request.withTaskRoleArn(template.getTaskrole());
-            }            
-            final RegisterTaskDefinitionResult result = client.registerTaskDefinition(request);
-            LOGGER.log(Level.FINE, "Created Task Definition {0}: {1}", new Object[]{result.getTaskDefinition(), request});
-            LOGGER.log(Level.INFO, "Created Task Definition: {0}", new Object[]{result.getTaskDefinition()});
-            return result.getTaskDefinition();
+        }
+        return lock;
+    }
+
+    private static final class CachedTaskDefinition {
+        /**
+         * Template the task definition was last resolved for.
+         */
+        private final ECSTaskTemplate template;
+        private final String fingerprint;
+        private final TaskDefinition taskDefinition;
+
+        CachedTaskDefinition(ECSTaskTemplate template, String fingerprint, TaskDefinition taskDefinition) {
+            this.template = template;
+            this.fingerprint = fingerprint;
+            this.taskDefinition = taskDefinition;
         }
     }
 
@@ -268,7 +445,7 @@ class ECSService {
      * The parameter may be a task definition family, family with revision, or full task definition ARN.
      */
     TaskDefinition findTaskDefinition(String familyOrArn) {
-        AmazonECSClient client = getAmazonECSClient();
+        AmazonECS client = getAmazonECSClient();
 
         try {
             DescribeTaskDefinitionResult result = client.describeTaskDefinition(
@@ -288,10 +465,10 @@ class ECSService {
         return cloud.getDisplayName().replaceAll("\\s+","") + '-' + template.getTemplateName();
     }
 
-    String runEcsTask(final ECSSlave slave, final ECSTaskTemplate template, String clusterArn, Collection<String> command, TaskDefinition taskDefinition) throws IOException, AbortException {
-        AmazonECSClient client = getAmazonECSClient();
-        slave.setTaskDefinitonArn(taskDefinition.getTaskDefinitionArn());
-
+    /**
+     * Starts the task of a slave, on the given container instance if any, otherwise where ECS places it.
+     */
+    String runEcsTask(final ECSSlave slave, final ECSTaskTemplate template, String clusterArn, Collection<String> command, TaskDefinition taskDefinition, @CheckForNull String containerInstanceArn) throws IOException, AbortException {
         KeyValuePair envNodeName = new KeyValuePair();
         envNodeName.setName("SLAVE_NODE_NAME");
         envNodeName.setValue(slave.getComputer().getName());
@@ -300,6 +477,136 @@ class ECSService {
         envNodeSecret.setName("SLAVE_NODE_SECRET");
         envNodeSecret.setValue(slave.getComputer().getJnlpMac());
 
+        RunTaskRequest req = createRunTaskRequest(template, clusterArn, taskDefinition, new ContainerOverride()
+                .withCommand(command)
+                .withEnvironment(envNodeName)
+                .withEnvironment(envNodeSecret));
+        final RunTaskResult runTaskResult = runTask(req, containerInstanceArn == null ? null : Collections.singletonList(containerInstanceArn));
+        onRunTask(template, clusterArn, runTaskResult);
+        slave.setTaskDefinitonArn(req.getTaskDefinition());
+
+
+        if (!runTaskResult.getFailures().isEmpty()) {
+            LOGGER.log(Level.WARNING, "Slave {0} - Failure to run task with definition {1} on ECS cluster {2}", new Object[]{slave.getNodeName(), taskDefinition.getTaskDefinitionArn(), clusterArn});
+            for (Failure failure : runTaskResult.getFailures()) {
+                LOGGER.log(Level.WARNING, "Slave {0} - Failure reason={1}, arn={2}", new Object[]{slave.getNodeName(), failure.getReason(), failure.getArn()});
+            }
+            throw new AbortException("Failed to run slave container " + slave.getNodeName());
+        }
+        return runTaskResult.getTasks().get(0).getTaskArn();
+    }
+
+    /**
+     * Starts one task per slave with a single RunTask call. ECS applies the same overrides to all tasks of a call, so
+     * the containers get a claim URL and token instead of their slave name and secret, and exchange them for the
+     * arguments of one of the slaves on startup (see {@link ECSAgentClaimAction}).
+     *
+     * @param containerInstanceArns one container instance per slave to start the tasks on, or null to let ECS place them
+     * @return the started tasks, which may be fewer than the slaves if ECS could not place all of them
+     */
+    List<Task> runEcsTasks(final List<ECSSlave> slaves, final ECSTaskTemplate template, String clusterArn, String claimUrl, String claimToken, TaskDefinition taskDefinition, @CheckForNull List<String> containerInstanceArns) throws IOException, AbortException {
+        RunTaskRequest req = createRunTaskRequest(template, clusterArn, taskDefinition, new ContainerOverride()
+                .withEnvironment(new KeyValuePair().withName("JENKINS_CLAIM_URL").withValue(claimUrl))
+                .withEnvironment(new KeyValuePair().withName("JENKINS_CLAIM_TOKEN").withValue(claimToken)))
+                .withCount(slaves.size());
+        final RunTaskResult runTaskResult = runTask(req, containerInstanceArns);
+        onRunTask(template, clusterArn, runTaskResult);
+        for (ECSSlave slave : slaves) {
+            slave.setTaskDefinitonArn(req.getTaskDefinition());
+        }
+
+        if (!runTaskResult.getFailures().isEmpty()) {
+            LOGGER.log(Level.WARNING, "Only {0} of {1} tasks with definition {2} started on ECS cluster {3}", new Object[]{runTaskResult.getTasks().size(), slaves.size(), taskDefinition.getTaskDefinitionArn(), clusterArn});
+            for (Failure failure : runTaskResult.getFailures()) {
+                LOGGER.log(Level.WARNING, "Failure reason={0}, arn={1}", new Object[]{failure.getReason(), failure.getArn()});
+            }
+        }
+        if (runTaskResult.getTasks().isEmpty()) {
+            throw new AbortException("Failed to run " + slaves.size() + " slave containers with definition " + taskDefinition.getTaskDefinitionArn());
+        }
+        return runTaskResult.getTasks();
+    }
+
+    /**
+     * Runs the request, or turns it into a StartTask call starting one task on each of the given container instances.
+     * If the registered task definition is gone, e.g. because it was deregistered outside of Jenkins, it is registered
+     * again and the request retried once.
+     */
+    private RunTaskResult runTask(RunTaskRequest req, @CheckForNull List<String> containerInstanceArns) {
+        try {
+            return startOrRunTask(req, containerInstanceArns);
+        } catch (AmazonECSException e) {
+            TaskDefinition taskDefinition = isMissingTaskDefinition(e) ? replaceTaskDefinition(req.getTaskDefinition()) : null;
+            if (taskDefinition == null) {
+                throw e;
+            }
+            LOGGER.log(Level.INFO, "Task definition {0} is no longer usable, retrying with {1}: {2}",
+                    new Object[]{req.getTaskDefinition(), taskDefinition.getTaskDefinitionArn(), e.getErrorMessage()});
+            req.setTaskDefinition(taskDefinition.getTaskDefinitionArn());
+            return startOrRunTask(req, containerInstanceArns);
+        }
+    }
+
+    /**
+     * Whether ECS rejected the task because its task definition is gone, e.g. deregistered behind the back of Jenkins.
+     * ECS reports it as a client error or an invalid parameter, the SDK picking the exception type from the error code,
+     * with nothing but the message to tell it apart from the other errors of the same kind.
+     */
+    static boolean isMissingTaskDefinition(AmazonECSException e) {
+        if (!(e instanceof ClientException) && !(e instanceof InvalidParameterException)) {
+            return false;
+        }
+        final String message = StringUtils.lowerCase(e.getErrorMessage());
+        return message != null && message.contains("task") && message.contains("definition")
+                && (message.contains("inactive") || message.contains("unable to describe") || message.contains("not found")
+                        || message.contains("does not exist"));
+    }
+
+    /**
+     * Evicts the cached task definition with the given ARN and registers its template again.
+     *
+     * @return null if the ARN is not one of the cached task definitions, e.g. that of a task definition override
+     */
+    @CheckForNull
+    private TaskDefinition replaceTaskDefinition(String taskDefinitionArn) {
+        // arn:aws:ecs:<region>:<account>:task-definition/<family>:<revision>
+        final String familyName = StringUtils.substringBeforeLast(StringUtils.substringAfterLast(taskDefinitionArn, "/"), ":");
+        synchronized (getFamilyLock(familyName)) {
+            CachedTaskDefinition cached = taskDefinitions.get(familyName);
+            if (cached == null) {
+                return null;
+            }
+            if (!taskDefinitionArn.equals(cached.taskDefinition.getTaskDefinitionArn())) {
+                // replaced meanwhile, by another launch or a reconfiguration
+                return cached.taskDefinition;
+            }
+            taskDefinitions.remove(familyName);
+            return registerTemplate(familyName, cached.template);
+        }
+    }
+
+    private RunTaskResult startOrRunTask(RunTaskRequest req, @CheckForNull List<String> containerInstanceArns) {
+        if (containerInstanceArns == null) {
+            return getAmazonECSClient().runTask(req);
+        }
+        StartTaskResult result = getAmazonECSClient().startTask(new StartTaskRequest()
+                .withCluster(req.getCluster())
+                .withTaskDefinition(req.getTaskDefinition())
+                .withOverrides(req.getOverrides())
+                .withNetworkConfiguration(req.getNetworkConfiguration())
+                .withStartedBy(req.getStartedBy())
+                .withContainerInstances(containerInstanceArns));
+        return new RunTaskResult().withTasks(result.getTasks()).withFailures(result.getFailures());
+    }
+
+    private void onRunTask(ECSTaskTemplate template, String clusterArn, RunTaskResult runTaskResult) {
+        if (!template.isFargate() && !runTaskResult.getFailures().isEmpty()) {
+            // ECS could not place a task on resources the capacity snapshot showed as free
+            ECSClusterCapacity.forCluster(credentialsId, regionName, clusterArn).invalidate();
+        }
+    }
+
+    private RunTaskRequest createRunTaskRequest(final ECSTaskTemplate template, String clusterArn, TaskDefinition taskDefinition, ContainerOverride containerOverride) {
         // by convention, we assume the jenkins slave container is the first container in the task definition. ECS requires
         // all task definitions to contain at least one container, and all containers to have a name, so we do not need
         // to null- or bounds-check for the presence of a container definition.
@@ -311,17 +618,17 @@ class ECSService {
                 .withTaskDefinition(taskDefinition.getTaskDefinitionArn())
                 .withLaunchType(LaunchType.fromValue(template.getLaunchType()))
                 .withOverrides(new TaskOverride()
-                        .withContainerOverrides(new ContainerOverride()
-                                .withName(slaveContainerName)
-                                .withCommand(command)
-                                .withEnvironment(envNodeName)
-                                .withEnvironment(envNodeSecret)))
-                .withCluster(clusterArn);
+                        .withContainerOverrides(containerOverride.withName(slaveContainerName)))
+                .withCluster(clusterArn)
+                .withStartedBy(startedBy);
 
         if (template.isFargate()) {
             AwsVpcConfiguration awsVpcConfiguration = new AwsVpcConfiguration();
             awsVpcConfiguration.setAssignPublicIp(template.getAssignPublicIp() ? "ENABLED" : "DISABLED");
-            awsVpcConfiguration.setSecurityGroups(Arrays.asList(template.getSecurityGroups().split(",")));
+            if (StringUtils.isNotBlank(template.getSecurityGroups())) {
+                // without security groups, ECS uses the default security group of the VPC
+                awsVpcConfiguration.setSecurityGroups(Arrays.asList(template.getSecurityGroups().split(",")));
+            }
             awsVpcConfiguration.setSubnets(Arrays.asList(template.getSubnets().split(",")));
 
             NetworkConfiguration networkConfiguration = new NetworkConfiguration();
@@ -329,57 +636,124 @@ class ECSService {
 
             req.withNetworkConfiguration(networkConfiguration);
         }
-        final RunTaskResult runTaskResult = client.runTask(req);
+        return req;
+    }
 
+    void waitForSufficientClusterResources(Date timeout, ECSTaskTemplate template, String clusterArn) throws InterruptedException, AbortException {
+        if(!awaitClusterResources(timeout, template, clusterArn)) {
+            final String msg = MessageFormat.format("Timeout while waiting for sufficient resources: {0} cpu units, {1}mb free memory", template.getCpu(), template.getMemoryConstraint());
+            LOGGER.log(Level.WARNING, msg);
+            throw new AbortException(msg);
+        }
+    }
 
-        if (!runTaskResult.getFailures().isEmpty()) {
-            LOGGER.log(Level.WARNING, "Slave {0} - Failure to run task with definition {1} on ECS cluster {2}", new Object[]{slave.getNodeName(), taskDefinition.getTaskDefinitionArn(), clusterArn});
-            for (Failure failure : runTaskResult.getFailures()) {
-                LOGGER.log(Level.WARNING, "Slave {0} - Failure reason={1}, arn={2}", new Object[]{slave.getNodeName(), failure.getReason(), failure.getArn()});
+    /**
+     * Waits until the cluster has room for a task of the template.
+     *
+     * @return false if the timeout expired first
+     */
+    boolean awaitClusterResources(Date timeout, ECSTaskTemplate template, String clusterArn) throws InterruptedException {
+        ECSClusterCapacity capacity = ECSClusterCapacity.forCluster(credentialsId, regionName, clusterArn);
+        return capacity.awaitResources(this, template.getCpu(), template.getMemoryConstraint(), timeout, capacityRefreshSeconds);
+    }
+
+    /**
+     * Number of tasks of the template the latest capacity snapshot of the cluster has room for. Does not call ECS.
+     */
+    int countFreeSlots(ECSTaskTemplate template, String clusterArn) {
+        return ECSClusterCapacity.forCluster(credentialsId, regionName, clusterArn).countFreeSlots(this, template.getCpu(), template.getMemoryConstraint(), capacityRefreshSeconds);
+    }
+
+    /**
+     * Whether state change events currently keep track of the cluster, so that it need not be polled.
+     */
+    boolean isEventDriven(String clusterArn) {
+        return ECSClusterCapacity.forCluster(credentialsId, regionName, clusterArn).isEventDriven();
+    }
+
+    /**
+     * Reserves the resources of one task of the template in the latest capacity snapshot of the cluster.
+     * Does not call ECS.
+     *
+     * @return null if the snapshot shows no container instance with enough unreserved memory and cpu
+     */
+    @CheckForNull
+    ECSClusterCapacity.Reservation reserveClusterResources(ECSTaskTemplate template, String clusterArn) {
+        return ECSClusterCapacity.forCluster(credentialsId, regionName, clusterArn).reserve(template.getCpu(), template.getMemoryConstraint());
+    }
+
+    /**
+     * Describes the given tasks of the cluster, {@value #MAX_DESCRIBE_BATCH_SIZE} at a time. Tasks ECS does not know
+     * anymore are missing from the result.
+     */
+    List<Task> describeTasks(String clusterArn, List<String> taskArns) {
+        AmazonECS client = getAmazonECSClient();
+
+        List<Task> tasks = new ArrayList<Task>();
+        for (int i = 0; i < taskArns.size(); i += MAX_DESCRIBE_BATCH_SIZE) {
+            List<String> batch = taskArns.subList(i, Math.min(i + MAX_DESCRIBE_BATCH_SIZE, taskArns.size()));
+            DescribeTasksResult result = client.describeTasks(new DescribeTasksRequest()
+                    .withTasks(batch)
+                    .withCluster(clusterArn));
+            tasks.addAll(result.getTasks());
+            for (Failure failure : result.getFailures()) {
+                LOGGER.log(Level.FINE, "Could not describe task {0}: {1}", new Object[]{failure.getArn(), failure.getReason()});
             }
-            throw new AbortException("Failed to run slave container " + slave.getNodeName());
         }
-        return runTaskResult.getTasks().get(0).getTaskArn();
+        return tasks;
     }
 
-    void waitForSufficientClusterResources(Date timeout, ECSTaskTemplate template, String clusterArn) throws InterruptedException, AbortException {
-        AmazonECSClient client = getAmazonECSClient();
+    /**
+     * Returns the running tasks of the cluster that were started with the given {@code startedBy} value.
+     */
+    List<Task> describeTasksStartedBy(String clusterArn, String startedBy) {
+        AmazonECS client = getAmazonECSClient();
 
-        boolean hasEnoughResources = false;
-        WHILE:
+        List<String> taskArns = new ArrayList<String>();
+        String nextToken = null;
         do {
-            ListContainerInstancesResult listContainerInstances = client.listContainerInstances(new ListContainerInstancesRequest().withCluster(clusterArn));
-            DescribeContainerInstancesResult containerInstancesDesc = client.describeContainerInstances(new DescribeContainerInstancesRequest().withContainerInstances(listContainerInstances.getContainerInstanceArns()).withCluster(clusterArn));
-            LOGGER.log(Level.INFO, "Found {0} instances", containerInstancesDesc.getContainerInstances().size());
-            for(ContainerInstance instance : containerInstancesDesc.getContainerInstances()) {
-                LOGGER.log(Level.INFO, "Resources found in instance {1}: {0}", new Object[] {instance.getRemainingResources(), instance.getContainerInstanceArn()});
-                Resource memoryResource = null;
-                Resource cpuResource = null;
-                for(Resource resource : instance.getRemainingResources()) {
-                    if("MEMORY".equals(resource.getName())) {
-                        memoryResource = resource;
-                    } else if("CPU".equals(resource.getName())) {
-                        cpuResource = resource;
-                    }
-                }
-
-                LOGGER.log(Level.INFO, "Instance {0} has {1}mb of free memory. {2}mb are required", new Object[]{ instance.getContainerInstanceArn(), memoryResource.getIntegerValue(), template.getMemoryConstraint()});
-                LOGGER.log(Level.INFO, "Instance {0} has {1} units of free cpu. {2} units are required", new Object[]{ instance.getContainerInstanceArn(), cpuResource.getIntegerValue(), template.getCpu()});
-                if(memoryResource.getIntegerValue() >= template.getMemoryConstraint()
-                        && cpuResource.getIntegerValue() >= template.getCpu()) {
-                    hasEnoughResources = true;
-                    break WHILE;
-                }
-            }
+            ListTasksResult result = client.listTasks(new ListTasksRequest()
+                    .withCluster(clusterArn)
+                    .withStartedBy(startedBy)
+                    .withDesiredStatus(DesiredStatus.RUNNING)
+                    .withMaxResults(MAX_DESCRIBE_BATCH_SIZE)
+                    .withNextToken(nextToken));
+            taskArns.addAll(result.getTaskArns());
+            nextToken = result.getNextToken();
+        } while (nextToken != null);
+
+        List<Task> tasks = describeTasks(clusterArn, taskArns);
+        LOGGER.log(Level.FINE, "Found {0} tasks started by {1} in cluster {2}", new Object[]{tasks.size(), startedBy, clusterArn});
+        return tasks;
+    }
 
-            // sleep 10s and check memory again
-            Thread.sleep(10000);
-        } while(!hasEnoughResources && timeout.after(new Date()));
+    /**
+     * Lists and describes all active container instances of the cluster.
+     */
+    List<ContainerInstance> describeContainerInstances(String clusterArn) {
+        AmazonECS client = getAmazonECSClient();
 
-        if(!hasEnoughResources) {
-            final String msg = MessageFormat.format("Timeout while waiting for sufficient resources: {0} cpu units, {1}mb free memory", template.getCpu(), template.getMemoryConstraint());
-            LOGGER.log(Level.WARNING, msg);
-            throw new AbortException(msg);
+        List<String> containerInstanceArns = new ArrayList<String>();
+        String nextToken = null;
+        do {
+            ListContainerInstancesResult result = client.listContainerInstances(new ListContainerInstancesRequest()
+                    .withCluster(clusterArn)
+                    .withStatus("ACTIVE")
+                    .withMaxResults(MAX_DESCRIBE_BATCH_SIZE)
+                    .withNextToken(nextToken));
+            containerInstanceArns.addAll(result.getContainerInstanceArns());
+            nextToken = result.getNextToken();
+        } while (nextToken != null);
+
+        List<ContainerInstance> containerInstances = new ArrayList<ContainerInstance>();
+        for (int i = 0; i < containerInstanceArns.size(); i += MAX_DESCRIBE_BATCH_SIZE) {
+            List<String> batch = containerInstanceArns.subList(i, Math.min(i + MAX_DESCRIBE_BATCH_SIZE, containerInstanceArns.size()));
+            DescribeContainerInstancesResult result = client.describeContainerInstances(new DescribeContainerInstancesRequest()
+                    .withContainerInstances(batch)
+                    .withCluster(clusterArn));
+            containerInstances.addAll(result.getContainerInstances());
         }
+        LOGGER.log(Level.FINE, "Found {0} instances in cluster {1}", new Object[]{containerInstances.size(), clusterArn});
+        return containerInstances;
     }
 }
@@ -27,25 +27,33 @@ package com.cloudbees.jenkins.plugins.amazonecs;
 
 import java.io.IOException;
 import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import javax.annotation.concurrent.GuardedBy;
 
+import com.google.common.util.concurrent.SettableFuture;
+
+import hudson.model.Computer;
 import hudson.model.Descriptor;
+import hudson.model.Node;
 import hudson.model.TaskListener;
 import hudson.node_monitors.ResponseTimeMonitor;
 import hudson.slaves.AbstractCloudComputer;
 import hudson.slaves.AbstractCloudSlave;
+import hudson.slaves.Cloud;
 import hudson.slaves.ComputerLauncher;
 import hudson.slaves.RetentionStrategy;
+import jenkins.model.Jenkins;
 
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
- * This slave should only handle a single task and then be shutdown.
+ * This slave handles a single task and is then shutdown, unless its template lets it run several builds.
  *
  * @author <a href="mailto:nicolas.deloof@gmail.com">Nicolas De Loof</a>
  */
@@ -53,8 +61,29 @@ public class ECSSlave extends AbstractCloudSlave {
 
     private static final Logger LOGGER = Logger.getLogger(ECSCloud.class.getName());
 
-    @Nonnull
-    private final ECSCloud cloud;
+    /**
+     * Name of the {@link ECSCloud} of this slave. The cloud itself is not persisted with every slave.
+     */
+    private String cloudName;
+
+    /**
+     * Cloud of slaves persisted by older versions, only read to migrate them to {@link #cloudName}.
+     */
+    @Deprecated
+    private ECSCloud cloud;
+
+    /**
+     * Cloud this slave was created by, in case it is no longer configured.
+     */
+    @CheckForNull
+    private transient ECSCloud createdBy;
+
+    /**
+     * Name of the {@link ECSTaskTemplate} this slave was launched from. Null for slaves persisted by older versions,
+     * which are matched to their template by label instead.
+     */
+    @CheckForNull
+    private String templateName;
 
     /**
      * AWS Resource Name (ARN) of the ECS Cluster.
@@ -69,6 +98,22 @@ public class ECSSlave extends AbstractCloudSlave {
      */
     @CheckForNull
     private String taskArn;
+    /**
+     * Token the task of a batched launch uses to claim this slave, until the slave is online.
+     *
+     * @see ECSAgentClaimAction
+     */
+    @CheckForNull
+    private transient String claimToken;
+    /**
+     * Planned node waiting for this slave to be online, while it is being provisioned.
+     */
+    @CheckForNull
+    private transient volatile SettableFuture<Node> plannedNode;
+    /**
+     * When the task of this slave was started, 0 if unknown.
+     */
+    private transient long taskStartedAt;
 
     private static RetentionStrategy deleteAfterFinished = new RetentionStrategy<ECSComputer>() {
         @Override
@@ -82,12 +127,14 @@ public class ECSSlave extends AbstractCloudSlave {
             LOGGER.log(Level.FINE, "Checking computer: {0}", c);
 
             AbstractCloudSlave node = c.getNode();
+            ECSTaskTemplate template = node instanceof ECSSlave ? ((ECSSlave) node).getTemplate() : null;
+            boolean reusable = template != null && template.isReusable();
 
             // If the computer is NOT idle, then it is currently running some task.
             // In this case, we are going to tell Jenkins that it can no longer accept
             // any new tasks, which will cause it to create a new node for any subsequent
-            // tasks.
-            if(!c.isIdle() ) {
+            // tasks. Reusable computers stop accepting tasks once they ran enough builds.
+            if(!c.isIdle() && !reusable) {
                 LOGGER.log(Level.FINE, "Computer is not idle; setting it to no longer accept tasks.");
                 c.setAcceptingTasks( false );
             }
@@ -97,37 +144,67 @@ public class ECSSlave extends AbstractCloudSlave {
             // the node.
             if(c.isIdle() && !c.isAcceptingTasks() && node != null) {
                 LOGGER.log(Level.FINE, "Computer is idle and not accepting tasks; terminating it.");
-                try {
-                    node.terminate();
-                } catch (InterruptedException e) {
-                    LOGGER.log(Level.WARNING, "Failed to terminate " + c.getName(), e);
-                } catch (IOException e) {
-                    LOGGER.log(Level.WARNING, "Failed to terminate " + c.getName(), e);
-                }
+                terminate(c, node);
+            }
+
+            // A reusable computer waiting for its next build is terminated once idle for longer than the
+            // idle timeout, unless it is one of the slaves the warm pool of its template keeps.
+            if (reusable && c.isOnline() && c.isIdle() && c.isAcceptingTasks()
+                    && System.currentTimeMillis() - c.getIdleStartMilliseconds() > TimeUnit.MINUTES.toMillis(template.getIdleTimeoutMinutes())
+                    && countIdle(((ECSSlave) node).getCloud().getSlaves(template)) > template.getMinIdle()) {
+                LOGGER.log(Level.FINE, "Computer is idle for more than {0} minute(s); terminating it.", template.getIdleTimeoutMinutes());
+                c.setAcceptingTasks(false);
+                terminate(c, node);
             }
 
             // If the Response Time Monitor has marked this computer as not responding, then
             // we are going to terminate the node to free up resources.
             if (c.getOfflineCause() instanceof ResponseTimeMonitor.Data && node != null) {
                 LOGGER.log(Level.FINE, "Computer is not responding; terminating it");
-                try {
-                    node.terminate();
-                } catch (InterruptedException e) {
-                    LOGGER.log(Level.WARNING, "Failed to terminate " + c.getName(), e);
-                } catch (IOException e) {
-                    LOGGER.log(Level.WARNING, "Failed to terminate " + c.getName(), e);
-                }
+                terminate(c, node);
             }
 
             // Tell Jenkins to check again in 1 minute.
             return 1;
         }
 
+        private void terminate(ECSComputer c, AbstractCloudSlave node) {
+            try {
+                node.terminate();
+            } catch (InterruptedException e) {
+                LOGGER.log(Level.WARNING, "Failed to terminate " + c.getName(), e);
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to terminate " + c.getName(), e);
+            }
+        }
+
+        private int countIdle(List<ECSSlave> slaves) {
+            int idle = 0;
+            for (ECSSlave slave : slaves) {
+                Computer computer = slave.toComputer();
+                if (computer != null && computer.isOnline() && computer.isIdle() && computer.isAcceptingTasks()) {
+                    idle++;
+                }
+            }
+            return idle;
+        }
+
     };
 
     public ECSSlave(@Nonnull ECSCloud cloud, @Nonnull String name, @Nullable String remoteFS, @Nullable String labelString, @Nonnull ComputerLauncher launcher) throws Descriptor.FormException, IOException {
         super(name, "ECS slave", remoteFS, 1, Mode.EXCLUSIVE, labelString, launcher, deleteAfterFinished, Collections.EMPTY_LIST);
-        this.cloud = cloud;
+        this.cloudName = cloud.name;
+        this.createdBy = cloud;
+    }
+
+    @Override
+    protected Object readResolve() {
+        if (cloud != null) {
+            cloudName = cloud.name;
+            createdBy = cloud;
+            cloud = null;
+        }
+        return super.readResolve();
     }
 
     public String getClusterArn() {
@@ -142,6 +219,15 @@ public class ECSSlave extends AbstractCloudSlave {
         return taskArn;
     }
 
+    @CheckForNull
+    public String getTemplateName() {
+        return templateName;
+    }
+
+    void setTemplateName(String templateName) {
+        this.templateName = templateName;
+    }
+
     void setClusterArn(String clusterArn) {
         this.clusterArn = clusterArn;
     }
@@ -154,6 +240,65 @@ public class ECSSlave extends AbstractCloudSlave {
         this.taskDefinitonArn = taskDefinitonArn;
     }
 
+    long getTaskStartedAt() {
+        return taskStartedAt;
+    }
+
+    void setTaskStartedAt(long taskStartedAt) {
+        this.taskStartedAt = taskStartedAt;
+    }
+
+    void setClaimToken(String claimToken) {
+        this.claimToken = claimToken;
+    }
+
+    void setPlannedNode(@CheckForNull SettableFuture<Node> plannedNode) {
+        this.plannedNode = plannedNode;
+    }
+
+    @CheckForNull
+    SettableFuture<Node> getPlannedNode() {
+        return plannedNode;
+    }
+
+    /**
+     * Whether a planned node still waits for this slave to be online.
+     */
+    boolean isLaunching() {
+        return plannedNode != null;
+    }
+
+    /**
+     * Called once the slave is online. Completes its planned node, if it is still being provisioned.
+     */
+    void connected() {
+        releaseClaim();
+        SettableFuture<Node> future = plannedNode;
+        if (future != null && future.set(this)) {
+            LOGGER.log(Level.INFO, "ECS Slave " + getNodeName() + " (ecs task {0}) connected", taskArn);
+        }
+        plannedNode = null;
+    }
+
+    /**
+     * Called once the slave is removed. Fails its planned node, if it is still being provisioned.
+     */
+    void removed() {
+        releaseClaim();
+        SettableFuture<Node> future = plannedNode;
+        if (future != null) {
+            future.setException(new IllegalStateException("Slave " + getNodeName() + " - Node was deleted, computer is null"));
+        }
+        plannedNode = null;
+    }
+
+    void releaseClaim() {
+        if (claimToken != null && taskArn != null) {
+            ECSAgentClaimAction.unregister(claimToken, taskArn);
+        }
+        claimToken = null;
+    }
+
     @Override
     public AbstractCloudComputer createComputer() {
         return new ECSComputer(this);
@@ -161,12 +306,38 @@ public class ECSSlave extends AbstractCloudSlave {
 
     @Override
     protected void _terminate(TaskListener listener) throws IOException, InterruptedException {
+        // only queues the task to be stopped, so that the node is removed right away
+        releaseClaim();
         if (taskArn != null) {
-            cloud.deleteTask(taskArn, clusterArn);
+            ECSCloud c = getCloud();
+            if (c != null) {
+                c.deleteTask(taskArn, clusterArn);
+            } else {
+                LOGGER.log(Level.WARNING, "Cloud {0} of slave {1} no longer exists, cannot stop task {2}",
+                        new Object[]{cloudName, getNodeName(), taskArn});
+            }
         }
     }
 
+    public String getCloudName() {
+        return cloudName;
+    }
+
+    /**
+     * The cloud of this slave as currently configured, or the one it was created by if it was removed since.
+     */
+    @CheckForNull
     public ECSCloud getCloud() {
-        return cloud;
+        Cloud c = Jenkins.getInstance().getCloud(cloudName);
+        return c instanceof ECSCloud ? (ECSCloud) c : createdBy;
+    }
+
+    /**
+     * Template this slave was launched from, if its cloud still has it.
+     */
+    @CheckForNull
+    ECSTaskTemplate getTemplate() {
+        Cloud c = Jenkins.getInstance().getCloud(cloudName);
+        return c instanceof ECSCloud ? ((ECSCloud) c).getTemplate(this) : null;
     }
 }
@@ -0,0 +1,201 @@
+/*
+ * The MIT License
+ *
+ *  Copyright (c) 2015, CloudBees, Inc.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ *
+ */
+
+package com.cloudbees.jenkins.plugins.amazonecs;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.ecs.model.DesiredStatus;
+import com.amazonaws.services.ecs.model.Task;
+
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.slaves.Cloud;
+import jenkins.model.Jenkins;
+import jenkins.util.Timer;
+
+/**
+ * Checks the tasks of the persisted {@link ECSSlave}s once Jenkins started, instead of waiting for the retention
+ * strategy or the {@link hudson.node_monitors.ResponseTimeMonitor} to notice the dead ones.
+ *
+ * The tasks are described in batches per cluster. Slaves whose task stopped, or is unknown to ECS, are removed right
+ * away. Slaves whose task still runs are kept for their agent to connect again; those still offline after the task
+ * creation timeout of their cloud are terminated. The tasks of ephemeral slaves, which are not persisted, are stopped.
+ */
+public final class ECSSlaveReconciler {
+
+    private static final Logger LOGGER = Logger.getLogger(ECSSlaveReconciler.class.getName());
+
+    private ECSSlaveReconciler() {
+    }
+
+    @Initializer(after = InitMilestone.JOB_LOADED)
+    public static void reconcileOnStartup() {
+        // ECS may be slow or unreachable, which must not hold up the startup
+        Computer.threadPoolForRemoting.submit(new Runnable() {
+            @Override
+            public void run() {
+                reconcile();
+            }
+        });
+    }
+
+    static void reconcile() {
+        // slaves by cloud and cluster, which share the service and the DescribeTasks calls
+        final Map<String, List<ECSSlave>> slavesByCluster = new LinkedHashMap<String, List<ECSSlave>>();
+        final Map<String, ECSCloud> clouds = new HashMap<String, ECSCloud>();
+        for (Node node : Jenkins.getInstance().getNodes()) {
+            if (!(node instanceof ECSSlave)) {
+                continue;
+            }
+            ECSSlave slave = (ECSSlave) node;
+            if (slave.isLaunching()) {
+                // launched since Jenkins started, not loaded from disk
+                continue;
+            }
+            if (slave.getTaskArn() == null) {
+                // Jenkins stopped before the task of the slave was started
+                LOGGER.log(Level.INFO, "Removing slave {0}, its task was never started", slave.getNodeName());
+                remove(slave);
+                continue;
+            }
+            ECSCloud cloud = slave.getCloud();
+            if (cloud == null) {
+                LOGGER.log(Level.WARNING, "Cloud {0} of slave {1} no longer exists, cannot check its task {2}",
+                        new Object[]{slave.getCloudName(), slave.getNodeName(), slave.getTaskArn()});
+                continue;
+            }
+            String clusterArn = slave.getClusterArn() != null ? slave.getClusterArn() : cloud.getCluster();
+            String key = cloud.name + '/' + clusterArn;
+            List<ECSSlave> slaves = slavesByCluster.get(key);
+            if (slaves == null) {
+                slaves = new ArrayList<ECSSlave>();
+                slavesByCluster.put(key, slaves);
+                clouds.put(key, cloud);
+            }
+            slaves.add(slave);
+        }
+
+        for (Map.Entry<String, List<ECSSlave>> entry : slavesByCluster.entrySet()) {
+            final ECSCloud cloud = clouds.get(entry.getKey());
+            final List<ECSSlave> slaves = entry.getValue();
+            final String clusterArn = slaves.get(0).getClusterArn() != null ? slaves.get(0).getClusterArn() : cloud.getCluster();
+            try {
+                reconcile(cloud, clusterArn, slaves);
+            } catch (AmazonClientException e) {
+                LOGGER.log(Level.WARNING, "Failed to check the tasks of " + slaves.size() + " slave(s) of cloud "
+                        + cloud.name + " in cluster " + clusterArn + ", keeping them", e);
+            }
+        }
+
+        // ephemeral slaves did not survive the restart, their tasks have to be stopped
+        final long startedBefore = ManagementFactory.getRuntimeMXBean().getStartTime();
+        for (Cloud cloud : Jenkins.getInstance().clouds) {
+            if (cloud instanceof ECSCloud && ((ECSCloud) cloud).isEphemeralNodes()) {
+                try {
+                    ECSOrphanReaper.reap((ECSCloud) cloud, startedBefore, TaskListener.NULL);
+                } catch (AmazonClientException e) {
+                    LOGGER.log(Level.WARNING, "Failed to stop the tasks of the ephemeral slaves of cloud " + cloud.name, e);
+                }
+            }
+        }
+    }
+
+    private static void reconcile(final ECSCloud cloud, String clusterArn, List<ECSSlave> slaves) {
+        final List<String> taskArns = new ArrayList<String>();
+        for (ECSSlave slave : slaves) {
+            taskArns.add(slave.getTaskArn());
+        }
+        final Map<String, Task> tasks = new HashMap<String, Task>();
+        for (Task task : cloud.getEcsService().describeTasks(clusterArn, taskArns)) {
+            tasks.put(task.getTaskArn(), task);
+        }
+
+        int removed = 0;
+        final List<ECSSlave> running = new ArrayList<ECSSlave>();
+        for (ECSSlave slave : slaves) {
+            Task task = tasks.get(slave.getTaskArn());
+            if (task == null || DesiredStatus.STOPPED.toString().equals(task.getLastStatus())
+                    || DesiredStatus.STOPPED.toString().equals(task.getDesiredStatus())) {
+                LOGGER.log(Level.INFO, "Removing slave {0}, its task {1} is {2}", new Object[]{slave.getNodeName(),
+                        slave.getTaskArn(), task == null ? "gone" : task.getLastStatus() + ": " + task.getStoppedReason()});
+                if (task != null && !DesiredStatus.STOPPED.toString().equals(task.getLastStatus())) {
+                    // stopping, but still holding resources
+                    cloud.deleteTask(slave.getTaskArn(), clusterArn);
+                }
+                remove(slave);
+                removed++;
+            } else {
+                running.add(slave);
+            }
+        }
+        LOGGER.log(Level.INFO, "Kept {0} slave(s) of cloud {1} in cluster {2} whose task is running, removed {3}",
+                new Object[]{running.size(), cloud.name, clusterArn, removed});
+
+        if (!running.isEmpty()) {
+            // the agents of running tasks reconnect on their own, or not at all
+            Timer.get().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    for (ECSSlave slave : running) {
+                        Computer computer = slave.toComputer();
+                        if (computer != null && computer.isOffline() && Jenkins.getInstance().getNode(slave.getNodeName()) == slave) {
+                            LOGGER.log(Level.INFO, "Slave {0} did not reconnect to its task {1}, terminating it",
+                                    new Object[]{slave.getNodeName(), slave.getTaskArn()});
+                            try {
+                                slave.terminate();
+                            } catch (InterruptedException e) {
+                                LOGGER.log(Level.WARNING, "Failed to terminate " + slave.getNodeName(), e);
+                            } catch (IOException e) {
+                                LOGGER.log(Level.WARNING, "Failed to terminate " + slave.getNodeName(), e);
+                            }
+                        }
+                    }
+                }
+            }, cloud.getSlaveTimoutInSeconds(), TimeUnit.SECONDS);
+        }
+    }
+
+    private static void remove(ECSSlave slave) {
+        try {
+            Jenkins.getInstance().removeNode(slave);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to remove slave " + slave.getNodeName(), e);
+        }
+    }
+}
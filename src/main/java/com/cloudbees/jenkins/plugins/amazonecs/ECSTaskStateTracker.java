@@ -0,0 +1,266 @@
+/*
+ * The MIT License
+ *
+ *  Copyright (c) 2015, CloudBees, Inc.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ *
+ */
+
+package com.cloudbees.jenkins.plugins.amazonecs;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.Nonnull;
+
+import org.apache.commons.lang.StringUtils;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.ecs.model.Container;
+import com.amazonaws.services.ecs.model.DesiredStatus;
+import com.amazonaws.services.ecs.model.Task;
+
+import hudson.model.Computer;
+import jenkins.util.Timer;
+
+/**
+ * Watches the tasks of the slaves being launched, so that a task which stops before its agent connects fails its
+ * planned node right away, instead of once the task creation timeout expired.
+ *
+ * All tracked tasks are polled together, with one DescribeTasks call per cluster and
+ * {@value ECSService#MAX_DESCRIBE_BATCH_SIZE} tasks. A task is no longer tracked once its slave is online or removed.
+ * Clusters whose events are read by the {@link ECSEventIngester} are not polled while the events keep coming.
+ */
+final class ECSTaskStateTracker {
+
+    private static final Logger LOGGER = Logger.getLogger(ECSTaskStateTracker.class.getName());
+
+    static long POLL_INTERVAL_MILLIS = Long.getLong(ECSTaskStateTracker.class.getName() + ".pollIntervalMillis", TimeUnit.SECONDS.toMillis(5));
+
+    /**
+     * Stopped reasons of tasks that may well start on a second attempt, e.g. on another container instance.
+     */
+    private static final String[] TRANSIENT_REASONS = {
+            "CannotPullContainerError",
+            "ResourceInitializationError",
+            "DockerTimeoutError",
+            "Timeout waiting for network interface",
+            "Host EC2",
+            "container instance",
+            "Scaling activity initiated",
+    };
+
+    private static final ECSTaskStateTracker INSTANCE = new ECSTaskStateTracker();
+
+    /**
+     * Gets told about the tracked tasks that stopped.
+     */
+    interface Listener {
+        /**
+         * Called once, without holding any lock.
+         *
+         * @param reason why the task stopped, as far as ECS tells
+         */
+        void stopped(ECSSlave slave, String reason);
+    }
+
+    /**
+     * Tracked tasks, by task ARN.
+     */
+    private final Map<String, Tracked> tracked = new LinkedHashMap<String, Tracked>();
+
+    private boolean pollScheduled;
+
+    private ECSTaskStateTracker() {
+    }
+
+    @Nonnull
+    static ECSTaskStateTracker get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Tracks the task of the slave until the slave is online or removed.
+     */
+    synchronized void track(ECSService service, ECSSlave slave, Listener listener) {
+        if (slave.getTaskArn() == null) {
+            return;
+        }
+        tracked.put(slave.getTaskArn(), new Tracked(service, slave, listener));
+        schedulePoll();
+    }
+
+    synchronized int getTrackedCount() {
+        return tracked.size();
+    }
+
+    private void schedulePoll() {
+        if (pollScheduled) {
+            return;
+        }
+        pollScheduled = true;
+        Timer.get().schedule(new Runnable() {
+            @Override
+            public void run() {
+                // ECS calls do not belong on the shared timer threads
+                Computer.threadPoolForRemoting.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        poll();
+                    }
+                });
+            }
+        }, POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    private void poll() {
+        // tasks by service and cluster, which share the DescribeTasks calls
+        final Map<ECSService, Map<String, List<Tracked>>> due = new HashMap<ECSService, Map<String, List<Tracked>>>();
+        synchronized (this) {
+            pollScheduled = false;
+            for (Tracked t : new ArrayList<Tracked>(tracked.values())) {
+                if (!t.slave.isLaunching()) {
+                    tracked.remove(t.taskArn);
+                    continue;
+                }
+                if (t.service.isEventDriven(t.slave.getClusterArn())) {
+                    // told by taskStopped(), unless the events stop coming
+                    continue;
+                }
+                Map<String, List<Tracked>> clusters = due.get(t.service);
+                if (clusters == null) {
+                    clusters = new HashMap<String, List<Tracked>>();
+                    due.put(t.service, clusters);
+                }
+                List<Tracked> tasks = clusters.get(t.slave.getClusterArn());
+                if (tasks == null) {
+                    tasks = new ArrayList<Tracked>();
+                    clusters.put(t.slave.getClusterArn(), tasks);
+                }
+                tasks.add(t);
+            }
+        }
+
+        final List<Tracked> stopped = new ArrayList<Tracked>();
+        for (Map.Entry<ECSService, Map<String, List<Tracked>>> service : due.entrySet()) {
+            for (Map.Entry<String, List<Tracked>> cluster : service.getValue().entrySet()) {
+                final Map<String, Tracked> byArn = new HashMap<String, Tracked>();
+                for (Tracked t : cluster.getValue()) {
+                    byArn.put(t.taskArn, t);
+                }
+                try {
+                    for (Task task : service.getKey().describeTasks(cluster.getKey(), new ArrayList<String>(byArn.keySet()))) {
+                        Tracked t = byArn.get(task.getTaskArn());
+                        if (t != null && DesiredStatus.STOPPED.toString().equals(task.getLastStatus())) {
+                            t.reason = getReason(task);
+                            stopped.add(t);
+                        }
+                    }
+                } catch (AmazonClientException e) {
+                    LOGGER.log(Level.WARNING, "Failed to check the state of " + byArn.size() + " launching task(s) in cluster " + cluster.getKey(), e);
+                }
+            }
+        }
+
+        synchronized (this) {
+            for (Tracked t : stopped) {
+                tracked.remove(t.taskArn);
+            }
+            if (!tracked.isEmpty()) {
+                schedulePoll();
+            }
+        }
+        for (Tracked t : stopped) {
+            notifyStopped(t);
+        }
+    }
+
+    /**
+     * Handles a task reported as stopped by a state change event, if it is tracked.
+     */
+    void taskStopped(String taskArn, String reason) {
+        final Tracked t;
+        synchronized (this) {
+            t = tracked.remove(taskArn);
+        }
+        if (t != null && t.slave.isLaunching()) {
+            t.reason = reason;
+            notifyStopped(t);
+        }
+    }
+
+    private static void notifyStopped(Tracked t) {
+        LOGGER.log(Level.WARNING, "Task {0} of slave {1} stopped before the slave connected: {2}",
+                new Object[]{t.taskArn, t.slave.getNodeName(), t.reason});
+        try {
+            t.listener.stopped(t.slave, t.reason);
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Failed to handle the stopped task " + t.taskArn, e);
+        }
+    }
+
+    /**
+     * The stopped reason of the task, followed by the reason and exit code of each container that has one.
+     */
+    static String getReason(Task task) {
+        final List<String> reasons = new ArrayList<String>();
+        reasons.add(StringUtils.defaultIfEmpty(task.getStoppedReason(), "Task stopped"));
+        for (Container container : task.getContainers()) {
+            if (StringUtils.isNotEmpty(container.getReason()) || container.getExitCode() != null) {
+                reasons.add(container.getName() + ": " + StringUtils.defaultString(container.getReason())
+                        + (container.getExitCode() != null ? " (exit code " + container.getExitCode() + ")" : ""));
+            }
+        }
+        return StringUtils.join(reasons, "; ");
+    }
+
+    /**
+     * Whether a task that stopped for this reason may start on a second attempt.
+     */
+    static boolean isTransient(String reason) {
+        for (String transientReason : TRANSIENT_REASONS) {
+            if (reason.contains(transientReason)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static final class Tracked {
+        final ECSService service;
+        final ECSSlave slave;
+        final String taskArn;
+        final Listener listener;
+        String reason;
+
+        Tracked(ECSService service, ECSSlave slave, Listener listener) {
+            this.service = service;
+            this.slave = slave;
+            this.taskArn = slave.getTaskArn();
+            this.listener = listener;
+        }
+    }
+}
@@ -49,6 +49,7 @@ import org.apache.commons.lang.StringUtils;
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.RelativePath;
 
 import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
@@ -62,6 +63,9 @@ import java.util.*;
  * @author <a href="mailto:nicolas.deloof@gmail.com">Nicolas De Loof</a>
  */
 public class ECSTaskTemplate extends AbstractDescribableImpl<ECSTaskTemplate> {
+
+    private static final int DEFAULT_IDLE_TIMEOUT_MINUTES = 10;
+
     /**
      * Template Name
      */
@@ -237,6 +241,67 @@ public class ECSTaskTemplate extends AbstractDescribableImpl<ECSTaskTemplate> {
     private String logDriver;
     private List<LogDriverOption> logDriverOptions;
 
+    /**
+     * Maximum number of agents of this template launched at the same time, 0 for no limit.
+     */
+    private int maxConcurrentLaunches;
+
+    /**
+     * Start up to 10 slaves with a single RunTask call. The image has to claim its slave arguments on startup.
+     *
+     * @see ECSAgentClaimAction
+     */
+    private boolean batchLaunch;
+
+    /**
+     * Number of idle, connected slaves of this template kept ready for new builds, 0 for none.
+     *
+     * @see ECSWarmPool
+     */
+    private int minIdle;
+
+    /**
+     * Minutes after which idle slaves beyond {@link #minIdle} are terminated, and after which the pool of a template
+     * no build used is emptied. 0 keeps them.
+     */
+    private int idleTtlMinutes;
+
+    /**
+     * Number of builds a slave of this template runs before it is terminated, 0 or 1 for single use slaves.
+     */
+    private int maxBuilds;
+
+    /**
+     * Minutes a slave running several builds may stay idle before it is terminated.
+     */
+    private int idleTimeoutMinutes;
+
+    /**
+     * Percentage of the queued builds without an agent for which slaves are launched right away, instead of waiting
+     * for the Jenkins provisioner. 0 leaves provisioning to Jenkins.
+     *
+     * @see ECSProvisionerStrategy
+     */
+    private int provisioningAggressiveness;
+
+    /**
+     * Seconds a build may wait in the queue before slaves are launched for all waiting builds of the label, 0 for no
+     * target.
+     */
+    private int queueWaitTargetSeconds;
+
+    /**
+     * Seconds to wait for room in the cluster before launching on Fargate instead, 0 to wait for the whole slave
+     * timeout. Only used with the EC2 launch type.
+     */
+    private int fargateFallbackSeconds;
+
+    private transient ECSLaunchLimiter launchLimiter;
+
+    private transient ECSTaskTemplate fargateFallback;
+
+    private transient volatile Set<LabelAtom> labelSet;
+
     @DataBoundConstructor
     public ECSTaskTemplate(@Nonnull String templateName,
                            @Nullable String label,
@@ -332,6 +397,51 @@ public class ECSTaskTemplate extends AbstractDescribableImpl<ECSTaskTemplate> {
         this.dnsSearchDomains = StringUtils.trimToNull(dnsSearchDomains);
     }
 
+    @DataBoundSetter
+    public void setMaxConcurrentLaunches(int maxConcurrentLaunches) {
+        this.maxConcurrentLaunches = Math.max(0, maxConcurrentLaunches);
+    }
+
+    @DataBoundSetter
+    public void setBatchLaunch(boolean batchLaunch) {
+        this.batchLaunch = batchLaunch;
+    }
+
+    @DataBoundSetter
+    public void setMinIdle(int minIdle) {
+        this.minIdle = Math.max(0, minIdle);
+    }
+
+    @DataBoundSetter
+    public void setIdleTtlMinutes(int idleTtlMinutes) {
+        this.idleTtlMinutes = Math.max(0, idleTtlMinutes);
+    }
+
+    @DataBoundSetter
+    public void setProvisioningAggressiveness(int provisioningAggressiveness) {
+        this.provisioningAggressiveness = Math.max(0, Math.min(100, provisioningAggressiveness));
+    }
+
+    @DataBoundSetter
+    public void setQueueWaitTargetSeconds(int queueWaitTargetSeconds) {
+        this.queueWaitTargetSeconds = Math.max(0, queueWaitTargetSeconds);
+    }
+
+    @DataBoundSetter
+    public void setFargateFallbackSeconds(int fargateFallbackSeconds) {
+        this.fargateFallbackSeconds = Math.max(0, fargateFallbackSeconds);
+    }
+
+    @DataBoundSetter
+    public void setMaxBuilds(int maxBuilds) {
+        this.maxBuilds = Math.max(1, maxBuilds);
+    }
+
+    @DataBoundSetter
+    public void setIdleTimeoutMinutes(int idleTimeoutMinutes) {
+        this.idleTimeoutMinutes = Math.max(0, idleTimeoutMinutes);
+    }
+
     public boolean isFargate() {
         return StringUtils.trimToNull(this.launchType) != null && launchType.equals(LaunchType.FARGATE.toString());
     }
@@ -417,6 +527,186 @@ public class ECSTaskTemplate extends AbstractDescribableImpl<ECSTaskTemplate> {
 
     public String getTemplateName() {return templateName; }
 
+    public int getMaxConcurrentLaunches() {
+        return maxConcurrentLaunches;
+    }
+
+    public boolean isBatchLaunch() {
+        return batchLaunch;
+    }
+
+    public int getMinIdle() {
+        return minIdle;
+    }
+
+    public int getIdleTtlMinutes() {
+        return idleTtlMinutes;
+    }
+
+    public int getProvisioningAggressiveness() {
+        return provisioningAggressiveness;
+    }
+
+    public int getQueueWaitTargetSeconds() {
+        return queueWaitTargetSeconds;
+    }
+
+    public int getFargateFallbackSeconds() {
+        return fargateFallbackSeconds;
+    }
+
+    public int getMaxBuilds() {
+        return Math.max(1, maxBuilds);
+    }
+
+    public int getIdleTimeoutMinutes() {
+        return idleTimeoutMinutes > 0 ? idleTimeoutMinutes : DEFAULT_IDLE_TIMEOUT_MINUTES;
+    }
+
+    /**
+     * Whether slaves of this template run more than one build.
+     */
+    public boolean isReusable() {
+        return getMaxBuilds() > 1;
+    }
+
+    /**
+     * Copy of this template that launches its slaves on Fargate, with the same network settings, for when the cluster
+     * has no room for them. It registers its own task definition family, since Fargate needs different settings.
+     *
+     * @return null if this template has no Fargate fallback, or one Fargate cannot run
+     */
+    @CheckForNull
+    synchronized ECSTaskTemplate getFargateFallback() {
+        if (fargateFallbackSeconds <= 0 || isFargate()) {
+            return null;
+        }
+        if (checkFargateFallback(taskDefinitionOverride, subnets, cpu, getMemoryConstraint(), mountPoints, portMappings) != null) {
+            // reported by the form validation
+            return null;
+        }
+        if (fargateFallback == null) {
+            // Fargate does not run privileged containers
+            ECSTaskTemplate fallback = new ECSTaskTemplate(templateName + "-fargate",
+                    label, null, image, LaunchType.FARGATE.toString(), remoteFSRoot, memory,
+                    memoryReservation, cpu, subnets, securityGroups, assignPublicIp, false, containerUser,
+                    logDriverOptions, environments, extraHosts, mountPoints, portMappings);
+            fallback.setTaskrole(taskrole);
+            fallback.setExecutionRole(executionRole);
+            fallback.setEntrypoint(entrypoint);
+            fallback.setJvmArgs(jvmArgs);
+            fallback.setLogDriver(logDriver);
+            fallback.setDnsSearchDomains(dnsSearchDomains);
+            fallback.setBatchLaunch(batchLaunch);
+            fargateFallback = fallback;
+        }
+        return fargateFallback;
+    }
+
+    /**
+     * Why a template with the given settings cannot fall back to Fargate.
+     *
+     * @return null if it can
+     */
+    @CheckForNull
+    static String checkFargateFallback(String taskDefinitionOverride, String subnets, int cpu, int memory,
+            @CheckForNull List<MountPointEntry> mountPoints, @CheckForNull List<PortMappingEntry> portMappings) {
+        String problem = checkFargateFallback(taskDefinitionOverride, subnets, cpu, memory);
+        if (problem == null && mountPoints != null) {
+            for (MountPointEntry mountPoint : mountPoints) {
+                problem = checkFargateMountPoint(mountPoint.sourcePath);
+                if (problem != null) {
+                    return problem;
+                }
+            }
+        }
+        if (problem == null && portMappings != null) {
+            for (PortMappingEntry portMapping : portMappings) {
+                problem = checkFargatePortMapping(portMapping.containerPort, portMapping.hostPort);
+                if (problem != null) {
+                    return problem;
+                }
+            }
+        }
+        return problem;
+    }
+
+    /**
+     * Checks the settings of the template itself, its mount points and port mappings being validated on their own.
+     */
+    @CheckForNull
+    static String checkFargateFallback(String taskDefinitionOverride, String subnets, int cpu, int memory) {
+        if (StringUtils.isNotBlank(taskDefinitionOverride)) {
+            // the overriding task definition is registered for EC2, possibly with the bridge or host network mode
+            return "templates with a task definition override cannot fall back to Fargate";
+        }
+        if (StringUtils.isBlank(subnets)) {
+            return "subnets need to be set to fall back to Fargate";
+        }
+        if (!isFargateSize(cpu, memory)) {
+            return "Fargate does not support " + cpu + " cpu units with " + memory + " MiB of memory";
+        }
+        return null;
+    }
+
+    /**
+     * Fargate tasks have no host to mount a path of; volumes without a source path are fine.
+     */
+    @CheckForNull
+    static String checkFargateMountPoint(String sourcePath) {
+        if (StringUtils.isNotBlank(sourcePath)) {
+            return "Fargate cannot mount the host path " + sourcePath + ", templates with host paths cannot fall back to it";
+        }
+        return null;
+    }
+
+    /**
+     * In the awsvpc network mode of Fargate, a port can only be published on the same port of the task.
+     */
+    @CheckForNull
+    static String checkFargatePortMapping(@CheckForNull Integer containerPort, @CheckForNull Integer hostPort) {
+        if (hostPort != null && hostPort != 0 && !hostPort.equals(containerPort)) {
+            return "Fargate cannot map container port " + containerPort + " to host port " + hostPort
+                    + ", templates with such port mappings cannot fall back to it";
+        }
+        return null;
+    }
+
+    /**
+     * Whether the settings of the enclosing template make it fall back to Fargate, for the validation of its mount
+     * points and port mappings.
+     */
+    private static boolean isFargateFallback(int fargateFallbackSeconds, String launchType) {
+        return fargateFallbackSeconds > 0 && !"FARGATE".equals(launchType);
+    }
+
+    /**
+     * Whether Fargate supports tasks of the given size.
+     */
+    static boolean isFargateSize(int cpu, int memory) {
+        switch (cpu) {
+            case 256:
+                return memory == 512 || memory == 1024 || memory == 2048;
+            case 512:
+                return memory >= 1024 && memory <= 4096 && memory % 1024 == 0;
+            case 1024:
+                return memory >= 2048 && memory <= 8192 && memory % 1024 == 0;
+            case 2048:
+                return memory >= 4096 && memory <= 16384 && memory % 1024 == 0;
+            case 4096:
+                return memory >= 8192 && memory <= 30720 && memory % 1024 == 0;
+            default:
+                return false;
+        }
+    }
+
+    synchronized ECSLaunchLimiter getLaunchLimiter() {
+        if (launchLimiter == null) {
+            launchLimiter = new ECSLaunchLimiter("template " + getDisplayName());
+        }
+        return launchLimiter;
+    }
+
     public static class LogDriverOption extends AbstractDescribableImpl<LogDriverOption>{
         public String name, value;
 
@@ -630,6 +920,13 @@ public class ECSTaskTemplate extends AbstractDescribableImpl<ECSTaskTemplate> {
 
         @Extension
         public static class DescriptorImpl extends Descriptor<MountPointEntry> {
+            public FormValidation doCheckSourcePath(@QueryParameter("sourcePath") String sourcePath,
+                    @RelativePath("..") @QueryParameter("fargateFallbackSeconds") int fargateFallbackSeconds,
+                    @RelativePath("..") @QueryParameter("launchType") String launchType) {
+                String problem = isFargateFallback(fargateFallbackSeconds, launchType) ? checkFargateMountPoint(sourcePath) : null;
+                return problem == null ? FormValidation.ok() : FormValidation.error(problem);
+            }
+
             @Override
             public String getDisplayName() {
                 return "MountPointEntry";
@@ -658,6 +955,14 @@ public class ECSTaskTemplate extends AbstractDescribableImpl<ECSTaskTemplate> {
 
         @Extension
         public static class DescriptorImpl extends Descriptor<PortMappingEntry> {
+            public FormValidation doCheckHostPort(@QueryParameter("containerPort") Integer containerPort,
+                    @QueryParameter("hostPort") Integer hostPort,
+                    @RelativePath("..") @QueryParameter("fargateFallbackSeconds") int fargateFallbackSeconds,
+                    @RelativePath("..") @QueryParameter("launchType") String launchType) {
+                String problem = isFargateFallback(fargateFallbackSeconds, launchType) ? checkFargatePortMapping(containerPort, hostPort) : null;
+                return problem == null ? FormValidation.ok() : FormValidation.error(problem);
+            }
+
             public ListBoxModel doFillProtocolItems() {
                 final ListBoxModel options = new ListBoxModel();
                 options.add("TCP", "tcp");
@@ -673,7 +978,13 @@ public class ECSTaskTemplate extends AbstractDescribableImpl<ECSTaskTemplate> {
     }
 
     public Set<LabelAtom> getLabelSet() {
-        return Label.parse(label);
+        Set<LabelAtom> labelSet = this.labelSet;
+        if (labelSet == null) {
+            // the label never changes, parse it only once
+            labelSet = Collections.unmodifiableSet(Label.parse(label));
+            this.labelSet = labelSet;
+        }
+        return labelSet;
     }
 
     public String getDisplayName() {
@@ -712,6 +1023,17 @@ public class ECSTaskTemplate extends AbstractDescribableImpl<ECSTaskTemplate> {
             return FormValidation.ok();
         }
 
+        public FormValidation doCheckFargateFallbackSeconds(@QueryParameter("fargateFallbackSeconds") int fargateFallbackSeconds,
+                @QueryParameter("launchType") String launchType, @QueryParameter("taskDefinitionOverride") String taskDefinitionOverride,
+                @QueryParameter("subnets") String subnets, @QueryParameter("cpu") int cpu,
+                @QueryParameter("memory") int memory, @QueryParameter("memoryReservation") int memoryReservation) {
+            if (fargateFallbackSeconds <= 0 || "FARGATE".equals(launchType)) {
+                return FormValidation.ok();
+            }
+            String problem = checkFargateFallback(taskDefinitionOverride, subnets, cpu, memoryReservation > 0 ? memoryReservation : memory);
+            return problem == null ? FormValidation.ok() : FormValidation.error(problem);
+        }
+
         /* we validate both memory and memoryReservation fields to the same rules */
         public FormValidation doCheckMemory(@QueryParameter("memory") int memory, @QueryParameter("memoryReservation") int memoryReservation) throws IOException, ServletException {
             return validateMemorySettings(memory,memoryReservation);
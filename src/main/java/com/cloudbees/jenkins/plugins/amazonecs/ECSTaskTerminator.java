@@ -0,0 +1,213 @@
+/*
+ * The MIT License
+ *
+ *  Copyright (c) 2015, CloudBees, Inc.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ *
+ */
+
+package com.cloudbees.jenkins.plugins.amazonecs;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.Nonnull;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.ecs.model.ClusterNotFoundException;
+import com.amazonaws.services.ecs.model.InvalidParameterException;
+
+import hudson.model.Computer;
+import jenkins.util.Timer;
+
+/**
+ * Stops the ECS tasks of terminated slaves in the background, so that removing a slave never waits for ECS, in
+ * particular not while the queue lock is held.
+ *
+ * A task queued several times is stopped once. Failed calls, whatever the failure, are retried with an exponential
+ * backoff, up to {@link #MAX_ATTEMPTS} times.
+ */
+final class ECSTaskTerminator {
+
+    private static final Logger LOGGER = Logger.getLogger(ECSTaskTerminator.class.getName());
+
+    static int MAX_ATTEMPTS = Integer.getInteger(ECSTaskTerminator.class.getName() + ".maxAttempts", 8);
+
+    private static final long INITIAL_BACKOFF_MILLIS = TimeUnit.SECONDS.toMillis(1);
+
+    private static final long MAX_BACKOFF_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    private static final ECSTaskTerminator INSTANCE = new ECSTaskTerminator();
+
+    /**
+     * Tasks to stop, by task ARN.
+     */
+    private final Map<String, Termination> pending = new LinkedHashMap<String, Termination>();
+
+    /**
+     * When the next drain is scheduled, 0 if none is.
+     */
+    private long drainAt;
+
+    private ECSTaskTerminator() {
+    }
+
+    @Nonnull
+    static ECSTaskTerminator get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Queues the task to be stopped, and returns right away.
+     */
+    synchronized void terminate(ECSService service, String taskArn, String clusterArn) {
+        if (pending.containsKey(taskArn)) {
+            LOGGER.log(Level.FINE, "Task {0} is already being stopped", taskArn);
+            return;
+        }
+        pending.put(taskArn, new Termination(service, taskArn, clusterArn));
+        scheduleDrain(0);
+    }
+
+    synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    private void scheduleDrain(long delay) {
+        long at = System.currentTimeMillis() + delay;
+        if (drainAt != 0 && drainAt <= at) {
+            return;
+        }
+        drainAt = at;
+        Timer.get().schedule(new Runnable() {
+            @Override
+            public void run() {
+                // ECS calls do not belong on the shared timer threads
+                Computer.threadPoolForRemoting.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        drain();
+                    }
+                });
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void drain() {
+        final List<Termination> due = new ArrayList<Termination>();
+        synchronized (this) {
+            drainAt = 0;
+            long now = System.currentTimeMillis();
+            for (Termination termination : pending.values()) {
+                if (!termination.running && termination.notBefore <= now) {
+                    termination.running = true;
+                    due.add(termination);
+                }
+            }
+        }
+        if (!due.isEmpty()) {
+            LOGGER.log(Level.FINE, "Stopping {0} task(s)", due.size());
+        }
+
+        try {
+            for (Termination termination : due) {
+                boolean done = false;
+                try {
+                    done = termination.stop();
+                } finally {
+                    synchronized (this) {
+                        termination.running = false;
+                        if (done) {
+                            pending.remove(termination.taskArn);
+                        }
+                    }
+                }
+            }
+        } finally {
+            // whatever went wrong above, the remaining tasks still get their drain
+            synchronized (this) {
+                long next = Long.MAX_VALUE;
+                for (Termination termination : pending.values()) {
+                    if (!termination.running) {
+                        next = Math.min(next, termination.notBefore);
+                    }
+                }
+                if (next != Long.MAX_VALUE) {
+                    scheduleDrain(Math.max(0, next - System.currentTimeMillis()));
+                }
+            }
+        }
+    }
+
+    private static final class Termination {
+        final ECSService service;
+        final String taskArn;
+        final String clusterArn;
+        int attempts;
+        long notBefore;
+        boolean running;
+
+        Termination(ECSService service, String taskArn, String clusterArn) {
+            this.service = service;
+            this.taskArn = taskArn;
+            this.clusterArn = clusterArn;
+        }
+
+        /**
+         * @return false if the call has to be retried
+         */
+        boolean stop() {
+            attempts++;
+            long backoff = Math.min(MAX_BACKOFF_MILLIS, INITIAL_BACKOFF_MILLIS << (attempts - 1));
+            // set up front, so that even an error escaping the call does not retry it in a tight loop
+            notBefore = System.currentTimeMillis() + backoff;
+            try {
+                service.deleteTask(taskArn, clusterArn);
+                return true;
+            } catch (ClusterNotFoundException e) {
+                LOGGER.log(Level.WARNING, "Cannot stop task {0}: {1}", new Object[]{taskArn, e.getMessage()});
+                return true;
+            } catch (InvalidParameterException e) {
+                LOGGER.log(Level.WARNING, "Cannot stop task {0}: {1}", new Object[]{taskArn, e.getMessage()});
+                return true;
+            } catch (AmazonClientException e) {
+                return retry(backoff, e);
+            } catch (RuntimeException e) {
+                // not expected from the SDK, but neither a reason to give up on the task
+                LOGGER.log(Level.WARNING, "Unexpected failure stopping task " + taskArn, e);
+                return retry(backoff, e);
+            }
+        }
+
+        private boolean retry(long backoff, RuntimeException e) {
+            if (attempts >= MAX_ATTEMPTS) {
+                LOGGER.log(Level.SEVERE, "Couldn't stop task arn " + taskArn + " after " + attempts + " attempts", e);
+                return true;
+            }
+            LOGGER.log(Level.WARNING, "Failed to stop task {0}, retrying in {1} ms: {2}", new Object[]{taskArn, backoff, e.getMessage()});
+            return false;
+        }
+    }
+}
@@ -0,0 +1,308 @@
+/*
+ * The MIT License
+ *
+ *  Copyright (c) 2015, CloudBees, Inc.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ *
+ */
+
+package com.cloudbees.jenkins.plugins.amazonecs;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.SettableFuture;
+
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.model.Queue;
+import hudson.model.TaskListener;
+import hudson.slaves.Cloud;
+import jenkins.model.Jenkins;
+import jenkins.util.Timer;
+import net.sf.json.JSONObject;
+
+/**
+ * Keeps idle, connected slaves ready for each {@link ECSTaskTemplate} with a warm pool, so that builds on its label do
+ * not wait for a task to be launched.
+ *
+ * Slaves taken by a build are replaced in the background. Idle slaves beyond the pool size are terminated after the
+ * idle TTL of the template, and once no build used the template for that long its pool is emptied until the next
+ * build. Failing launches back the refills of the pool off exponentially.
+ */
+@Extension
+public class ECSWarmPool extends AsyncPeriodicWork {
+
+    private static final Logger LOGGER = Logger.getLogger(ECSWarmPool.class.getName());
+
+    static long RECURRENCE_PERIOD = Long.getLong(ECSWarmPool.class.getName() + ".recurrencePeriod", TimeUnit.SECONDS.toMillis(30));
+
+    /**
+     * State of the pool of each template; dropped with the template when the cloud is reconfigured.
+     */
+    private static final Map<ECSTaskTemplate, PoolState> POOLS = new WeakHashMap<ECSTaskTemplate, PoolState>();
+
+    private static final long INITIAL_BACKOFF_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+    private static final long MAX_BACKOFF_MILLIS = TimeUnit.MINUTES.toMillis(15);
+
+    private static final AtomicBoolean refillScheduled = new AtomicBoolean();
+
+    public ECSWarmPool() {
+        super("ECS warm pool");
+    }
+
+    @Override
+    public long getRecurrencePeriod() {
+        return RECURRENCE_PERIOD;
+    }
+
+    @Override
+    protected void execute(TaskListener listener) {
+        maintain();
+    }
+
+    /**
+     * Called when a slave takes a build, so that the pool of its template is refilled right away.
+     */
+    static void taskAccepted(ECSSlave slave) {
+        ECSTaskTemplate template = slave.getTemplate();
+        if (template == null || template.getMinIdle() <= 0) {
+            return;
+        }
+        getPool(template).lastUsedAt = System.currentTimeMillis();
+        if (refillScheduled.compareAndSet(false, true)) {
+            Timer.get().submit(new Runnable() {
+                @Override
+                public void run() {
+                    refillScheduled.set(false);
+                    maintain();
+                }
+            });
+        }
+    }
+
+    private static PoolState getPool(ECSTaskTemplate template) {
+        synchronized (POOLS) {
+            PoolState pool = POOLS.get(template);
+            if (pool == null) {
+                pool = new PoolState();
+                POOLS.put(template, pool);
+            }
+            return pool;
+        }
+    }
+
+    static synchronized void maintain() {
+        for (Cloud cloud : Jenkins.getInstance().clouds) {
+            if (cloud instanceof ECSCloud) {
+                for (ECSTaskTemplate template : ((ECSCloud) cloud).getTemplates()) {
+                    if (template.getMinIdle() > 0 || template.getIdleTtlMinutes() > 0) {
+                        try {
+                            maintain((ECSCloud) cloud, template);
+                        } catch (RuntimeException e) {
+                            LOGGER.log(Level.WARNING, "Failed to maintain the warm pool of " + template.getDisplayName(), e);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private static void maintain(ECSCloud cloud, final ECSTaskTemplate template) {
+        final PoolState pool = getPool(template);
+        final long now = System.currentTimeMillis();
+        final long ttl = TimeUnit.MINUTES.toMillis(template.getIdleTtlMinutes());
+        final int size = ttl <= 0 || now - pool.lastUsedAt < ttl ? template.getMinIdle() : 0;
+
+        final List<Computer> idle = new ArrayList<Computer>();
+        for (ECSSlave slave : cloud.getSlaves(template)) {
+            Computer c = slave.toComputer();
+            if (c != null && c.isOnline() && c.isIdle() && c.isAcceptingTasks()) {
+                idle.add(c);
+            }
+        }
+
+        final int deficit = pool.observed(idle.size(), size);
+        if (deficit > 0) {
+            final long retryAt = pool.getRetryAt();
+            if (retryAt > now) {
+                LOGGER.log(Level.FINE, "Warm pool of {0} is short of {1} slave(s), retrying in {2} ms",
+                        new Object[]{template.getDisplayName(), deficit, retryAt - now});
+                return;
+            }
+            // only report when the pool falls short, not on each refill while it stays short
+            LOGGER.log(pool.startRefill() ? Level.INFO : Level.FINE, "Warm pool of {0} has {1} idle and {2} pending slave(s) out of {3}",
+                    new Object[]{template.getDisplayName(), idle.size(), pool.getPending(), size});
+            // after failures, a single launch tells whether launching works again
+            final int count = pool.getFailures() > 0 ? 1 : deficit;
+            for (SettableFuture<Node> future : cloud.launchIdle(template, count)) {
+                pool.launched(future, template);
+            }
+        } else if (ttl > 0 && idle.size() > size) {
+            // terminate the slaves idle for the longest time first
+            Collections.sort(idle, new Comparator<Computer>() {
+                @Override
+                public int compare(Computer c1, Computer c2) {
+                    long i1 = c1.getIdleStartMilliseconds();
+                    long i2 = c2.getIdleStartMilliseconds();
+                    return i1 < i2 ? -1 : (i1 == i2 ? 0 : 1);
+                }
+            });
+            final List<Computer> expired = new ArrayList<Computer>();
+            Queue.withLock(new Runnable() {
+                @Override
+                public void run() {
+                    for (Computer c : idle.subList(0, idle.size() - size)) {
+                        // stop accepting builds while the queue is locked, so that none is assigned to it meanwhile
+                        if (c.isIdle() && c.isAcceptingTasks() && now - c.getIdleStartMilliseconds() >= ttl) {
+                            c.setAcceptingTasks(false);
+                            expired.add(c);
+                        }
+                    }
+                }
+            });
+            for (Computer c : expired) {
+                LOGGER.log(Level.INFO, "Terminating {0}, idle for more than {1} minute(s)", new Object[]{c.getName(), template.getIdleTtlMinutes()});
+                ECSSlave slave = (ECSSlave) c.getNode();
+                if (slave == null) {
+                    continue;
+                }
+                try {
+                    slave.terminate();
+                } catch (InterruptedException e) {
+                    LOGGER.log(Level.WARNING, "Failed to terminate " + c.getName(), e);
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Failed to terminate " + c.getName(), e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Idle and pending slaves of the pool of the given template, along with its size and consecutive launch failures.
+     */
+    static JSONObject toJSON(ECSTaskTemplate template) {
+        return getPool(template).toJSON();
+    }
+
+    /**
+     * Pool slaves being launched, the last time a slave of the template took a build, and the consecutive failures to
+     * launch slaves, which back the refills off exponentially.
+     */
+    private static final class PoolState {
+        private int pending;
+        private int idle;
+        private int size;
+        private int failures;
+        private long retryAt;
+        private boolean refilling;
+        volatile long lastUsedAt = System.currentTimeMillis();
+
+        synchronized int getPending() {
+            return pending;
+        }
+
+        synchronized int getFailures() {
+            return failures;
+        }
+
+        synchronized long getRetryAt() {
+            return retryAt;
+        }
+
+        /**
+         * Records the idle slaves and the size of the pool.
+         *
+         * @return the number of slaves missing from the pool
+         */
+        synchronized int observed(int idle, int size) {
+            this.idle = idle;
+            this.size = size;
+            int deficit = size - idle - pending;
+            if (deficit <= 0) {
+                refilling = false;
+            }
+            return deficit;
+        }
+
+        /**
+         * @return whether the pool was full until now
+         */
+        synchronized boolean startRefill() {
+            boolean started = !refilling;
+            refilling = true;
+            return started;
+        }
+
+        synchronized void launched(SettableFuture<Node> future, final ECSTaskTemplate template) {
+            pending++;
+            Futures.addCallback(future, new FutureCallback<Node>() {
+                @Override
+                public void onSuccess(Node node) {
+                    succeeded();
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    failed(template, t);
+                }
+            });
+        }
+
+        private synchronized void succeeded() {
+            pending--;
+            failures = 0;
+            retryAt = 0;
+        }
+
+        private synchronized void failed(ECSTaskTemplate template, Throwable t) {
+            pending--;
+            failures++;
+            long backoff = Math.min(MAX_BACKOFF_MILLIS, INITIAL_BACKOFF_MILLIS << Math.min(failures - 1, 20));
+            retryAt = System.currentTimeMillis() + backoff;
+            // the following failures are most likely the same
+            LOGGER.log(failures == 1 ? Level.WARNING : Level.FINE, "Failed to launch an idle slave of " + template.getDisplayName()
+                    + " (" + failures + " consecutive failure(s)), retrying in " + backoff + " ms", t);
+        }
+
+        synchronized JSONObject toJSON() {
+            JSONObject json = new JSONObject();
+            json.put("size", size);
+            json.put("idle", idle);
+            json.put("pending", pending);
+            json.put("failures", failures);
+            return json;
+        }
+    }
+}
@@ -0,0 +1,243 @@
+/*
+ * The MIT License
+ *
+ *  Copyright (c) 2015, CloudBees, Inc.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ *
+ */
+
+package com.cloudbees.jenkins.plugins.amazonecs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import com.amazonaws.services.ecs.AmazonECS;
+import com.amazonaws.services.ecs.model.DeregisterTaskDefinitionRequest;
+import com.amazonaws.services.ecs.model.Task;
+
+import hudson.model.FreeStyleProject;
+import hudson.model.Label;
+import hudson.model.Node;
+import hudson.slaves.NodeProvisioner;
+
+/**
+ * Provisions slaves of an {@link ECSCloud} against the {@link FakeAmazonECS}.
+ *
+ * The cloud is not added to Jenkins, so that only the tests provision slaves. Launches no queued build needs are
+ * cancelled, so the tests queue a build per slave.
+ */
+public class ECSCloudTest {
+
+    private static final AtomicInteger CLUSTERS = new AtomicInteger();
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    private FakeAmazonECS ecs;
+
+    private String cluster;
+
+    private ECSCloud cloud;
+
+    @Before
+    public void setUp() throws Exception {
+        ecs = new FakeAmazonECS();
+        ECSService.setDefaultClientFactory(new ECSClientFactory() {
+            @Override
+            public AmazonECS getClient(String credentialsId, String regionName) {
+                return ecs;
+            }
+        });
+        // capacity snapshots are shared per cluster for the lifetime of the JVM
+        cluster = "arn:aws:ecs:us-east-1:123456789012:cluster/test-" + CLUSTERS.incrementAndGet();
+        // room for two slaves
+        ecs.addContainerInstance(cluster, 1024, 2048);
+        cloud = createCloud("ecs", cluster, template("maven", "maven"));
+    }
+
+    @After
+    public void tearDown() {
+        ECSService.setDefaultClientFactory(null);
+    }
+
+    static ECSCloud createCloud(String name, String cluster, ECSTaskTemplate... templates) throws Exception {
+        List<ECSTaskTemplate> list = new ArrayList<ECSTaskTemplate>();
+        Collections.addAll(list, templates);
+        ECSCloud cloud = new ECSCloud(name, list, "", cluster, FakeAmazonECS.REGION, "http://jenkins.example.com/", 60);
+        cloud.setCapacityRefreshSeconds(1);
+        return cloud;
+    }
+
+    static ECSTaskTemplate template(String name, String label) {
+        return new ECSTaskTemplate(name, label, null, "jenkins/jnlp-slave", "EC2", "/home/jenkins", 1024, 0, 512,
+                null, null, false, false, null, null, null, null, null, null);
+    }
+
+    /**
+     * Queues builds for the given label, which stay in the queue since no slave connects.
+     */
+    static Label queueBuilds(JenkinsRule j, String label, int count) throws Exception {
+        Label l = j.jenkins.getLabel(label);
+        for (int i = 0; i < count; i++) {
+            FreeStyleProject project = j.createFreeStyleProject();
+            project.setAssignedLabel(l);
+            project.scheduleBuild2(0);
+        }
+        long timeout = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(30);
+        while (j.jenkins.getQueue().countBuildableItemsFor(l) < count) {
+            assertTrue("Builds were not queued", System.currentTimeMillis() < timeout);
+            j.jenkins.getQueue().maintain();
+            Thread.sleep(100);
+        }
+        return l;
+    }
+
+    @Test
+    public void provisionStartsTaskOfTemplate() throws Exception {
+        Collection<NodeProvisioner.PlannedNode> planned = cloud.provision(queueBuilds(j, "maven", 1), 1);
+        assertEquals(1, planned.size());
+
+        ECSSlave slave = awaitStartedSlaves(j, 1).get(0);
+        Task task = ecs.getTask(slave.getTaskArn());
+        assertNotNull(task);
+        assertEquals(cluster, task.getClusterArn());
+        assertEquals(cloud.getStartedBy(), task.getStartedBy());
+        assertEquals("maven", slave.getTemplateName());
+        assertEquals(cluster, slave.getClusterArn());
+        assertEquals(task.getTaskDefinitionArn(), slave.getTaskDefinitonArn());
+        assertTrue(slave.isLaunching());
+    }
+
+    @Test
+    public void launchesReuseTheRegisteredTaskDefinition() throws Exception {
+        Label label = queueBuilds(j, "maven", 2);
+        cloud.provision(label, 1);
+        awaitStartedSlaves(j, 1);
+        cloud.provision(label, 1);
+        awaitStartedSlaves(j, 2);
+
+        assertEquals(1, ecs.getCalls("registerTaskDefinition"));
+        assertEquals(2, ecs.getCalls("runTask"));
+    }
+
+    @Test
+    public void launchesRegisterADeregisteredTaskDefinitionAgain() throws Exception {
+        Label label = queueBuilds(j, "maven", 2);
+        cloud.provision(label, 1);
+        String deregistered = awaitStartedSlaves(j, 1).get(0).getTaskDefinitonArn();
+        ecs.deregisterTaskDefinition(new DeregisterTaskDefinitionRequest().withTaskDefinition(deregistered));
+
+        cloud.provision(label, 1);
+        List<ECSSlave> slaves = awaitStartedSlaves(j, 2);
+
+        assertEquals(2, ecs.getCalls("registerTaskDefinition"));
+        assertEquals(3, ecs.getCalls("runTask"));
+        // the first RunTask call failed on the inactive task definition
+        ECSSlave second = slaves.get(0).getTaskDefinitonArn().equals(deregistered) ? slaves.get(1) : slaves.get(0);
+        assertFalse(deregistered.equals(second.getTaskDefinitonArn()));
+        assertEquals(second.getTaskDefinitonArn(), ecs.getTask(second.getTaskArn()).getTaskDefinitionArn());
+    }
+
+    @Test
+    public void slavesWaitForRoomInTheCluster() throws Exception {
+        cloud.provision(queueBuilds(j, "maven", 3), 3);
+        ECSSlave first = awaitStartedSlaves(j, 2).get(0);
+        Thread.sleep(2000);
+        assertEquals(2, ecs.getTasks("RUNNING").size());
+        assertEquals(3, getSlaves(j).size());
+
+        // the third slave gets the room of the first one
+        first.terminate();
+        awaitStartedSlaves(j, 2);
+        assertEquals(2, ecs.getTasks("RUNNING").size());
+        assertEquals(1, ecs.getTasks("STOPPED").size());
+    }
+
+    @Test
+    public void terminateStopsTheTask() throws Exception {
+        cloud.provision(queueBuilds(j, "maven", 1), 1);
+        ECSSlave slave = awaitStartedSlaves(j, 1).get(0);
+
+        slave.terminate();
+
+        assertFalse(j.jenkins.getNodes().contains(slave));
+        long timeout = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(30);
+        while (!"STOPPED".equals(ecs.getTask(slave.getTaskArn()).getLastStatus())) {
+            assertTrue("Task of " + slave.getNodeName() + " was not stopped", System.currentTimeMillis() < timeout);
+            Thread.sleep(100);
+        }
+    }
+
+    @Test
+    public void connectedSlaveCompletesItsPlannedNode() throws Exception {
+        NodeProvisioner.PlannedNode planned = cloud.provision(queueBuilds(j, "maven", 1), 1).iterator().next();
+        ECSSlave slave = awaitStartedSlaves(j, 1).get(0);
+
+        slave.connected();
+
+        assertEquals(slave, planned.future.get(10, TimeUnit.SECONDS));
+        assertFalse(slave.isLaunching());
+    }
+
+    static List<ECSSlave> getSlaves(JenkinsRule j) {
+        List<ECSSlave> slaves = new ArrayList<ECSSlave>();
+        for (Node node : j.jenkins.getNodes()) {
+            if (node instanceof ECSSlave) {
+                slaves.add((ECSSlave) node);
+            }
+        }
+        return slaves;
+    }
+
+    /**
+     * Waits until the given number of slaves have a task.
+     */
+    static List<ECSSlave> awaitStartedSlaves(JenkinsRule j, int count) throws InterruptedException {
+        long timeout = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(30);
+        while (true) {
+            List<ECSSlave> started = new ArrayList<ECSSlave>();
+            for (ECSSlave slave : getSlaves(j)) {
+                if (slave.getTaskArn() != null) {
+                    started.add(slave);
+                }
+            }
+            if (started.size() >= count) {
+                return started;
+            }
+            assertTrue("Only " + started.size() + " of " + count + " slaves were started", System.currentTimeMillis() < timeout);
+            Thread.sleep(100);
+        }
+    }
+}
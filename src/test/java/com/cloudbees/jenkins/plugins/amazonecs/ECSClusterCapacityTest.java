@@ -0,0 +1,182 @@
+/*
+ * The MIT License
+ *
+ *  Copyright (c) 2015, CloudBees, Inc.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ *
+ */
+
+package com.cloudbees.jenkins.plugins.amazonecs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.ecs.AmazonECS;
+
+/**
+ * Reserves the resources of a cluster of the {@link FakeAmazonECS}.
+ */
+public class ECSClusterCapacityTest {
+
+    private static final AtomicInteger CLUSTERS = new AtomicInteger();
+
+    private FakeAmazonECS ecs;
+
+    private ECSService service;
+
+    private String cluster;
+
+    private ECSClusterCapacity capacity;
+
+    private long reservationTimeoutMillis;
+
+    @Before
+    public void setUp() {
+        ecs = new FakeAmazonECS();
+        service = new ECSService("", FakeAmazonECS.REGION, new ECSClientFactory() {
+            @Override
+            public AmazonECS getClient(String credentialsId, String regionName) {
+                return ecs;
+            }
+        });
+        // capacity snapshots are shared per cluster for the lifetime of the JVM
+        cluster = "arn:aws:ecs:us-east-1:123456789012:cluster/capacity-" + CLUSTERS.incrementAndGet();
+        capacity = ECSClusterCapacity.forCluster("", FakeAmazonECS.REGION, cluster);
+        reservationTimeoutMillis = ECSClusterCapacity.RESERVATION_TIMEOUT_MILLIS;
+    }
+
+    @After
+    public void tearDown() {
+        ECSClusterCapacity.RESERVATION_TIMEOUT_MILLIS = reservationTimeoutMillis;
+    }
+
+    @Test
+    public void reservedResourcesAreNotFree() throws Exception {
+        ecs.addContainerInstance(cluster, 1024, 2048);
+        awaitSnapshot();
+
+        ECSClusterCapacity.Reservation first = capacity.reserve(512, 1024);
+        assertNotNull(first);
+        assertNotNull(capacity.reserve(512, 1024));
+        assertNull(capacity.reserve(512, 1024));
+        assertFalse(capacity.hasResources(512, 1024));
+        assertEquals(0, capacity.countFreeSlots(service, 512, 1024, 3600));
+
+        capacity.release(first);
+        assertTrue(capacity.hasResources(512, 1024));
+        assertEquals(1, capacity.countFreeSlots(service, 512, 1024, 3600));
+    }
+
+    @Test
+    public void reservationTakesTheFullestFittingInstance() throws Exception {
+        ecs.addContainerInstance(cluster, 2048, 4096);
+        String fuller = ecs.addContainerInstance(cluster, 1024, 2048);
+        ecs.addContainerInstance(cluster, 256, 512);
+        awaitSnapshot();
+
+        assertEquals(fuller, capacity.reserve(512, 1024).containerInstanceArn);
+        assertEquals(fuller, capacity.reserve(512, 1024).containerInstanceArn);
+    }
+
+    @Test
+    public void reservationsExpire() throws Exception {
+        ecs.addContainerInstance(cluster, 512, 1024);
+        awaitSnapshot();
+        assertNotNull(capacity.reserve(512, 1024));
+        assertFalse(capacity.hasResources(512, 1024));
+
+        ECSClusterCapacity.RESERVATION_TIMEOUT_MILLIS = 0;
+        Thread.sleep(10);
+
+        assertTrue(capacity.hasResources(512, 1024));
+        assertEquals(0, capacity.getReservationCount());
+    }
+
+    @Test
+    public void startedReservationsEndWithTheNextRefresh() throws Exception {
+        ecs.addContainerInstance(cluster, 1024, 2048);
+        awaitSnapshot();
+        ECSClusterCapacity.Reservation started = capacity.reserve(512, 1024);
+        ECSClusterCapacity.Reservation pending = capacity.reserve(512, 1024);
+        capacity.started(started);
+        Thread.sleep(10);
+
+        capacity.invalidate();
+        awaitSnapshot();
+
+        assertEquals(1, capacity.getReservationCount());
+        capacity.release(pending);
+        assertEquals(0, capacity.getReservationCount());
+    }
+
+    @Test
+    public void waitersGetTheRoomOfReleasedReservations() throws Exception {
+        ecs.addContainerInstance(cluster, 512, 1024);
+        awaitSnapshot();
+        final ECSClusterCapacity.Reservation reservation = capacity.reserve(512, 1024);
+        new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                capacity.release(reservation);
+            }
+        }.start();
+
+        assertTrue(capacity.awaitResources(service, 512, 1024, new Date(System.currentTimeMillis() + 10000), 3600));
+    }
+
+    @Test
+    public void waitersGetTheRefreshFailure() throws Exception {
+        ecs.addContainerInstance(cluster, 1024, 2048);
+        ecs.throttleNextCalls(1);
+
+        try {
+            capacity.awaitResources(service, 512, 1024, new Date(System.currentTimeMillis() + 10000), 1);
+            fail("Refresh failure was not reported");
+        } catch (AmazonClientException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains(cluster));
+        }
+        assertEquals(1000, capacity.getRetryDelayMillis());
+        // the next waiter is served by the retry, a second later
+        Thread.sleep(10);
+        assertTrue(capacity.awaitResources(service, 512, 1024, new Date(System.currentTimeMillis() + 10000), 1));
+        assertEquals(0, capacity.getRetryDelayMillis());
+    }
+
+    private void awaitSnapshot() throws InterruptedException {
+        assertTrue(capacity.awaitResources(service, 0, 0, new Date(System.currentTimeMillis() + 10000), 3600));
+    }
+}
@@ -0,0 +1,278 @@
+/*
+ * The MIT License
+ *
+ *  Copyright (c) 2015, CloudBees, Inc.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ *
+ */
+
+package com.cloudbees.jenkins.plugins.amazonecs;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.runner.Description;
+import org.junit.runners.model.Statement;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.amazonaws.services.ecs.AmazonECS;
+import com.amazonaws.services.ecs.model.KeyValuePair;
+import com.amazonaws.services.ecs.model.MountPoint;
+import com.amazonaws.services.ecs.model.PortMapping;
+import com.amazonaws.services.ecs.model.TaskDefinition;
+import com.amazonaws.services.ecs.model.Volume;
+
+import hudson.model.Label;
+
+/**
+ * Benchmarks of the code every launch goes through, against the {@link FakeAmazonECS}. Run them with
+ * <pre>
+ * mvn test -Pbenchmark
+ * </pre>
+ * and a subset with e.g. {@code -Dbenchmark=ECSProvisioningBenchmark.registerTemplate}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ECSProvisioningBenchmark {
+
+    private static final int TEMPLATES = 50;
+
+    private static final int INSTANCES = 200;
+
+    /**
+     * Runs Jenkins for the whole trial, which is needed to parse labels.
+     */
+    @State(Scope.Benchmark)
+    public static class JenkinsState {
+
+        private final CountDownLatch started = new CountDownLatch(1);
+
+        private final CountDownLatch stop = new CountDownLatch(1);
+
+        private volatile Throwable failure;
+
+        private Thread thread;
+
+        JenkinsRule j;
+
+        @Setup(Level.Trial)
+        public void startJenkins() throws Exception {
+            j = new JenkinsRule();
+            final Statement running = j.apply(new Statement() {
+                @Override
+                public void evaluate() throws Throwable {
+                    started.countDown();
+                    stop.await();
+                }
+            }, Description.createTestDescription(ECSProvisioningBenchmark.class, "benchmark"));
+            thread = new Thread("Jenkins of " + ECSProvisioningBenchmark.class.getSimpleName()) {
+                @Override
+                public void run() {
+                    try {
+                        running.evaluate();
+                    } catch (Throwable t) {
+                        failure = t;
+                        started.countDown();
+                    }
+                }
+            };
+            thread.start();
+            started.await();
+            if (failure != null) {
+                throw new IllegalStateException("Jenkins did not start", failure);
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void stopJenkins() throws InterruptedException {
+            stop.countDown();
+            thread.join();
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class ProvisioningState {
+
+        FakeAmazonECS ecs;
+
+        String cluster;
+
+        ECSCloud cloud;
+
+        ECSService service;
+
+        ECSTaskTemplate template;
+
+        /**
+         * Equal to {@link #template}, as after a reconfiguration.
+         */
+        ECSTaskTemplate reconfigured;
+
+        Label label;
+
+        Date timeout;
+
+        @Setup(Level.Trial)
+        public void setUp(JenkinsState jenkins) throws Exception {
+            ecs = new FakeAmazonECS();
+            ECSService.setDefaultClientFactory(new ECSClientFactory() {
+                @Override
+                public AmazonECS getClient(String credentialsId, String regionName) {
+                    return ecs;
+                }
+            });
+            cluster = "arn:aws:ecs:us-east-1:123456789012:cluster/benchmark";
+            for (int i = 0; i < INSTANCES; i++) {
+                ecs.addContainerInstance(cluster, 4096, 16384);
+            }
+
+            List<ECSTaskTemplate> templates = new ArrayList<ECSTaskTemplate>();
+            for (int i = 0; i < TEMPLATES; i++) {
+                templates.add(template("template-" + i));
+            }
+            template = templates.get(TEMPLATES - 1);
+            reconfigured = template("template-" + (TEMPLATES - 1));
+            cloud = ECSCloudTest.createCloud("benchmark", cluster, templates.toArray(new ECSTaskTemplate[0]));
+            service = cloud.getEcsService();
+            // the snapshot stays fresh for the whole trial, only the evaluation of it is measured
+            service.setCapacityRefreshSeconds((int) TimeUnit.HOURS.toSeconds(1));
+            label = jenkins.j.jenkins.getLabel("template-" + (TEMPLATES - 1) + " && linux");
+            timeout = new Date(System.currentTimeMillis() + TimeUnit.HOURS.toMillis(1));
+
+            // a busy cluster, with launches in flight
+            ECSClusterCapacity.RESERVATION_TIMEOUT_MILLIS = TimeUnit.HOURS.toMillis(1);
+            for (int i = 0; i < INSTANCES; i++) {
+                service.reserveClusterResources(template, cluster);
+            }
+            service.registerTemplate(cloud, template);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            ECSService.setDefaultClientFactory(null);
+        }
+
+        private static ECSTaskTemplate template(String name) {
+            List<ECSTaskTemplate.EnvironmentEntry> environments = new ArrayList<ECSTaskTemplate.EnvironmentEntry>();
+            List<ECSTaskTemplate.MountPointEntry> mountPoints = new ArrayList<ECSTaskTemplate.MountPointEntry>();
+            List<ECSTaskTemplate.PortMappingEntry> portMappings = new ArrayList<ECSTaskTemplate.PortMappingEntry>();
+            for (int i = 0; i < 10; i++) {
+                environments.add(new ECSTaskTemplate.EnvironmentEntry("VARIABLE_" + i, "value-" + i));
+                mountPoints.add(new ECSTaskTemplate.MountPointEntry("volume-" + i, "/var/lib/jenkins/" + i, "/mnt/" + i, i % 2 == 0));
+                portMappings.add(new ECSTaskTemplate.PortMappingEntry(8000 + i, 0, "tcp"));
+            }
+            return new ECSTaskTemplate(name, name + " linux", null, "jenkins/jnlp-slave", "EC2", "/home/jenkins", 1024, 0, 512,
+                    null, null, false, false, null, null, environments, null, mountPoints, portMappings);
+        }
+    }
+
+    /**
+     * The task definition of a template launched before.
+     */
+    @Benchmark
+    public TaskDefinition registerTemplate(ProvisioningState state) {
+        return state.service.registerTemplate(state.cloud, state.template);
+    }
+
+    /**
+     * The task definition of an equal template, which has to be matched by its fingerprint.
+     */
+    @Benchmark
+    public TaskDefinition registerReconfiguredTemplate(ProvisioningState state) {
+        // alternate, so that the template is never the one cached
+        ECSTaskTemplate template = state.template;
+        state.template = state.reconfigured;
+        state.reconfigured = template;
+        return state.service.registerTemplate(state.cloud, template);
+    }
+
+    @Benchmark
+    public Collection<KeyValuePair> getEnvironmentKeyValuePairs(ProvisioningState state) {
+        return state.template.getEnvironmentKeyValuePairs();
+    }
+
+    @Benchmark
+    public Collection<Volume> getVolumeEntries(ProvisioningState state) {
+        return state.template.getVolumeEntries();
+    }
+
+    @Benchmark
+    public Collection<MountPoint> getMountPointEntries(ProvisioningState state) {
+        return state.template.getMountPointEntries();
+    }
+
+    @Benchmark
+    public Collection<PortMapping> getPortMappingEntries(ProvisioningState state) {
+        return state.template.getPortMappingEntries();
+    }
+
+    /**
+     * The capacity evaluation of {@link ECSService#waitForSufficientClusterResources}, for a cluster with room.
+     */
+    @Benchmark
+    public boolean awaitClusterResources(ProvisioningState state) throws InterruptedException {
+        return state.service.awaitClusterResources(state.timeout, state.template, state.cluster);
+    }
+
+    @Benchmark
+    public int countFreeSlots(ProvisioningState state) {
+        return state.service.countFreeSlots(state.template, state.cluster);
+    }
+
+    /**
+     * The template of a label, as looked up by every {@link ECSCloud#provision} call.
+     */
+    @Benchmark
+    public ECSTaskTemplate getTemplate(ProvisioningState state) {
+        return state.cloud.getTemplate(state.label);
+    }
+
+    /**
+     * The label matching a template lookup does before its result is cached, here for the last of the templates.
+     */
+    @Benchmark
+    public ECSTaskTemplate matchTemplate(ProvisioningState state) {
+        for (ECSTaskTemplate template : state.cloud.getTemplates()) {
+            if (state.label.matches(template.getLabelSet())) {
+                return template;
+            }
+        }
+        return null;
+    }
+}
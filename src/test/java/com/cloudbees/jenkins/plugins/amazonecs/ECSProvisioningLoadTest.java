@@ -0,0 +1,189 @@
+/*
+ * The MIT License
+ *
+ *  Copyright (c) 2015, CloudBees, Inc.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ *
+ */
+
+package com.cloudbees.jenkins.plugins.amazonecs;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import com.amazonaws.services.ecs.AmazonECS;
+import com.amazonaws.services.ecs.model.ContainerOverride;
+import com.amazonaws.services.ecs.model.KeyValuePair;
+import com.amazonaws.services.ecs.model.Task;
+
+import hudson.model.Label;
+import hudson.model.Node;
+import hudson.slaves.NodeProvisioner;
+import jenkins.util.Timer;
+
+/**
+ * Drives many concurrent {@link ECSCloud#provision} calls against the {@link FakeAmazonECS}, with agents that connect
+ * a while after their task started, and reports the time it took until each slave was online and the ECS calls made.
+ *
+ * Only runs when asked for with {@code -Decs.load=true}, by default with a small load. Scaling changes can be measured
+ * with a larger one, e.g.
+ * <pre>
+ * mvn test -Dtest=ECSProvisioningLoadTest -Decs.load=true -Decs.load.slaves=500 -Decs.load.latencyMillis=50 -Decs.load.throttling=0.05
+ * </pre>
+ */
+public class ECSProvisioningLoadTest {
+
+    private static final Logger LOGGER = Logger.getLogger(ECSProvisioningLoadTest.class.getName());
+
+    private static final int SLAVES = Integer.getInteger("ecs.load.slaves", 20);
+
+    private static final int INSTANCES = Integer.getInteger("ecs.load.instances", Math.max(1, SLAVES / 4));
+
+    private static final long LATENCY_MILLIS = Long.getLong("ecs.load.latencyMillis", 10);
+
+    private static final long AGENT_STARTUP_MILLIS = Long.getLong("ecs.load.agentStartupMillis", 200);
+
+    private static final double THROTTLING = Double.parseDouble(System.getProperty("ecs.load.throttling", "0"));
+
+    private static final int STOPPED_LAUNCHES = Integer.getInteger("ecs.load.stoppedLaunches", 0);
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    private FakeAmazonECS ecs;
+
+    @BeforeClass
+    public static void enabled() {
+        // before Jenkins starts, which the skipped test does not need
+        Assume.assumeTrue("Load test, run with -Decs.load=true", Boolean.getBoolean("ecs.load"));
+    }
+
+    @Before
+    public void setUp() {
+        ecs = new FakeAmazonECS();
+        ECSService.setDefaultClientFactory(new ECSClientFactory() {
+            @Override
+            public AmazonECS getClient(String credentialsId, String regionName) {
+                return ecs;
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        ECSService.setDefaultClientFactory(null);
+    }
+
+    @Test
+    public void provisionConcurrently() throws Exception {
+        final String cluster = "arn:aws:ecs:us-east-1:123456789012:cluster/load-" + System.nanoTime();
+        for (int i = 0; i < INSTANCES; i++) {
+            // room for four slaves each
+            ecs.addContainerInstance(cluster, 2048, 4096);
+        }
+        final ECSCloud cloud = ECSCloudTest.createCloud("load", cluster, ECSCloudTest.template("load", "load"));
+        cloud.setMaxConcurrentLaunches(0);
+        cloud.setTaskRelaunches(STOPPED_LAUNCHES > 0 ? 2 : 0);
+        final Label label = ECSCloudTest.queueBuilds(j, "load", SLAVES);
+
+        ecs.setLatencyMillis(LATENCY_MILLIS);
+        ecs.setThrottlingProbability(THROTTLING);
+        ecs.stopNextLaunches(STOPPED_LAUNCHES, "CannotPullContainerError: pull access denied");
+        ecs.setListener(new FakeAmazonECS.Listener() {
+            @Override
+            public void started(final Task task) {
+                // the agent of the task connects once its container started
+                Timer.get().schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        Node node = j.jenkins.getNode(getNodeName(task));
+                        if (node instanceof ECSSlave) {
+                            ((ECSSlave) node).connected();
+                        }
+                    }
+                }, AGENT_STARTUP_MILLIS, TimeUnit.MILLISECONDS);
+            }
+        });
+
+        final long startedAt = System.currentTimeMillis();
+        ExecutorService provisioners = Executors.newFixedThreadPool(Math.min(SLAVES, 50));
+        List<Future<Long>> onlineAfter = new ArrayList<Future<Long>>();
+        for (int i = 0; i < SLAVES; i++) {
+            onlineAfter.add(provisioners.submit(new Callable<Long>() {
+                @Override
+                public Long call() throws Exception {
+                    long requestedAt = System.currentTimeMillis();
+                    for (NodeProvisioner.PlannedNode planned : cloud.provision(label, 1)) {
+                        planned.future.get(5, TimeUnit.MINUTES);
+                    }
+                    return System.currentTimeMillis() - requestedAt;
+                }
+            }));
+        }
+        List<Long> durations = new ArrayList<Long>();
+        for (Future<Long> future : onlineAfter) {
+            durations.add(future.get());
+        }
+        provisioners.shutdown();
+        long elapsed = System.currentTimeMillis() - startedAt;
+
+        Collections.sort(durations);
+        LOGGER.log(Level.INFO, "Provisioned {0} slaves on {1} instances in {2} ms", new Object[]{SLAVES, INSTANCES, elapsed});
+        LOGGER.log(Level.INFO, "Time to online: p50={0} ms, p95={1} ms, max={2} ms",
+                new Object[]{percentile(durations, 50), percentile(durations, 95), durations.get(durations.size() - 1)});
+        LOGGER.log(Level.INFO, "ECS calls: {0}", ecs.getCalls());
+        LOGGER.log(Level.INFO, "Metrics: {0}", cloud.getMetrics().toJSON());
+
+        assertEquals(SLAVES, ecs.getTasks("RUNNING").size());
+    }
+
+    private static long percentile(List<Long> sorted, int percentile) {
+        return sorted.get(Math.min(sorted.size() - 1, sorted.size() * percentile / 100));
+    }
+
+    private static String getNodeName(Task task) {
+        for (ContainerOverride override : task.getOverrides().getContainerOverrides()) {
+            for (KeyValuePair env : override.getEnvironment()) {
+                if ("SLAVE_NODE_NAME".equals(env.getName())) {
+                    return env.getValue();
+                }
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * The MIT License
+ *
+ *  Copyright (c) 2015, CloudBees, Inc.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ *
+ */
+
+package com.cloudbees.jenkins.plugins.amazonecs;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import net.sf.json.JSONObject;
+
+public class ECSProvisioningMetricsTest {
+
+    @Test
+    public void histogramReportsPercentiles() {
+        ECSProvisioningMetrics.Histogram histogram = new ECSProvisioningMetrics.Histogram();
+        for (int i = 1; i <= 100; i++) {
+            histogram.update(i);
+        }
+
+        JSONObject json = histogram.toJSON();
+        assertEquals(100, json.getLong("count"));
+        assertEquals(50, json.getLong("mean"));
+        assertEquals(50, json.getLong("p50"));
+        assertEquals(95, json.getLong("p95"));
+        assertEquals(99, json.getLong("p99"));
+        assertEquals(100, json.getLong("max"));
+    }
+
+    @Test
+    public void histogramKeepsTheLatestSamples() {
+        ECSProvisioningMetrics.Histogram histogram = new ECSProvisioningMetrics.Histogram();
+        for (int i = 0; i < 2 * ECSProvisioningMetrics.Histogram.WINDOW_SIZE; i++) {
+            histogram.update(i < ECSProvisioningMetrics.Histogram.WINDOW_SIZE ? 1000 : 1);
+        }
+
+        long[] samples = histogram.getSamples();
+        assertEquals(ECSProvisioningMetrics.Histogram.WINDOW_SIZE, samples.length);
+        JSONObject json = histogram.toJSON();
+        assertEquals(2 * ECSProvisioningMetrics.Histogram.WINDOW_SIZE, json.getLong("count"));
+        assertEquals(1, json.getLong("max"));
+        // the mean is over all samples
+        assertEquals(500, json.getLong("mean"));
+    }
+
+    @Test
+    public void histogramWithoutSamples() {
+        JSONObject json = new ECSProvisioningMetrics.Histogram().toJSON();
+        assertEquals(0, json.getLong("count"));
+        assertEquals(0, json.getLong("p99"));
+        assertEquals(0, json.getLong("max"));
+    }
+
+    @Test
+    public void launchesInFlightAreCountedPerLabel() {
+        ECSProvisioningMetrics.TemplateMetrics metrics = new ECSProvisioningMetrics.TemplateMetrics();
+        metrics.launching("maven");
+        metrics.launching("maven && linux");
+        metrics.launching("maven");
+        // warm pool
+        metrics.launching(null);
+
+        assertEquals(4, metrics.getInFlight());
+        assertEquals(2, metrics.getInFlight("maven"));
+        assertEquals(1, metrics.getInFlight("maven && linux"));
+
+        metrics.completed("maven");
+        metrics.failed("maven && linux", new IllegalStateException());
+        metrics.completed(null);
+
+        assertEquals(1, metrics.getInFlight());
+        assertEquals(1, metrics.getInFlight("maven"));
+        assertEquals(0, metrics.getInFlight("maven && linux"));
+        assertEquals(0, metrics.getInFlight("gradle"));
+    }
+
+    @Test
+    public void cloudTotalsAddUpTheTemplates() {
+        ECSProvisioningMetrics metrics = ECSProvisioningMetrics.forCloud("metrics-" + System.nanoTime());
+        ECSProvisioningMetrics.TemplateMetrics maven = metrics.forTemplate(ECSCloudTest.template("maven", "maven"));
+        ECSProvisioningMetrics.TemplateMetrics node = metrics.forTemplate(ECSCloudTest.template("node", "node"));
+        maven.record(ECSProvisioningMetrics.Phase.RUN_TASK, 100);
+        maven.record(ECSProvisioningMetrics.Phase.RUN_TASK, 300);
+        node.record(ECSProvisioningMetrics.Phase.RUN_TASK, 200);
+        maven.failure("ThrottlingException");
+        node.failure("ThrottlingException");
+
+        JSONObject json = metrics.toJSON();
+        JSONObject runTask = json.getJSONObject("phases").getJSONObject("run_task");
+        assertEquals(3, runTask.getLong("count"));
+        assertEquals(200, runTask.getLong("mean"));
+        assertEquals(300, runTask.getLong("max"));
+        assertEquals(2, json.getJSONObject("failures").getLong("ThrottlingException"));
+        assertEquals(2, json.getJSONObject("templates").getJSONObject("maven").getJSONObject("phases").getJSONObject("run_task").getLong("count"));
+    }
+
+    @Test
+    public void reapedOrphansAreCountedPerCloud() {
+        ECSProvisioningMetrics metrics = ECSProvisioningMetrics.forCloud("metrics-" + System.nanoTime());
+        ECSProvisioningMetrics other = ECSProvisioningMetrics.forCloud("other-metrics-" + System.nanoTime());
+        metrics.orphansReaped(2, 1024, 4096);
+        metrics.orphansReaped(1, 256, 512);
+
+        JSONObject orphans = metrics.toJSON().getJSONObject("orphans");
+        assertEquals(3, orphans.getLong("reapedTasks"));
+        assertEquals(1280, orphans.getLong("reclaimedCpu"));
+        assertEquals(4608, orphans.getLong("reclaimedMemory"));
+        assertEquals(0, other.toJSON().getJSONObject("orphans").getLong("reapedTasks"));
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * The MIT License
+ *
+ *  Copyright (c) 2015, CloudBees, Inc.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ *
+ */
+
+package com.cloudbees.jenkins.plugins.amazonecs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.ecs.AmazonECS;
+import com.amazonaws.services.ecs.model.ListClustersRequest;
+
+public class ECSRateLimiterTest {
+
+    private static final AtomicInteger ACCOUNTS = new AtomicInteger();
+
+    private FakeAmazonECS ecs;
+
+    private ECSRateLimiter limiter;
+
+    private int maxThrottlingRetries;
+
+    @Before
+    public void setUp() {
+        ecs = new FakeAmazonECS();
+        // limiters are shared per account for the lifetime of the JVM
+        limiter = ECSRateLimiter.forAccount("account-" + ACCOUNTS.incrementAndGet(), FakeAmazonECS.REGION);
+        maxThrottlingRetries = ECSRateLimiter.MAX_THROTTLING_RETRIES;
+    }
+
+    @After
+    public void tearDown() {
+        ECSRateLimiter.MAX_THROTTLING_RETRIES = maxThrottlingRetries;
+    }
+
+    @Test
+    public void bucketHandsOutTheBurstRightAway() {
+        ECSRateLimiter.TokenBucket bucket = new ECSRateLimiter.TokenBucket(10, 5);
+        long startedAt = System.currentTimeMillis();
+        for (int i = 0; i < 5; i++) {
+            bucket.acquire();
+        }
+        assertTrue(System.currentTimeMillis() - startedAt < 90);
+    }
+
+    @Test
+    public void bucketPacesCallsBeyondTheBurst() {
+        ECSRateLimiter.TokenBucket bucket = new ECSRateLimiter.TokenBucket(10, 1);
+        bucket.acquire();
+        long startedAt = System.currentTimeMillis();
+        bucket.acquire();
+        bucket.acquire();
+        // one token every 100 ms
+        long elapsed = System.currentTimeMillis() - startedAt;
+        assertTrue("Two tokens took " + elapsed + " ms", elapsed >= 190);
+    }
+
+    @Test
+    public void throttledCallsAreRetried() {
+        AmazonECS client = limiter.wrap(ecs);
+        ecs.throttleNextCalls(2);
+
+        client.listClusters(new ListClustersRequest());
+
+        assertEquals(3, ecs.getCalls("listClusters"));
+        assertEquals(Long.valueOf(2), limiter.getThrottles().get("listClusters"));
+    }
+
+    @Test
+    public void throttlingFailsTheCallOnceTheRetriesAreUsedUp() {
+        ECSRateLimiter.MAX_THROTTLING_RETRIES = 1;
+        AmazonECS client = limiter.wrap(ecs);
+        ecs.throttleNextCalls(3);
+
+        try {
+            client.listClusters(new ListClustersRequest());
+            fail("Throttled call succeeded");
+        } catch (AmazonServiceException e) {
+            assertEquals("ThrottlingException", e.getErrorCode());
+        }
+        assertEquals(2, ecs.getCalls("listClusters"));
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * The MIT License
+ *
+ *  Copyright (c) 2015, CloudBees, Inc.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ *
+ */
+
+package com.cloudbees.jenkins.plugins.amazonecs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.services.ecs.AmazonECS;
+import com.amazonaws.services.ecs.model.AmazonECSException;
+import com.amazonaws.services.ecs.model.ClientException;
+import com.amazonaws.services.ecs.model.ClusterNotFoundException;
+import com.amazonaws.services.ecs.model.InvalidParameterException;
+import com.amazonaws.services.ecs.model.RegisterTaskDefinitionRequest;
+import com.amazonaws.services.ecs.model.TaskDefinition;
+
+/**
+ * Registers the task definitions of templates with the {@link FakeAmazonECS}.
+ */
+public class ECSServiceTest {
+
+    private FakeAmazonECS ecs;
+
+    private ECSCloud cloud;
+
+    @Before
+    public void setUp() throws Exception {
+        ecs = new FakeAmazonECS();
+        cloud = ECSCloudTest.createCloud("ecs", "arn:aws:ecs:us-east-1:123456789012:cluster/services");
+    }
+
+    @Test
+    public void fingerprintOfEqualTemplatesIsEqual() {
+        ECSService service = createService();
+
+        assertEquals(ECSService.fingerprint(service.createRegisterTaskDefinitionRequest("ecs-maven", ECSCloudTest.template("maven", "maven"))),
+                ECSService.fingerprint(service.createRegisterTaskDefinitionRequest("ecs-maven", ECSCloudTest.template("maven", "maven"))));
+    }
+
+    @Test
+    public void fingerprintCoversTheTemplateSettings() {
+        ECSService service = createService();
+        ECSTaskTemplate template = ECSCloudTest.template("maven", "maven");
+        ECSTaskTemplate moreMemory = new ECSTaskTemplate("maven", "maven", null, "jenkins/jnlp-slave", "EC2", "/home/jenkins", 2048, 0, 512,
+                null, null, false, false, null, null, null, null, null, null);
+        ECSTaskTemplate otherImage = new ECSTaskTemplate("maven", "maven", null, "jenkins/jnlp-slave:alpine", "EC2", "/home/jenkins", 1024, 0, 512,
+                null, null, false, false, null, null, null, null, null, null);
+
+        String fingerprint = ECSService.fingerprint(service.createRegisterTaskDefinitionRequest("ecs-maven", template));
+        assertFalse(fingerprint.equals(ECSService.fingerprint(service.createRegisterTaskDefinitionRequest("ecs-maven", moreMemory))));
+        assertFalse(fingerprint.equals(ECSService.fingerprint(service.createRegisterTaskDefinitionRequest("ecs-maven", otherImage))));
+        assertFalse(fingerprint.equals(ECSService.fingerprint(service.createRegisterTaskDefinitionRequest("ecs-gradle", template))));
+    }
+
+    @Test
+    public void fingerprintLeavesItsOwnLabelOut() {
+        RegisterTaskDefinitionRequest request = createService().createRegisterTaskDefinitionRequest("ecs-maven", ECSCloudTest.template("maven", "maven"));
+        String fingerprint = ECSService.fingerprint(request);
+
+        request.getContainerDefinitions().get(0).addDockerLabelsEntry(ECSService.FINGERPRINT_LABEL, fingerprint);
+
+        assertEquals(fingerprint, ECSService.fingerprint(request));
+    }
+
+    @Test
+    public void templateIsRegisteredOnce() {
+        ECSService service = createService();
+        ECSTaskTemplate template = ECSCloudTest.template("maven", "maven");
+
+        TaskDefinition first = service.registerTemplate(cloud, template);
+        TaskDefinition second = service.registerTemplate(cloud, template);
+
+        assertEquals(first.getTaskDefinitionArn(), second.getTaskDefinitionArn());
+        assertEquals(1, ecs.getCalls("registerTaskDefinition"));
+    }
+
+    @Test
+    public void reconfiguredTemplateReusesTheTaskDefinitionOfAnEqualOne() {
+        ECSService service = createService();
+
+        TaskDefinition first = service.registerTemplate(cloud, ECSCloudTest.template("maven", "maven"));
+        TaskDefinition second = service.registerTemplate(cloud, ECSCloudTest.template("maven", "maven"));
+
+        assertEquals(first.getTaskDefinitionArn(), second.getTaskDefinitionArn());
+        assertEquals(1, ecs.getCalls("registerTaskDefinition"));
+    }
+
+    @Test
+    public void changedTemplateRegistersANewRevision() {
+        ECSService service = createService();
+
+        TaskDefinition first = service.registerTemplate(cloud, ECSCloudTest.template("maven", "maven"));
+        TaskDefinition second = service.registerTemplate(cloud, new ECSTaskTemplate("maven", "maven", null, "jenkins/jnlp-slave", "EC2",
+                "/home/jenkins", 2048, 0, 512, null, null, false, false, null, null, null, null, null, null));
+
+        assertEquals(first.getFamily(), second.getFamily());
+        assertEquals(first.getRevision() + 1, (int) second.getRevision());
+        assertEquals(2, ecs.getCalls("registerTaskDefinition"));
+    }
+
+    @Test
+    public void taskDefinitionIsFoundByItsFingerprintAfterARestart() {
+        TaskDefinition registered = createService().registerTemplate(cloud, ECSCloudTest.template("maven", "maven"));
+
+        TaskDefinition found = createService().registerTemplate(cloud, ECSCloudTest.template("maven", "maven"));
+
+        assertEquals(registered.getTaskDefinitionArn(), found.getTaskDefinitionArn());
+        assertEquals(1, ecs.getCalls("registerTaskDefinition"));
+        assertEquals(1, ecs.getCalls("describeTaskDefinition"));
+    }
+
+    @Test
+    public void missingTaskDefinitionIsRecognized() {
+        assertTrue(ECSService.isMissingTaskDefinition(new ClientException("TaskDefinition is inactive")));
+        assertFalse(ECSService.isMissingTaskDefinition(new ClientException("Tasks provided in the request are invalid.")));
+    }
+
+    @Test
+    public void otherErrorsDoNotRegisterTheTaskDefinitionAgain() {
+        assertTrue(ECSService.isMissingTaskDefinition(new InvalidParameterException("Unable to describe task definition.")));
+        assertFalse(ECSService.isMissingTaskDefinition(new ClientException("The referenced task was not found.")));
+        assertFalse(ECSService.isMissingTaskDefinition(new ClusterNotFoundException("Cluster not found.")));
+        // only the error code says what went wrong, whatever the message
+        AmazonECSException throttled = new AmazonECSException("Rate exceeded while describing the task definition, not found yet");
+        throttled.setErrorCode("ThrottlingException");
+        assertFalse(ECSService.isMissingTaskDefinition(throttled));
+    }
+
+    private ECSService createService() {
+        return new ECSService("", FakeAmazonECS.REGION, new ECSClientFactory() {
+            @Override
+            public AmazonECS getClient(String credentialsId, String regionName) {
+                return ecs;
+            }
+        });
+    }
+}
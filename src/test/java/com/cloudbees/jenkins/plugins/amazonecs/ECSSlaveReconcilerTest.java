@@ -0,0 +1,129 @@
+/*
+ * The MIT License
+ *
+ *  Copyright (c) 2015, CloudBees, Inc.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ *
+ */
+
+package com.cloudbees.jenkins.plugins.amazonecs;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import com.amazonaws.services.ecs.AmazonECS;
+import com.amazonaws.services.ecs.model.ContainerDefinition;
+import com.amazonaws.services.ecs.model.RegisterTaskDefinitionRequest;
+import com.amazonaws.services.ecs.model.RunTaskRequest;
+import com.google.common.util.concurrent.SettableFuture;
+
+import hudson.model.Node;
+import hudson.slaves.JNLPLauncher;
+
+/**
+ * Checks slaves as if they were loaded from disk, against the tasks of the {@link FakeAmazonECS}.
+ */
+public class ECSSlaveReconcilerTest {
+
+    private static final AtomicInteger CLUSTERS = new AtomicInteger();
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    private FakeAmazonECS ecs;
+
+    private String cluster;
+
+    private ECSCloud cloud;
+
+    @Before
+    public void setUp() throws Exception {
+        ecs = new FakeAmazonECS();
+        ECSService.setDefaultClientFactory(new ECSClientFactory() {
+            @Override
+            public AmazonECS getClient(String credentialsId, String regionName) {
+                return ecs;
+            }
+        });
+        cluster = "arn:aws:ecs:us-east-1:123456789012:cluster/reconciler-" + CLUSTERS.incrementAndGet();
+        ecs.addContainerInstance(cluster, 2048, 4096);
+        cloud = ECSCloudTest.createCloud("ecs", cluster, ECSCloudTest.template("maven", "maven"));
+        // slaves find their cloud in Jenkins
+        j.jenkins.clouds.add(cloud);
+    }
+
+    @After
+    public void tearDown() {
+        ECSService.setDefaultClientFactory(null);
+    }
+
+    @Test
+    public void slavesOfStoppedOrUnknownTasksAreRemoved() throws Exception {
+        ECSSlave running = addSlave(runTask());
+        String stoppedTask = runTask();
+        ecs.stopTask(stoppedTask, "Essential container in task exited");
+        ECSSlave stopped = addSlave(stoppedTask);
+        ECSSlave unknown = addSlave("arn:aws:ecs:us-east-1:123456789012:task/unknown");
+        ECSSlave neverStarted = addSlave(null);
+
+        ECSSlaveReconciler.reconcile();
+
+        assertNotNull(j.jenkins.getNode(running.getNodeName()));
+        assertNull(j.jenkins.getNode(stopped.getNodeName()));
+        assertNull(j.jenkins.getNode(unknown.getNodeName()));
+        assertNull(j.jenkins.getNode(neverStarted.getNodeName()));
+    }
+
+    @Test
+    public void launchingSlavesAreLeftAlone() throws Exception {
+        ECSSlave launching = addSlave(null);
+        launching.setPlannedNode(SettableFuture.<Node>create());
+
+        ECSSlaveReconciler.reconcile();
+
+        assertNotNull(j.jenkins.getNode(launching.getNodeName()));
+    }
+
+    private ECSSlave addSlave(String taskArn) throws Exception {
+        ECSSlave slave = new ECSSlave(cloud, "ecs-" + Long.toHexString(System.nanoTime()), "/home/jenkins", "maven", new JNLPLauncher());
+        slave.setTemplateName("maven");
+        slave.setClusterArn(cluster);
+        slave.setTaskArn(taskArn);
+        j.jenkins.addNode(slave);
+        return slave;
+    }
+
+    private String runTask() {
+        String taskDefinitionArn = ecs.registerTaskDefinition(new RegisterTaskDefinitionRequest()
+                .withFamily("ecs-maven")
+                .withContainerDefinitions(new ContainerDefinition().withName("ecs-maven").withImage("jenkins/jnlp-slave").withCpu(512).withMemory(1024)))
+                .getTaskDefinition().getTaskDefinitionArn();
+        return ecs.runTask(new RunTaskRequest().withCluster(cluster).withTaskDefinition(taskDefinitionArn).withStartedBy(cloud.getStartedBy()))
+                .getTasks().get(0).getTaskArn();
+    }
+}
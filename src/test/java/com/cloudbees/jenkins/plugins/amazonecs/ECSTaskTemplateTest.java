@@ -0,0 +1,68 @@
+/*
+ * The MIT License
+ *
+ *  Copyright (c) 2015, CloudBees, Inc.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ *
+ */
+
+package com.cloudbees.jenkins.plugins.amazonecs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+public class ECSTaskTemplateTest {
+
+    private static final String SUBNETS = "subnet-1234";
+
+    @Test
+    public void fargateFallbackNeedsSubnetsAndAFargateSize() {
+        assertNull(ECSTaskTemplate.checkFargateFallback(null, SUBNETS, 512, 1024, null, null));
+        assertNotNull(ECSTaskTemplate.checkFargateFallback(null, "", 512, 1024, null, null));
+        assertNotNull(ECSTaskTemplate.checkFargateFallback(null, SUBNETS, 512, 768, null, null));
+        assertNotNull(ECSTaskTemplate.checkFargateFallback("jenkins-slave:3", SUBNETS, 512, 1024, null, null));
+    }
+
+    @Test
+    public void fargateFallbackCannotMountHostPaths() {
+        ECSTaskTemplate.MountPointEntry scratch = new ECSTaskTemplate.MountPointEntry("scratch", "", "/scratch", false);
+        ECSTaskTemplate.MountPointEntry docker = new ECSTaskTemplate.MountPointEntry("docker", "/var/run/docker.sock", "/var/run/docker.sock", false);
+
+        assertNull(ECSTaskTemplate.checkFargateFallback(null, SUBNETS, 512, 1024, Collections.singletonList(scratch), null));
+        assertNotNull(ECSTaskTemplate.checkFargateFallback(null, SUBNETS, 512, 1024, Arrays.asList(scratch, docker), null));
+    }
+
+    @Test
+    public void fargateFallbackPublishesPortsOnTheSamePort() {
+        assertNull(ECSTaskTemplate.checkFargateFallback(null, SUBNETS, 512, 1024, null,
+                Arrays.asList(new ECSTaskTemplate.PortMappingEntry(8080, null, "tcp"),
+                        new ECSTaskTemplate.PortMappingEntry(8081, 0, "tcp"),
+                        new ECSTaskTemplate.PortMappingEntry(8082, 8082, "tcp"))));
+        assertEquals("Fargate cannot map container port 8080 to host port 80, templates with such port mappings cannot fall back to it",
+                ECSTaskTemplate.checkFargateFallback(null, SUBNETS, 512, 1024, null,
+                        Collections.singletonList(new ECSTaskTemplate.PortMappingEntry(8080, 80, "tcp"))));
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * The MIT License
+ *
+ *  Copyright (c) 2015, CloudBees, Inc.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ *
+ */
+
+package com.cloudbees.jenkins.plugins.amazonecs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import com.amazonaws.services.ecs.AmazonECS;
+import com.amazonaws.services.ecs.model.ContainerDefinition;
+import com.amazonaws.services.ecs.model.RegisterTaskDefinitionRequest;
+import com.amazonaws.services.ecs.model.RunTaskRequest;
+
+/**
+ * Stops tasks of the {@link FakeAmazonECS} in the background. Needs Jenkins for its timer and thread pool.
+ */
+public class ECSTaskTerminatorTest {
+
+    private static final AtomicInteger CLUSTERS = new AtomicInteger();
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    private FakeAmazonECS ecs;
+
+    private ECSService service;
+
+    private String cluster;
+
+    private int maxAttempts;
+
+    @Before
+    public void setUp() {
+        ecs = new FakeAmazonECS();
+        service = new ECSService("", FakeAmazonECS.REGION, new ECSClientFactory() {
+            @Override
+            public AmazonECS getClient(String credentialsId, String regionName) {
+                return ecs;
+            }
+        });
+        cluster = "arn:aws:ecs:us-east-1:123456789012:cluster/terminator-" + CLUSTERS.incrementAndGet();
+        ecs.addContainerInstance(cluster, 1024, 2048);
+        maxAttempts = ECSTaskTerminator.MAX_ATTEMPTS;
+    }
+
+    @After
+    public void tearDown() {
+        ECSTaskTerminator.MAX_ATTEMPTS = maxAttempts;
+    }
+
+    @Test
+    public void taskQueuedTwiceIsStoppedOnce() throws Exception {
+        String taskArn = runTask();
+        // keep the first call in flight while the task is queued again
+        ecs.setLatencyMillis(500);
+
+        ECSTaskTerminator.get().terminate(service, taskArn, cluster);
+        ECSTaskTerminator.get().terminate(service, taskArn, cluster);
+        awaitTerminations();
+
+        assertEquals(1, ecs.getCalls("stopTask"));
+        assertEquals("STOPPED", ecs.getTask(taskArn).getLastStatus());
+    }
+
+    @Test
+    public void failedStopIsRetried() throws Exception {
+        String taskArn = runTask();
+        ecs.throttleNextCalls(2);
+
+        long startedAt = System.currentTimeMillis();
+        ECSTaskTerminator.get().terminate(service, taskArn, cluster);
+        awaitTerminations();
+
+        assertEquals(3, ecs.getCalls("stopTask"));
+        assertEquals("STOPPED", ecs.getTask(taskArn).getLastStatus());
+        // backing off 1 s, then 2 s
+        assertTrue(System.currentTimeMillis() - startedAt >= 3000);
+    }
+
+    @Test
+    public void unexpectedFailureIsRetried() throws Exception {
+        String taskArn = runTask();
+        ecs.breakNextCalls(1);
+
+        ECSTaskTerminator.get().terminate(service, taskArn, cluster);
+        awaitTerminations();
+
+        assertEquals(2, ecs.getCalls("stopTask"));
+        assertEquals("STOPPED", ecs.getTask(taskArn).getLastStatus());
+
+        // and the terminator keeps draining the tasks queued afterwards
+        String otherTaskArn = runTask();
+        ECSTaskTerminator.get().terminate(service, otherTaskArn, cluster);
+        awaitTerminations();
+        assertEquals("STOPPED", ecs.getTask(otherTaskArn).getLastStatus());
+    }
+
+    @Test
+    public void stopIsGivenUpAfterTheLastAttempt() throws Exception {
+        ECSTaskTerminator.MAX_ATTEMPTS = 2;
+        String taskArn = runTask();
+        ecs.throttleNextCalls(5);
+
+        ECSTaskTerminator.get().terminate(service, taskArn, cluster);
+        awaitTerminations();
+
+        assertEquals(2, ecs.getCalls("stopTask"));
+        assertEquals("RUNNING", ecs.getTask(taskArn).getLastStatus());
+    }
+
+    private String runTask() {
+        String taskDefinitionArn = ecs.registerTaskDefinition(new RegisterTaskDefinitionRequest()
+                .withFamily("terminator")
+                .withContainerDefinitions(new ContainerDefinition().withName("jnlp").withImage("jenkins/jnlp-slave").withCpu(512).withMemory(1024)))
+                .getTaskDefinition().getTaskDefinitionArn();
+        return ecs.runTask(new RunTaskRequest().withCluster(cluster).withTaskDefinition(taskDefinitionArn))
+                .getTasks().get(0).getTaskArn();
+    }
+
+    private static void awaitTerminations() throws InterruptedException {
+        long timeout = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(30);
+        while (ECSTaskTerminator.get().getPendingCount() > 0) {
+            assertTrue("Tasks were not stopped", System.currentTimeMillis() < timeout);
+            Thread.sleep(100);
+        }
+    }
+}
@@ -0,0 +1,589 @@
+/*
+ * The MIT License
+ *
+ *  Copyright (c) 2015, CloudBees, Inc.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ *
+ */
+
+package com.cloudbees.jenkins.plugins.amazonecs;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.CheckForNull;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.ecs.AbstractAmazonECS;
+import com.amazonaws.services.ecs.model.ClientException;
+import com.amazonaws.services.ecs.model.ContainerDefinition;
+import com.amazonaws.services.ecs.model.ContainerInstance;
+import com.amazonaws.services.ecs.model.DeregisterTaskDefinitionRequest;
+import com.amazonaws.services.ecs.model.DeregisterTaskDefinitionResult;
+import com.amazonaws.services.ecs.model.DescribeContainerInstancesRequest;
+import com.amazonaws.services.ecs.model.DescribeContainerInstancesResult;
+import com.amazonaws.services.ecs.model.DescribeTaskDefinitionRequest;
+import com.amazonaws.services.ecs.model.DescribeTaskDefinitionResult;
+import com.amazonaws.services.ecs.model.DescribeTasksRequest;
+import com.amazonaws.services.ecs.model.DescribeTasksResult;
+import com.amazonaws.services.ecs.model.Failure;
+import com.amazonaws.services.ecs.model.LaunchType;
+import com.amazonaws.services.ecs.model.ListClustersRequest;
+import com.amazonaws.services.ecs.model.ListClustersResult;
+import com.amazonaws.services.ecs.model.ListContainerInstancesRequest;
+import com.amazonaws.services.ecs.model.ListContainerInstancesResult;
+import com.amazonaws.services.ecs.model.ListTasksRequest;
+import com.amazonaws.services.ecs.model.ListTasksResult;
+import com.amazonaws.services.ecs.model.RegisterTaskDefinitionRequest;
+import com.amazonaws.services.ecs.model.RegisterTaskDefinitionResult;
+import com.amazonaws.services.ecs.model.Resource;
+import com.amazonaws.services.ecs.model.RunTaskRequest;
+import com.amazonaws.services.ecs.model.RunTaskResult;
+import com.amazonaws.services.ecs.model.StartTaskRequest;
+import com.amazonaws.services.ecs.model.StartTaskResult;
+import com.amazonaws.services.ecs.model.StopTaskRequest;
+import com.amazonaws.services.ecs.model.StopTaskResult;
+import com.amazonaws.services.ecs.model.Task;
+import com.amazonaws.services.ecs.model.TaskDefinition;
+import com.amazonaws.services.ecs.model.TaskOverride;
+
+/**
+ * In-memory stand-in for the ECS operations the plugin uses.
+ *
+ * EC2 tasks are placed on the first container instance with enough remaining cpu and memory, and give them back once
+ * stopped. Fargate tasks always fit. Calls can be slowed down, throttled or broken, and launches made to fail, to see
+ * how the plugin copes. Started tasks are RUNNING right away; a {@link Listener} can act in place of their agent.
+ */
+class FakeAmazonECS extends AbstractAmazonECS {
+
+    static final String ACCOUNT = "123456789012";
+
+    static final String REGION = "us-east-1";
+
+    /**
+     * Acts on the tasks the fake starts, e.g. by connecting their slave.
+     */
+    interface Listener {
+        void started(Task task);
+    }
+
+    private final Random random = new Random();
+
+    private final ConcurrentMap<String, AtomicInteger> calls = new ConcurrentHashMap<String, AtomicInteger>();
+
+    private final Map<String, TaskDefinition> taskDefinitions = new LinkedHashMap<String, TaskDefinition>();
+
+    private final Map<String, Integer> revisions = new LinkedHashMap<String, Integer>();
+
+    private final Map<String, ContainerInstance> containerInstances = new LinkedHashMap<String, ContainerInstance>();
+
+    /**
+     * Cluster of each container instance.
+     */
+    private final Map<String, String> clusterOf = new LinkedHashMap<String, String>();
+
+    private final Map<String, Task> tasks = new LinkedHashMap<String, Task>();
+
+    private volatile long latencyMillis;
+
+    private volatile double throttlingProbability;
+
+    private int throttledCalls;
+
+    private int brokenCalls;
+
+    private int failedPlacements;
+
+    private int stoppedLaunches;
+
+    private String stoppedReason;
+
+    @CheckForNull
+    private volatile Listener listener;
+
+    // ----- simulation settings
+
+    /**
+     * Adds an active container instance with the given resources to the cluster.
+     *
+     * @return the ARN of the instance
+     */
+    synchronized String addContainerInstance(String cluster, int cpu, int memory) {
+        String arn = "arn:aws:ecs:" + REGION + ":" + ACCOUNT + ":container-instance/" + UUID.randomUUID();
+        containerInstances.put(arn, new ContainerInstance()
+                .withContainerInstanceArn(arn)
+                .withEc2InstanceId("i-" + Long.toHexString(random.nextLong()))
+                .withStatus("ACTIVE")
+                .withAgentConnected(true)
+                .withVersion(1L)
+                .withRegisteredResources(resources(cpu, memory))
+                .withRemainingResources(resources(cpu, memory))
+                .withAttributes()
+                .withRunningTasksCount(0)
+                .withPendingTasksCount(0));
+        clusterOf.put(arn, cluster);
+        return arn;
+    }
+
+    /**
+     * Delays every call by the given time, like a distant endpoint would.
+     */
+    void setLatencyMillis(long latencyMillis) {
+        this.latencyMillis = latencyMillis;
+    }
+
+    /**
+     * Fails each call with a throttling error with the given probability.
+     */
+    void setThrottlingProbability(double throttlingProbability) {
+        this.throttlingProbability = throttlingProbability;
+    }
+
+    /**
+     * Fails the next calls with a throttling error, whatever their API.
+     */
+    synchronized void throttleNextCalls(int count) {
+        throttledCalls = count;
+    }
+
+    /**
+     * Fails the next calls with an unexpected runtime exception, as a bug of the SDK would.
+     */
+    synchronized void breakNextCalls(int count) {
+        brokenCalls = count;
+    }
+
+    /**
+     * Lets ECS fail to place the next tasks, as if the cluster had no room for them.
+     */
+    synchronized void failNextPlacements(int count) {
+        failedPlacements = count;
+    }
+
+    /**
+     * Stops the next started tasks right away for the given reason, e.g. {@code CannotPullContainerError}.
+     */
+    synchronized void stopNextLaunches(int count, String reason) {
+        stoppedLaunches = count;
+        stoppedReason = reason;
+    }
+
+    void setListener(@CheckForNull Listener listener) {
+        this.listener = listener;
+    }
+
+    // ----- inspection
+
+    /**
+     * Number of calls of the given API, e.g. {@code runTask}, throttled ones included.
+     */
+    int getCalls(String api) {
+        AtomicInteger count = calls.get(api);
+        return count == null ? 0 : count.get();
+    }
+
+    Map<String, Integer> getCalls() {
+        Map<String, Integer> r = new LinkedHashMap<String, Integer>();
+        for (Map.Entry<String, AtomicInteger> entry : calls.entrySet()) {
+            r.put(entry.getKey(), entry.getValue().get());
+        }
+        return r;
+    }
+
+    synchronized List<Task> getTasks(String lastStatus) {
+        List<Task> r = new ArrayList<Task>();
+        for (Task task : tasks.values()) {
+            if (lastStatus.equals(task.getLastStatus())) {
+                r.add(task.clone());
+            }
+        }
+        return r;
+    }
+
+    @CheckForNull
+    synchronized Task getTask(String taskArn) {
+        Task task = tasks.get(taskArn);
+        return task == null ? null : task.clone();
+    }
+
+    synchronized ContainerInstance getContainerInstance(String arn) {
+        return containerInstances.get(arn).clone();
+    }
+
+    /**
+     * Stops a task as if ECS stopped it, e.g. because its container exited.
+     */
+    synchronized void stopTask(String taskArn, String reason) {
+        stop(tasks.get(taskArn), reason);
+    }
+
+    // ----- AmazonECS
+
+    @Override
+    public RegisterTaskDefinitionResult registerTaskDefinition(RegisterTaskDefinitionRequest request) {
+        call("registerTaskDefinition");
+        synchronized (this) {
+            Integer revision = revisions.get(request.getFamily());
+            revision = revision == null ? 1 : revision + 1;
+            revisions.put(request.getFamily(), revision);
+            TaskDefinition taskDefinition = new TaskDefinition()
+                    .withTaskDefinitionArn("arn:aws:ecs:" + REGION + ":" + ACCOUNT + ":task-definition/" + request.getFamily() + ":" + revision)
+                    .withFamily(request.getFamily())
+                    .withRevision(revision)
+                    .withStatus("ACTIVE")
+                    .withContainerDefinitions(request.getContainerDefinitions())
+                    .withVolumes(request.getVolumes())
+                    .withNetworkMode(request.getNetworkMode())
+                    .withRequiresCompatibilities(request.getRequiresCompatibilities())
+                    .withCpu(request.getCpu())
+                    .withMemory(request.getMemory())
+                    .withTaskRoleArn(request.getTaskRoleArn())
+                    .withExecutionRoleArn(request.getExecutionRoleArn());
+            taskDefinitions.put(taskDefinition.getTaskDefinitionArn(), taskDefinition);
+            return new RegisterTaskDefinitionResult().withTaskDefinition(taskDefinition.clone());
+        }
+    }
+
+    @Override
+    public DeregisterTaskDefinitionResult deregisterTaskDefinition(DeregisterTaskDefinitionRequest request) {
+        call("deregisterTaskDefinition");
+        synchronized (this) {
+            TaskDefinition taskDefinition = findTaskDefinition(request.getTaskDefinition());
+            taskDefinition.setStatus("INACTIVE");
+            return new DeregisterTaskDefinitionResult().withTaskDefinition(taskDefinition);
+        }
+    }
+
+    @Override
+    public DescribeTaskDefinitionResult describeTaskDefinition(DescribeTaskDefinitionRequest request) {
+        call("describeTaskDefinition");
+        synchronized (this) {
+            return new DescribeTaskDefinitionResult().withTaskDefinition(findTaskDefinition(request.getTaskDefinition()));
+        }
+    }
+
+    @Override
+    public RunTaskResult runTask(RunTaskRequest request) {
+        call("runTask");
+        final List<Task> started = new ArrayList<Task>();
+        final RunTaskResult result = new RunTaskResult();
+        synchronized (this) {
+            TaskDefinition taskDefinition = findActiveTaskDefinition(request.getTaskDefinition());
+            int count = request.getCount() == null ? 1 : request.getCount();
+            boolean fargate = LaunchType.FARGATE.toString().equals(request.getLaunchType());
+            for (int i = 0; i < count; i++) {
+                String instance = fargate ? null : findContainerInstance(request.getCluster(), taskDefinition);
+                if (!fargate && (instance == null || failedPlacements > 0)) {
+                    failedPlacements = Math.max(0, failedPlacements - 1);
+                    result.withFailures(new Failure().withReason("RESOURCE:MEMORY"));
+                    continue;
+                }
+                started.add(start(request.getCluster(), taskDefinition, instance, request.getStartedBy(), request.getOverrides(), request.getLaunchType()));
+            }
+        }
+        return result.withTasks(started(started));
+    }
+
+    @Override
+    public StartTaskResult startTask(StartTaskRequest request) {
+        call("startTask");
+        final List<Task> started = new ArrayList<Task>();
+        final StartTaskResult result = new StartTaskResult();
+        synchronized (this) {
+            TaskDefinition taskDefinition = findActiveTaskDefinition(request.getTaskDefinition());
+            for (String instance : request.getContainerInstances()) {
+                ContainerInstance containerInstance = containerInstances.get(instance);
+                if (containerInstance == null || !"ACTIVE".equals(containerInstance.getStatus())) {
+                    result.withFailures(new Failure().withArn(instance).withReason("MISSING"));
+                } else if (!fits(containerInstance, taskDefinition) || failedPlacements > 0) {
+                    failedPlacements = Math.max(0, failedPlacements - 1);
+                    result.withFailures(new Failure().withArn(instance).withReason("RESOURCE:MEMORY"));
+                } else {
+                    started.add(start(request.getCluster(), taskDefinition, instance, request.getStartedBy(), request.getOverrides(), LaunchType.EC2.toString()));
+                }
+            }
+        }
+        return result.withTasks(started(started));
+    }
+
+    @Override
+    public StopTaskResult stopTask(StopTaskRequest request) {
+        call("stopTask");
+        synchronized (this) {
+            Task task = tasks.get(request.getTask());
+            if (task == null) {
+                throw new ClientException("The referenced task was not found.");
+            }
+            stop(task, request.getReason() != null ? request.getReason() : "Task stopped by user");
+            return new StopTaskResult().withTask(task.clone());
+        }
+    }
+
+    @Override
+    public DescribeTasksResult describeTasks(DescribeTasksRequest request) {
+        call("describeTasks");
+        synchronized (this) {
+            if (request.getTasks().size() > ECSService.MAX_DESCRIBE_BATCH_SIZE) {
+                throw new ClientException("Tasks cannot be longer than " + ECSService.MAX_DESCRIBE_BATCH_SIZE + ".");
+            }
+            DescribeTasksResult result = new DescribeTasksResult().withTasks(new ArrayList<Task>()).withFailures(new ArrayList<Failure>());
+            for (String arn : request.getTasks()) {
+                Task task = tasks.get(arn);
+                if (task == null) {
+                    result.withFailures(new Failure().withArn(arn).withReason("MISSING"));
+                } else {
+                    result.withTasks(task.clone());
+                }
+            }
+            return result;
+        }
+    }
+
+    @Override
+    public ListTasksResult listTasks(ListTasksRequest request) {
+        call("listTasks");
+        synchronized (this) {
+            List<String> arns = new ArrayList<String>();
+            for (Task task : tasks.values()) {
+                if (request.getCluster() != null && !request.getCluster().equals(task.getClusterArn())) {
+                    continue;
+                }
+                if (request.getStartedBy() != null && !request.getStartedBy().equals(task.getStartedBy())) {
+                    continue;
+                }
+                if (request.getDesiredStatus() != null && !request.getDesiredStatus().equals(task.getDesiredStatus())) {
+                    continue;
+                }
+                arns.add(task.getTaskArn());
+            }
+            return new ListTasksResult().withTaskArns(arns);
+        }
+    }
+
+    @Override
+    public ListContainerInstancesResult listContainerInstances(ListContainerInstancesRequest request) {
+        call("listContainerInstances");
+        synchronized (this) {
+            List<String> arns = new ArrayList<String>();
+            for (ContainerInstance instance : containerInstances.values()) {
+                if ((request.getCluster() == null || request.getCluster().equals(clusterOf.get(instance.getContainerInstanceArn())))
+                        && (request.getStatus() == null || request.getStatus().equals(instance.getStatus()))) {
+                    arns.add(instance.getContainerInstanceArn());
+                }
+            }
+            return new ListContainerInstancesResult().withContainerInstanceArns(arns);
+        }
+    }
+
+    @Override
+    public DescribeContainerInstancesResult describeContainerInstances(DescribeContainerInstancesRequest request) {
+        call("describeContainerInstances");
+        synchronized (this) {
+            DescribeContainerInstancesResult result = new DescribeContainerInstancesResult()
+                    .withContainerInstances(new ArrayList<ContainerInstance>()).withFailures(new ArrayList<Failure>());
+            for (String arn : request.getContainerInstances()) {
+                ContainerInstance instance = containerInstances.get(arn);
+                if (instance == null) {
+                    result.withFailures(new Failure().withArn(arn).withReason("MISSING"));
+                } else {
+                    result.withContainerInstances(instance.clone());
+                }
+            }
+            return result;
+        }
+    }
+
+    @Override
+    public ListClustersResult listClusters(ListClustersRequest request) {
+        call("listClusters");
+        synchronized (this) {
+            return new ListClustersResult().withClusterArns(new ArrayList<String>(new LinkedHashSet<String>(clusterOf.values())));
+        }
+    }
+
+    @Override
+    public void shutdown() {
+    }
+
+    // ----- simulation
+
+    /**
+     * Counts the call, and makes it slow or throttled as configured. Not to be called while holding the lock, so that
+     * slow calls do not wait for each other.
+     */
+    private void call(String api) {
+        AtomicInteger count = calls.get(api);
+        if (count == null) {
+            calls.putIfAbsent(api, new AtomicInteger());
+            count = calls.get(api);
+        }
+        count.incrementAndGet();
+        if (latencyMillis > 0) {
+            try {
+                Thread.sleep(latencyMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        boolean throttled;
+        boolean broken;
+        synchronized (this) {
+            broken = brokenCalls > 0;
+            brokenCalls = Math.max(0, brokenCalls - 1);
+            throttled = throttledCalls > 0 || throttlingProbability > 0 && random.nextDouble() < throttlingProbability;
+            throttledCalls = Math.max(0, throttledCalls - 1);
+        }
+        if (broken) {
+            throw new IllegalStateException("Broken " + api + " call");
+        }
+        if (throttled) {
+            AmazonServiceException e = new AmazonServiceException("Rate exceeded");
+            e.setErrorCode("ThrottlingException");
+            e.setStatusCode(400);
+            e.setServiceName("AmazonECS");
+            throw e;
+        }
+    }
+
+    private TaskDefinition findTaskDefinition(String familyOrArn) {
+        TaskDefinition found = taskDefinitions.get(familyOrArn);
+        if (found == null) {
+            // the latest active revision of the family, or the given family:revision
+            for (TaskDefinition taskDefinition : taskDefinitions.values()) {
+                if ((familyOrArn.equals(taskDefinition.getFamily()) && "ACTIVE".equals(taskDefinition.getStatus()))
+                        || familyOrArn.equals(taskDefinition.getFamily() + ":" + taskDefinition.getRevision())) {
+                    found = taskDefinition;
+                }
+            }
+        }
+        if (found == null) {
+            throw new ClientException("Unable to describe task definition.");
+        }
+        return found.clone();
+    }
+
+    private TaskDefinition findActiveTaskDefinition(String familyOrArn) {
+        TaskDefinition taskDefinition = findTaskDefinition(familyOrArn);
+        if (!"ACTIVE".equals(taskDefinition.getStatus())) {
+            throw new ClientException("TaskDefinition is inactive");
+        }
+        return taskDefinition;
+    }
+
+    @CheckForNull
+    private String findContainerInstance(String cluster, TaskDefinition taskDefinition) {
+        for (ContainerInstance instance : containerInstances.values()) {
+            if ("ACTIVE".equals(instance.getStatus()) && cluster.equals(clusterOf.get(instance.getContainerInstanceArn()))
+                    && fits(instance, taskDefinition)) {
+                return instance.getContainerInstanceArn();
+            }
+        }
+        return null;
+    }
+
+    private boolean fits(ContainerInstance instance, TaskDefinition taskDefinition) {
+        int[] needed = ECSOrphanReaper.getResources(new Task(), taskDefinition);
+        return get(instance, "CPU") >= needed[0] && get(instance, "MEMORY") >= needed[1];
+    }
+
+    private Task start(String cluster, TaskDefinition taskDefinition, @CheckForNull String instance, String startedBy,
+            TaskOverride overrides, String launchType) {
+        Task task = new Task()
+                .withTaskArn("arn:aws:ecs:" + REGION + ":" + ACCOUNT + ":task/" + UUID.randomUUID())
+                .withClusterArn(cluster)
+                .withTaskDefinitionArn(taskDefinition.getTaskDefinitionArn())
+                .withContainerInstanceArn(instance)
+                .withStartedBy(startedBy)
+                .withOverrides(overrides)
+                .withLaunchType(launchType)
+                .withCpu(taskDefinition.getCpu())
+                .withMemory(taskDefinition.getMemory())
+                .withCreatedAt(new Date())
+                .withStartedAt(new Date())
+                .withDesiredStatus("RUNNING")
+                .withLastStatus("RUNNING")
+                .withVersion(1L);
+        tasks.put(task.getTaskArn(), task);
+        if (instance != null) {
+            allocate(containerInstances.get(instance), ECSOrphanReaper.getResources(new Task(), taskDefinition), -1);
+        }
+        if (stoppedLaunches > 0) {
+            stoppedLaunches--;
+            Task copy = task.clone();
+            stop(task, stoppedReason);
+            return copy;
+        }
+        return task.clone();
+    }
+
+    private void stop(Task task, String reason) {
+        if ("STOPPED".equals(task.getLastStatus())) {
+            return;
+        }
+        task.withDesiredStatus("STOPPED").withLastStatus("STOPPED").withStoppedReason(reason).withStoppedAt(new Date())
+                .withVersion(task.getVersion() + 1);
+        if (task.getContainerInstanceArn() != null) {
+            allocate(containerInstances.get(task.getContainerInstanceArn()),
+                    ECSOrphanReaper.getResources(new Task(), taskDefinitions.get(task.getTaskDefinitionArn())), 1);
+        }
+    }
+
+    private void allocate(ContainerInstance instance, int[] resources, int sign) {
+        instance.setRemainingResources(resources(get(instance, "CPU") + sign * resources[0], get(instance, "MEMORY") + sign * resources[1]));
+        instance.setVersion(instance.getVersion() + 1);
+    }
+
+    private List<Task> started(List<Task> started) {
+        Listener l = listener;
+        if (l != null) {
+            for (Task task : started) {
+                if (!"STOPPED".equals(task.getLastStatus())) {
+                    l.started(task);
+                }
+            }
+        }
+        return started;
+    }
+
+    private static int get(ContainerInstance instance, String name) {
+        for (Resource resource : instance.getRemainingResources()) {
+            if (name.equals(resource.getName())) {
+                return resource.getIntegerValue();
+            }
+        }
+        return 0;
+    }
+
+    private static List<Resource> resources(int cpu, int memory) {
+        List<Resource> resources = new ArrayList<Resource>();
+        resources.add(new Resource().withName("CPU").withType("INTEGER").withIntegerValue(cpu));
+        resources.add(new Resource().withName("MEMORY").withType("INTEGER").withIntegerValue(memory));
+        return resources;
+    }
+}
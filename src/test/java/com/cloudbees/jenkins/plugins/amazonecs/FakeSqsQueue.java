@@ -0,0 +1,175 @@
+/*
+ * The MIT License
+ *
+ *  Copyright (c) 2015, CloudBees, Inc.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ *
+ */
+
+package com.cloudbees.jenkins.plugins.amazonecs;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringEscapeUtils;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import hudson.Util;
+
+/**
+ * Local stand-in for an SQS queue, speaking just enough of the SQS query protocol for the ReceiveMessage and
+ * DeleteMessageBatch calls of the {@link ECSEventIngester}.
+ *
+ * Received messages are not hidden from other receivers, which the single reader of a queue does not need.
+ */
+class FakeSqsQueue {
+
+    /**
+     * How long a receive call waits for a message, shorter than SQS so that stopped readers notice it soon.
+     */
+    private static final long WAIT_MILLIS = TimeUnit.SECONDS.toMillis(1);
+
+    private final BlockingQueue<String> messages = new LinkedBlockingQueue<String>();
+
+    private final AtomicInteger receiveCalls = new AtomicInteger();
+
+    private final AtomicInteger received = new AtomicInteger();
+
+    private final AtomicInteger deleted = new AtomicInteger();
+
+    private final HttpServer server;
+
+    FakeSqsQueue() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    respond(exchange, FakeSqsQueue.this.handle(parse(IOUtils.toString(exchange.getRequestBody(), "UTF-8"))));
+                } catch (InterruptedException e) {
+                    exchange.sendResponseHeaders(500, -1);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+    }
+
+    String getUrl() {
+        return "http://localhost:" + server.getAddress().getPort() + "/" + FakeAmazonECS.ACCOUNT + "/ecs-events";
+    }
+
+    void send(String body) {
+        messages.add(body);
+    }
+
+    /**
+     * Number of ReceiveMessage calls that returned, with or without messages.
+     */
+    int getReceiveCalls() {
+        return receiveCalls.get();
+    }
+
+    /**
+     * Number of messages handed out.
+     */
+    int getReceived() {
+        return received.get();
+    }
+
+    int getDeleted() {
+        return deleted.get();
+    }
+
+    void stop() {
+        server.stop(0);
+    }
+
+    private String handle(Map<String, String> params) throws InterruptedException {
+        final String action = params.get("Action");
+        final StringBuilder result = new StringBuilder();
+        if ("ReceiveMessage".equals(action)) {
+            int max = params.containsKey("MaxNumberOfMessages") ? Integer.parseInt(params.get("MaxNumberOfMessages")) : 1;
+            int count = 0;
+            for (String body = messages.poll(WAIT_MILLIS, TimeUnit.MILLISECONDS); body != null; body = count < max ? messages.poll() : null) {
+                count++;
+                received.incrementAndGet();
+                result.append("<Message><MessageId>").append(UUID.randomUUID())
+                        .append("</MessageId><ReceiptHandle>").append(UUID.randomUUID())
+                        .append("</ReceiptHandle><MD5OfBody>").append(Util.getDigestOf(body))
+                        .append("</MD5OfBody><Body>").append(StringEscapeUtils.escapeXml(body))
+                        .append("</Body></Message>");
+            }
+            receiveCalls.incrementAndGet();
+        } else if ("DeleteMessageBatch".equals(action)) {
+            for (int i = 1; params.containsKey("DeleteMessageBatchRequestEntry." + i + ".Id"); i++) {
+                deleted.incrementAndGet();
+                result.append("<DeleteMessageBatchResultEntry><Id>")
+                        .append(StringEscapeUtils.escapeXml(params.get("DeleteMessageBatchRequestEntry." + i + ".Id")))
+                        .append("</Id></DeleteMessageBatchResultEntry>");
+            }
+        } else {
+            throw new UnsupportedOperationException(action);
+        }
+        return "<" + action + "Response xmlns=\"http://queue.amazonaws.com/doc/2012-11-05/\">"
+                + "<" + action + "Result>" + result + "</" + action + "Result>"
+                + "<ResponseMetadata><RequestId>" + UUID.randomUUID() + "</RequestId></ResponseMetadata>"
+                + "</" + action + "Response>";
+    }
+
+    private static void respond(HttpExchange exchange, String xml) throws IOException {
+        byte[] bytes = xml.getBytes("UTF-8");
+        exchange.getResponseHeaders().set("Content-Type", "text/xml");
+        exchange.sendResponseHeaders(200, bytes.length);
+        OutputStream out = exchange.getResponseBody();
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static Map<String, String> parse(String form) throws IOException {
+        Map<String, String> params = new HashMap<String, String>();
+        for (String param : form.split("&")) {
+            int eq = param.indexOf('=');
+            if (eq > 0) {
+                params.put(URLDecoder.decode(param.substring(0, eq), "UTF-8"), URLDecoder.decode(param.substring(eq + 1), "UTF-8"));
+            }
+        }
+        return params;
+    }
+}